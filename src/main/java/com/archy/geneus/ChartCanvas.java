@@ -0,0 +1,260 @@
+package com.archy.geneus;
+
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import javafx.animation.AnimationTimer;
+import javafx.geometry.VPos;
+import javafx.scene.Cursor;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.layout.Region;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.scene.text.TextAlignment;
+
+/**
+ * Draws a {@link ChartLayout} onto one {@link Canvas} the size of the view, for charts too large to
+ * give every person a {@link PersonNode}.
+ * <p>
+ * Only what lies in the view is drawn, looked up in a {@link QuadTree} of the boxes and another of
+ * the lines, so a frame costs about what is visible rather than the size of the chart. Zoomed out
+ * far, boxes lose their text, then whole cells of the box index that would be only a few pixels
+ * wide are drawn as one block. Dragging pans, scrolling or pinching zooms around the pointer, and
+ * redraws are coalesced to at most one per frame. Clicking a box marks it, double-clicking selects
+ * its person.
+ */
+public class ChartCanvas extends Region {
+
+    private static final Color LINE = Color.web("#19a7e8");
+    private static final Color CELL = Color.gray(0.6);
+    private static final Font NAME_FONT = Font.font(14);
+    private static final Font DATE_FONT = Font.font(12);
+
+    // scales below which boxes are drawn without text, and as plain rectangles
+    private static final double TEXT_SCALE = 0.35;
+    private static final double OUTLINE_SCALE = 0.15;
+    private static final double MAX_SCALE = 4;
+    // cells of the index that would be smaller than this on screen are drawn whole
+    private static final double MIN_CELL_PIXELS = 4;
+    private static final double CLICK_SLOP = 4;
+
+    private final ChartLayout layout;
+    private final ChartLayout.Box[] boxes;
+    private final ChartLayout.Link[] links;
+    private final QuadTree boxIndex;
+    private final QuadTree linkIndex;
+    private final Canvas canvas = new Canvas();
+
+    // screen = chart * scale + translation
+    private double scale = 1, translateX, translateY;
+    private boolean placed;
+    private int hovered = -1, marked = -1;
+    private double pressX, pressY, lastX, lastY;
+    private Consumer<Person> onPersonOpened = p -> { };
+
+    private final AnimationTimer frame = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            stop();
+            draw();
+        }
+    };
+
+    public ChartCanvas(ChartLayout layout) {
+
+        this.layout = layout;
+        boxes = layout.boxes().toArray(new ChartLayout.Box[0]);
+        links = layout.links().toArray(new ChartLayout.Link[0]);
+
+        int n = boxes.length;
+        double[] minX = new double[n], minY = new double[n], maxX = new double[n], maxY = new double[n];
+        for (int i = 0; i < n; i++) {
+            minX[i] = boxes[i].x();
+            minY[i] = boxes[i].y();
+            maxX[i] = boxes[i].maxX();
+            maxY[i] = boxes[i].maxY();
+        }
+        boxIndex = new QuadTree(minX, minY, maxX, maxY);
+
+        int m = links.length;
+        minX = new double[m];
+        minY = new double[m];
+        maxX = new double[m];
+        maxY = new double[m];
+        for (int i = 0; i < m; i++) {
+            var l = links[i];
+            minX[i] = Math.min(l.x1(), l.x2());
+            minY[i] = Math.min(l.y1(), l.y2());
+            maxX[i] = Math.max(l.x1(), l.x2());
+            maxY[i] = Math.max(l.y1(), l.y2());
+        }
+        linkIndex = new QuadTree(minX, minY, maxX, maxY);
+
+        getChildren().add(canvas);
+        setMinSize(0, 0);
+
+        setOnMousePressed(e -> {
+            pressX = lastX = e.getX();
+            pressY = lastY = e.getY();
+        });
+        setOnMouseDragged(e -> {
+            translateX += e.getX() - lastX;
+            translateY += e.getY() - lastY;
+            lastX = e.getX();
+            lastY = e.getY();
+            requestDraw();
+        });
+        setOnMouseMoved(e -> hover(boxAt(e.getX(), e.getY())));
+        setOnMouseExited(e -> hover(-1));
+        setOnMouseClicked(e -> {
+            if (Math.abs(e.getX() - pressX) > CLICK_SLOP || Math.abs(e.getY() - pressY) > CLICK_SLOP)
+                return;
+            int i = boxAt(e.getX(), e.getY());
+            if (i >= 0 && e.getClickCount() == 2) {
+                onPersonOpened.accept(boxes[i].person());
+            } else if (i != marked) {
+                marked = i;
+                requestDraw();
+            }
+        });
+        setOnScroll(e -> {
+            zoom(Math.pow(1.002, e.getDeltaY()), e.getX(), e.getY());
+            e.consume();
+        });
+        setOnZoom(e -> zoom(e.getZoomFactor(), e.getX(), e.getY()));
+    }
+
+    public ChartLayout getLayout() {
+        return layout;
+    }
+
+    /** Called with the person whose box was double-clicked, to select it elsewhere. */
+    public void setOnPersonOpened(Consumer<Person> action) {
+        onPersonOpened = action;
+    }
+
+    @Override
+    protected void layoutChildren() {
+
+        double w = getWidth(), h = getHeight();
+        canvas.setWidth(w);
+        canvas.setHeight(h);
+
+        // the root starts in the middle of the view at natural size
+        if (!placed && w > 0 && h > 0) {
+            var root = layout.root();
+            translateX = w / 2 - root.centerX();
+            translateY = h / 2 - (root.y() + root.height() / 2);
+            placed = true;
+        }
+        requestDraw();
+    }
+
+    private void requestDraw() {
+        frame.start();
+    }
+
+    private void zoom(double factor, double x, double y) {
+
+        // zooming out stops once the whole chart fits twice over
+        double fit = Math.min(getWidth() / Math.max(1, layout.width()), getHeight() / Math.max(1, layout.height()));
+        double next = Math.max(Math.min(scale * factor, MAX_SCALE), Math.min(fit / 2, 1));
+        factor = next / scale;
+
+        translateX = x - (x - translateX) * factor;
+        translateY = y - (y - translateY) * factor;
+        scale = next;
+        requestDraw();
+    }
+
+    private void hover(int i) {
+        if (i == hovered)
+            return;
+        hovered = i;
+        setCursor(i >= 0 ? Cursor.HAND : Cursor.DEFAULT);
+        requestDraw();
+    }
+
+    private int boxAt(double x, double y) {
+        return boxIndex.find((x - translateX) / scale, (y - translateY) / scale);
+    }
+
+    private void draw() {
+
+        var gc = canvas.getGraphicsContext2D();
+        double w = canvas.getWidth(), h = canvas.getHeight();
+        gc.setTransform(1, 0, 0, 1, 0, 0);
+        gc.clearRect(0, 0, w, h);
+
+        // the view in chart coordinates
+        double x0 = -translateX / scale, y0 = -translateY / scale;
+        double x1 = (w - translateX) / scale, y1 = (h - translateY) / scale;
+        double minCell = MIN_CELL_PIXELS / scale;
+        boolean text = scale >= TEXT_SCALE;
+
+        gc.setTransform(scale, 0, 0, scale, translateX, translateY);
+
+        gc.setStroke(LINE);
+        gc.setLineWidth(Math.max(1.5, 1 / scale));
+        gc.setFill(Color.BLACK);
+        gc.setFont(DATE_FONT);
+        gc.setTextAlign(TextAlignment.CENTER);
+        gc.setTextBaseline(VPos.BOTTOM);
+        // lines in cells only a few pixels across are left out, the blocks of boxes keep the shape
+        linkIndex.query(x0, y0, x1, y1, minCell, i -> drawLink(gc, links[i], text), (a, b, c, d, n) -> { });
+
+        gc.setTextAlign(TextAlignment.LEFT);
+        gc.setTextBaseline(VPos.TOP);
+        gc.setFill(CELL);
+        boxIndex.query(x0, y0, x1, y1, minCell, i -> drawBox(gc, i, text),
+                       (a, b, c, d, n) -> {
+                           gc.setGlobalAlpha(1);
+                           gc.fillRect(a, b, c - a, d - b);
+                       });
+        gc.setGlobalAlpha(1);
+    }
+
+    private void drawLink(GraphicsContext gc, ChartLayout.Link link, boolean text) {
+
+        gc.strokeLine(link.x1(), link.y1(), link.x2(), link.y2());
+
+        var m = link.marriage();
+        if (text && m != null && m.getStartDate() != null)
+            gc.fillText("♥ " + m.getStartDate().format(GenealogyApp.dateFormatter),
+                        (link.x1() + link.x2()) / 2, Math.min(link.y1(), link.y2()) - 4);
+    }
+
+    private void drawBox(GraphicsContext gc, int i, boolean text) {
+
+        var box = boxes[i];
+        boolean highlighted = i == hovered || i == marked;
+        gc.setGlobalAlpha(box.repeated() ? 0.6 : 1);
+
+        if (scale < OUTLINE_SCALE) {
+            gc.setFill(highlighted ? LINE : CELL);
+            gc.fillRect(box.x(), box.y(), box.width(), box.height());
+            gc.setFill(CELL);
+            return;
+        }
+
+        gc.setFill(Color.WHITE);
+        gc.fillRoundRect(box.x(), box.y(), box.width(), box.height(), 10, 10);
+        gc.setStroke(highlighted ? LINE : Color.DARKGRAY);
+        gc.setLineWidth(i == marked ? 3 : 2);
+        gc.strokeRoundRect(box.x(), box.y(), box.width(), box.height(), 10, 10);
+
+        if (text) {
+            var p = box.person();
+            gc.setFill(Color.BLACK);
+            gc.setFont(NAME_FONT);
+            gc.fillText(Objects.toString(p.getDisplayName(), ""), box.x() + 10, box.y() + 10, box.width() - 20);
+            if (p.getBirthDate() != null) {
+                gc.setFont(DATE_FONT);
+                gc.fillText(p.getBirthDate().format(GenealogyApp.dateFormatter),
+                            box.x() + 10, box.y() + 30, box.width() - 20);
+            }
+        }
+        gc.setFill(CELL);
+    }
+}
@@ -0,0 +1,108 @@
+package com.archy.geneus;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * The geometry of a chart as computed by {@link TreeLayout}: a box per person shown and the straight
+ * lines between them, in chart coordinates where the root person's box has its top left corner at
+ * (0, 0) and y grows downwards. Nothing in here depends on how the chart is drawn.
+ */
+public final class ChartLayout {
+
+    public enum LinkKind { UNION, DESCENT }
+
+    /**
+     * A person's box; {@code generation} counts from the root, negative for ancestors. A person can
+     * be shown more than once, every box after the first is {@code repeated} and not expanded.
+     */
+    public record Box(Person person, double x, double y, double width, double height, int generation,
+                      boolean repeated) {
+
+        public double centerX() { return x + width / 2; }
+
+        public double maxX() { return x + width; }
+
+        public double maxY() { return y + height; }
+    }
+
+    /**
+     * One straight segment of a line; {@code marriage} is set on the segment of a {@code UNION} line
+     * that a label belongs to, and null for parents of a child who were never married.
+     */
+    public record Link(LinkKind kind, double x1, double y1, double x2, double y2, Marriage marriage) { }
+
+    private final List<Box> boxes;
+    private final List<Link> links;
+    private final Box root;
+    private final double minX, minY, maxX, maxY;
+
+    ChartLayout(List<Box> boxes, List<Link> links, Box root) {
+        this.boxes = List.copyOf(boxes);
+        this.links = List.copyOf(links);
+        this.root = root;
+
+        double minX = 0, minY = 0, maxX = 0, maxY = 0;
+        for (var b : boxes) {
+            minX = Math.min(minX, b.x());
+            minY = Math.min(minY, b.y());
+            maxX = Math.max(maxX, b.maxX());
+            maxY = Math.max(maxY, b.maxY());
+        }
+        for (var l : links) {
+            minX = Math.min(minX, Math.min(l.x1(), l.x2()));
+            minY = Math.min(minY, Math.min(l.y1(), l.y2()));
+            maxX = Math.max(maxX, Math.max(l.x1(), l.x2()));
+            maxY = Math.max(maxY, Math.max(l.y1(), l.y2()));
+        }
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+    /** The boxes in drawing order, the root's first. */
+    public List<Box> boxes() { return boxes; }
+
+    public List<Link> links() { return links; }
+
+    public Box root() { return root; }
+
+    public double minX() { return minX; }
+
+    public double minY() { return minY; }
+
+    public double maxX() { return maxX; }
+
+    public double maxY() { return maxY; }
+
+    public double width() { return maxX - minX; }
+
+    public double height() { return maxY - minY; }
+
+    /**
+     * The same layout showing {@code live.apply(p)} for every person {@code p}, and the union of the
+     * same id between the new spouses for every union, for a layout computed over copies.
+     */
+    public ChartLayout withPersons(Function<Person, Person> live) {
+
+        var newBoxes = boxes.stream().map(b -> withPerson(b, live)).toList();
+        var newLinks = links.stream().map(l -> {
+            var m = l.marriage();
+            var spouse = m != null ? live.apply(m.getSpouse1()) : null;
+            var union = spouse != null ? spouse.getMarriage(m.getId()) : null;
+            return union != null ? new Link(l.kind(), l.x1(), l.y1(), l.x2(), l.y2(), union) : l;
+        }).toList();
+        return new ChartLayout(newBoxes, newLinks, withPerson(root, live));
+    }
+
+    private static Box withPerson(Box b, Function<Person, Person> live) {
+        return new Box(live.apply(b.person()), b.x(), b.y(), b.width(), b.height(), b.generation(), b.repeated());
+    }
+
+    @Override
+    public String toString() {
+        return "ChartLayout{boxes=" + boxes.size() + ", links=" + links.size() +
+               ", bounds=" + minX + ',' + minY + ' ' + width() + 'x' + height() + '}';
+    }
+}
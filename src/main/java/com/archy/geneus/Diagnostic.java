@@ -0,0 +1,17 @@
+package com.archy.geneus;
+
+/**
+ * One problem found in a family tree, by the loader or by {@link TreeValidator}.
+ *
+ * @param rule      short name of the check that found it, e.g. {@code "parent-cycle"}
+ * @param personId  id of the person it is about, or null if it is not about one person
+ */
+public record Diagnostic(Severity severity, String rule, String personId, String message) {
+
+    public enum Severity { WARNING, ERROR }
+
+    @Override
+    public String toString() {
+        return severity + " [" + rule + "] " + message;
+    }
+}
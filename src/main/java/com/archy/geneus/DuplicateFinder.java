@@ -0,0 +1,358 @@
+package com.archy.geneus;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Finds persons that are probably recorded more than once, typically after archives were merged.
+ * <p>
+ * Instead of comparing every pair, persons are grouped into blocks by a phonetic key (Soundex of the
+ * first and last word of the name, so "Novak" and "Nowak" end up together), and within a block
+ * into buckets by birth year. Each person is compared with everyone in its own bucket and the next
+ * {@link #MAX_YEAR_GAP}, up to {@link #MAX_COMPARISONS}. A person without a birth date could be
+ * anyone in the block, so it is compared with up to {@link #WINDOW} persons of every bucket and of
+ * the other undated ones. A second pass blocks by surname alone among persons with a known birth
+ * date, which catches changed or misspelled given names. The work is proportional to the number of
+ * persons, and the blocks are scored in parallel.
+ * <p>
+ * A pair scores on the similarity of the names (Jaro-Winkler), how well the dates agree and how
+ * many parents and partners the two share, by identity or by a closely matching name. Pairs whose
+ * names or dates are clearly different, or who are directly linked to each other, are never
+ * suggested; siblings share parents but not names.
+ */
+public final class DuplicateFinder {
+
+    public static final double DEFAULT_THRESHOLD = 0.8;
+    public static final int WINDOW = 16;
+    public static final int MAX_COMPARISONS = 128;
+    public static final int MAX_YEAR_GAP = 2;
+
+    private static final double NAME_WEIGHT = 0.55, DATE_WEIGHT = 0.25, RELATIVE_WEIGHT = 0.2;
+    private static final double UNKNOWN = 0.5;
+    private static final double MIN_NAME = 0.85, SAME_NAME = 0.92;
+
+    private DuplicateFinder() { }
+
+    /**
+     * Two persons that may be the same, with the parts of their score, each from 0 to 1.
+     */
+    public record Candidate(Person first, Person second, double score,
+                            double nameScore, double dateScore, double relativeScore) { }
+
+    public static List<Candidate> find(List<Person> people) {
+        return find(people, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Merge candidates scoring at least {@code threshold}, best first.
+     */
+    public static List<Candidate> find(List<Person> people, double threshold) {
+
+        var persons = people.toArray(new Person[0]);
+        var names = new String[persons.length];
+        var letters = new char[persons.length][];
+        IntStream.range(0, persons.length).parallel().forEach(i -> {
+            names[i] = NameIndex.normalize(persons[i].getDisplayName());
+            letters[i] = names[i].toCharArray();
+        });
+
+        Map<Person, Integer> ordinals = new IdentityHashMap<>(persons.length * 2);
+        for (int i = 0; i < persons.length; i++)
+            ordinals.putIfAbsent(persons[i], i);
+        Function<Person, String> nameOf = p -> {
+            var o = ordinals.get(p);
+            return o != null ? names[o] : NameIndex.normalize(p.getDisplayName());
+        };
+
+        var blocks = new ArrayList<int[]>();
+        blocks.addAll(block(persons.length, i -> fullKey(names[i])));
+        blocks.addAll(block(persons.length, i -> persons[i].getBirthDate() == null ? null : lastWordKey(names[i])));
+
+        var compared = new LongAdder();
+        Set<Long> reported = ConcurrentHashMap.newKeySet();
+
+        var candidates = blocks.parallelStream().flatMap(block -> {
+            var found = new ArrayList<Candidate>();
+            forEachPair(block, persons, (a, b) -> {
+                compared.increment();
+                var candidate = score(persons[a], persons[b], letters[a], letters[b], nameOf, threshold);
+                // both passes may meet the same pair
+                if (candidate != null && reported.add(a < b ? (long) a << 32 | b : (long) b << 32 | a))
+                    found.add(candidate);
+            });
+            return found.stream();
+        }).sorted(Comparator.comparingDouble(Candidate::score).reversed()).toList();
+
+        GenealogyApp.log("Compared " + compared.sum() + " pairs in " + blocks.size()
+                         + " blocks, " + candidates.size() + " merge candidates");
+        return candidates;
+    }
+
+    /** Groups the ordinals by key; persons without a key and blocks of one are left out. */
+    private static List<int[]> block(int n, IntFunction<String> key) {
+
+        Map<String, List<Integer>> groups = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            var k = key.apply(i);
+            if (k != null)
+                groups.computeIfAbsent(k, x -> new ArrayList<>(2)).add(i);
+        }
+
+        var blocks = new ArrayList<int[]>();
+        for (var group : groups.values())
+            if (group.size() > 1)
+                blocks.add(group.stream().mapToInt(Integer::intValue).toArray());
+        return blocks;
+    }
+
+    @FunctionalInterface
+    private interface PairAction {
+        void accept(int a, int b);
+    }
+
+    /**
+     * The pairs of a block worth scoring: persons born at most {@link #MAX_YEAR_GAP} years apart,
+     * and every undated person with the first {@link #WINDOW} of each birth year bucket.
+     */
+    private static void forEachPair(int[] block, Person[] persons, PairAction action) {
+
+        Map<Integer, List<Integer>> years = new HashMap<>();
+        List<Integer> undated = new ArrayList<>();
+        for (int i : block) {
+            var born = persons[i].getBirthDate();
+            if (born == null)
+                undated.add(i);
+            else
+                years.computeIfAbsent(born.getYear(), y -> new ArrayList<>(2)).add(i);
+        }
+
+        for (var year : years.entrySet()) {
+            var bucket = year.getValue();
+            for (int k = 0; k < bucket.size(); k++) {
+                int a = bucket.get(k), budget = MAX_COMPARISONS;
+
+                for (int l = k + 1; l < bucket.size() && budget > 0; l++, budget--)
+                    action.accept(a, bucket.get(l));
+
+                for (int gap = 1; gap <= MAX_YEAR_GAP && budget > 0; gap++) {
+                    var later = years.get(year.getKey() + gap);
+                    if (later == null)
+                        continue;
+                    for (int l = 0; l < later.size() && budget > 0; l++, budget--)
+                        action.accept(a, later.get(l));
+                }
+            }
+        }
+
+        for (int k = 0; k < undated.size(); k++) {
+            int a = undated.get(k);
+            for (var bucket : years.values())
+                for (int l = 0; l < bucket.size() && l < WINDOW; l++)
+                    action.accept(a, bucket.get(l));
+            for (int l = k + 1; l < undated.size() && l <= k + WINDOW; l++)
+                action.accept(a, undated.get(l));
+        }
+    }
+
+    private static String fullKey(String name) {
+        if (name.isEmpty())
+            return null;
+        int space = name.indexOf(' ');
+        if (space < 0)
+            return soundex(name);
+        return soundex(name.substring(0, space)) + soundex(name.substring(name.lastIndexOf(' ') + 1));
+    }
+
+    private static String lastWordKey(String name) {
+        return name.isEmpty() ? null : "~" + soundex(name.substring(name.lastIndexOf(' ') + 1));
+    }
+
+    /** Birth or death years more than {@link #MAX_YEAR_GAP} apart; unknown dates never are. */
+    private static boolean tooFarApart(LocalDate a, LocalDate b) {
+        return a != null && b != null && Math.abs(a.getYear() - b.getYear()) > MAX_YEAR_GAP;
+    }
+
+    /** The pair as a candidate, or null if it cannot reach {@code threshold}. */
+    private static Candidate score(Person a, Person b, char[] nameA, char[] nameB,
+                                   Function<Person, String> nameOf, double threshold) {
+
+        if (tooFarApart(a.getDeathDate(), b.getDeathDate()))
+            return null;
+
+        double name = jaroWinkler(nameA, nameB);
+        if (name < MIN_NAME)
+            return null;
+        double dates = dateScore(a, b);
+
+        // relatives are the costly part, skip them if even sharing all would not be enough
+        double partial = NAME_WEIGHT * name + DATE_WEIGHT * dates;
+        if (partial + RELATIVE_WEIGHT < threshold || linked(a, b))
+            return null;
+
+        double relatives = relativeScore(a, b, nameOf);
+        double score = partial + RELATIVE_WEIGHT * relatives;
+        return score < threshold ? null : new Candidate(a, b, score, name, dates, relatives);
+    }
+
+    private static boolean linked(Person a, Person b) {
+        return a.hasParent(b) || b.hasParent(a) || a.getMarriageWith(b) != null;
+    }
+
+    /**
+     * Average agreement of the birth and death dates known for both; a differing date counts
+     * against the pair, since namesakes born in the same year are common.
+     */
+    private static double dateScore(Person a, Person b) {
+
+        double sum = 0;
+        int known = 0;
+
+        for (var pair : new LocalDate[][] { { a.getBirthDate(), b.getBirthDate() }, { a.getDeathDate(), b.getDeathDate() } }) {
+            if (pair[0] == null || pair[1] == null)
+                continue;
+            known++;
+            int years = Math.abs(pair[0].getYear() - pair[1].getYear());
+            sum += pair[0].equals(pair[1]) ? 1 : years == 0 ? 0.5 : years == 1 ? 0.3 : 0;
+        }
+        return known == 0 ? UNKNOWN : sum / known;
+    }
+
+    /**
+     * Share of the known parents and partners of {@code a} that {@code b} has too; neutral if
+     * either has none to compare.
+     */
+    private static double relativeScore(Person a, Person b, Function<Person, String> nameOf) {
+
+        int known = 0, shared = 0;
+
+        var parentsB = b.getParents();
+        if (!parentsB.isEmpty()) {
+            for (var p : a.getParents()) {
+                known++;
+                if (containsSame(parentsB, p, nameOf)) shared++;
+            }
+        }
+
+        var partnersB = b.getPartners();
+        if (!partnersB.isEmpty()) {
+            for (var p : a.getPartners()) {
+                known++;
+                if (containsSame(partnersB, p, nameOf)) shared++;
+            }
+        }
+
+        return known == 0 ? UNKNOWN : (double) shared / known;
+    }
+
+    private static boolean containsSame(List<Person> people, Person p, Function<Person, String> nameOf) {
+        var name = nameOf.apply(p);
+        for (var q : people)
+            if (q == p || jaroWinkler(name, nameOf.apply(q)) >= SAME_NAME)
+                return true;
+        return false;
+    }
+
+    /**
+     * American Soundex: the first letter and three digits for the consonant groups that follow.
+     * Expects a word from {@link NameIndex#normalize}; digits and other letters are skipped.
+     */
+    static String soundex(String word) {
+
+        var code = new char[] { '0', '0', '0', '0' };
+        int length = 0;
+        char last = 0;
+
+        for (int i = 0; i < word.length() && length < 4; i++) {
+            char c = word.charAt(i);
+            char digit = soundexDigit(c);
+
+            if (length == 0) {
+                if (c < 'a' || c > 'z')
+                    continue;
+                code[length++] = Character.toUpperCase(c);
+                last = digit;
+                continue;
+            }
+
+            if (digit == 0) {
+                // vowels separate equal codes, h and w do not
+                if (c != 'h' && c != 'w')
+                    last = 0;
+                continue;
+            }
+            if (digit != last)
+                code[length++] = digit;
+            last = digit;
+        }
+        return length == 0 ? "" : new String(code);
+    }
+
+    private static char soundexDigit(char c) {
+        return switch (c) {
+            case 'b', 'f', 'p', 'v' -> '1';
+            case 'c', 'g', 'j', 'k', 'q', 's', 'x', 'z' -> '2';
+            case 'd', 't' -> '3';
+            case 'l' -> '4';
+            case 'm', 'n' -> '5';
+            case 'r' -> '6';
+            default -> 0;
+        };
+    }
+
+    static double jaroWinkler(String a, String b) {
+        return a.equals(b) ? 1 : jaroWinkler(a.toCharArray(), b.toCharArray());
+    }
+
+    private static double jaroWinkler(char[] a, char[] b) {
+
+        if (a.length == 0 || b.length == 0)
+            return 0;
+
+        int range = Math.max(0, Math.max(a.length, b.length) / 2 - 1);
+        var matchedA = new boolean[a.length];
+        var matchedB = new boolean[b.length];
+        int matches = 0;
+
+        for (int i = 0; i < a.length; i++) {
+            char c = a[i];
+            int from = Math.max(0, i - range), to = Math.min(b.length - 1, i + range);
+            for (int j = from; j <= to; j++) {
+                if (b[j] == c && !matchedB[j]) {
+                    matchedA[i] = matchedB[j] = true;
+                    matches++;
+                    break;
+                }
+            }
+        }
+        if (matches == 0)
+            return 0;
+
+        int transpositions = 0;
+        for (int i = 0, j = 0; i < a.length; i++) {
+            if (!matchedA[i]) continue;
+            while (!matchedB[j]) j++;
+            if (a[i] != b[j]) transpositions++;
+            j++;
+        }
+
+        double m = matches;
+        double jaro = (m / a.length + m / b.length + (m - transpositions / 2.0) / m) / 3;
+
+        int prefix = 0;
+        while (prefix < 4 && prefix < a.length && prefix < b.length && a[prefix] == b[prefix])
+            prefix++;
+
+        return jaro + prefix * 0.1 * (1 - jaro);
+    }
+}
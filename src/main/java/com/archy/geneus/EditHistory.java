@@ -0,0 +1,77 @@
+package com.archy.geneus;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Undo and redo over {@link TreeVersion}s. The versions share their unchanged records, so the
+ * history is not limited; each step costs only what the edit changed.
+ */
+public final class EditHistory {
+
+    private final Deque<TreeVersion> undo = new ArrayDeque<>();
+    private final Deque<TreeVersion> redo = new ArrayDeque<>();
+    private TreeVersion current;
+
+    public EditHistory(TreeVersion initial) {
+        current = initial;
+    }
+
+    /** Forgets all steps, for example after another tree was loaded. */
+    public void reset(TreeVersion initial) {
+        undo.clear();
+        redo.clear();
+        current = initial;
+    }
+
+    /** Makes {@code version} the current one after an edit; the steps that could be redone are dropped. */
+    public void record(TreeVersion version) {
+        if (version == current)
+            return;
+        undo.push(current);
+        redo.clear();
+        current = version;
+    }
+
+    public TreeVersion current() {
+        return current;
+    }
+
+    public boolean canUndo() {
+        return !undo.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redo.isEmpty();
+    }
+
+    /** The version before the current one, which becomes current; null if there is none. */
+    public TreeVersion undo() {
+        if (undo.isEmpty())
+            return null;
+        redo.push(current);
+        current = undo.pop();
+        return current;
+    }
+
+    public TreeVersion redo() {
+        if (redo.isEmpty())
+            return null;
+        undo.push(current);
+        current = redo.pop();
+        return current;
+    }
+
+    /** A version still held by the history, to compare with; null if it is not. */
+    public TreeVersion find(long number) {
+        if (current.number() == number)
+            return current;
+        for (var v : undo)
+            if (v.number() == number)
+                return v;
+        for (var v : redo)
+            if (v.number() == number)
+                return v;
+        return null;
+    }
+}
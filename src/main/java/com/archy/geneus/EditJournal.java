@@ -0,0 +1,334 @@
+package com.archy.geneus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of edits made since the tree file was last written in full.
+ * <p>
+ * Every record is {@code length, crc32, payload} and is forced to disk before the append returns.
+ * Replaying stops at the first torn or corrupt record, which is where a crash interrupted the last write.
+ * All operations are idempotent, so replaying edits that already made it into the tree file is harmless.
+ */
+public final class EditJournal implements AutoCloseable {
+
+    public static final String EXTENSION = ".journal";
+
+    private static final byte ADD_PERSON = 1;
+    private static final byte UPDATE_PERSON = 2;
+    private static final byte SET_PARENTS = 3;
+    private static final byte REMOVE_PERSON = 5;
+    private static final byte ADD_UNION = 7;
+
+    private static final int RECORD_HEADER = 2 * Integer.BYTES;
+    private static final int MAX_RECORD = 1 << 20;
+
+    private final Path path;
+    private FileChannel channel;
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+    private final DataOutputStream payload = new DataOutputStream(buffer);
+    private final CRC32 crc = new CRC32();
+
+    private int recordCount;
+
+    private EditJournal(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+    }
+
+    public static EditJournal open(String treeFilePath) throws IOException {
+        var path = Path.of(treeFilePath + EXTENSION);
+        var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new EditJournal(path, channel);
+    }
+
+    public Path getPath() { return path; }
+
+    public synchronized int getRecordCount() { return recordCount; }
+
+    public synchronized void recordAdd(Person p) throws IOException {
+        begin(ADD_PERSON);
+        writePersonFields(p);
+        commit();
+    }
+
+    public synchronized void recordUpdate(Person p) throws IOException {
+        begin(UPDATE_PERSON);
+        writePersonFields(p);
+        commit();
+    }
+
+    public synchronized void recordParents(Person p) throws IOException {
+        begin(SET_PARENTS);
+        writeString(p.getId());
+        writeString(p.getParent1() != null ? p.getParent1().getId() : null);
+        writeString(p.getParent2() != null ? p.getParent2().getId() : null);
+        commit();
+    }
+
+    public synchronized void recordRemove(Person p) throws IOException {
+        begin(REMOVE_PERSON);
+        writeString(p.getId());
+        commit();
+    }
+
+    public synchronized void recordMarriage(Marriage m) throws IOException {
+        begin(ADD_UNION);
+        writeString(m.getId());
+        writeString(m.getSpouse1().getId());
+        writeString(m.getSpouse2().getId());
+        payload.writeInt(FamilyTreeSnapshot.toEpochDay(m.getStartDate()));
+        writeString(m.getStartArea());
+        writeString(m.getStartCountry());
+        payload.writeInt(FamilyTreeSnapshot.toEpochDay(m.getEndDate()));
+        writeString(m.getEndArea());
+        writeString(m.getEndCountry());
+        commit();
+    }
+
+    /**
+     * Applies every intact record to {@code people}, whose unions use {@code places}, and drops a torn
+     * tail, if any. Returns the number of records applied.
+     */
+    public synchronized int replay(List<Person> people, PlaceDictionary places) throws IOException {
+
+        Map<String, Person> index = new HashMap<>();
+        for (var p : people)
+            index.putIfAbsent(p.getId(), p);
+
+        var header = ByteBuffer.allocate(RECORD_HEADER);
+        long position = 0, size = channel.size();
+        int applied = 0;
+
+        while (position + RECORD_HEADER <= size) {
+
+            header.clear();
+            channel.read(header, position);
+            header.flip();
+
+            int length = header.getInt();
+            int checksum = header.getInt();
+
+            if (length <= 0 || length > MAX_RECORD || position + RECORD_HEADER + length > size)
+                break;
+
+            var body = ByteBuffer.allocate(length);
+            channel.read(body, position + RECORD_HEADER);
+
+            crc.reset();
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != checksum)
+                break;
+
+            apply(new DataInputStream(new ByteArrayInputStream(body.array())), people, index, places);
+            position += RECORD_HEADER + length;
+            applied++;
+        }
+
+        if (position < size) {
+            GenealogyApp.log("Dropping " + (size - position) + " bytes of incomplete journal in " + path);
+            channel.truncate(position);
+            channel.force(true);
+        }
+
+        channel.position(position);
+        recordCount = applied;
+        return applied;
+    }
+
+    /**
+     * Forgets all records; called once the tree file has been rewritten in full.
+     */
+    public synchronized void reset() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+        recordCount = 0;
+    }
+
+    public record Mark(long position, int records) { }
+
+    /**
+     * Marks the current end of the journal, to be passed to {@link #discardUpTo} once
+     * a snapshot taken at this point has been written.
+     */
+    public synchronized Mark mark() throws IOException {
+        return new Mark(channel.position(), recordCount);
+    }
+
+    /**
+     * Drops the records before {@code mark} but keeps anything appended after it.
+     * The remaining tail is copied into a new file that atomically replaces the journal.
+     */
+    public synchronized void discardUpTo(Mark mark) throws IOException {
+
+        long end = channel.position();
+        if (mark.position() >= end) {
+            reset();
+            return;
+        }
+
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            long copied = 0;
+            while (copied < end - mark.position())
+                copied += channel.transferTo(mark.position() + copied, end - mark.position() - copied, out);
+            out.force(true);
+        }
+
+        channel.close();
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        }
+
+        recordCount -= mark.records();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void apply(DataInputStream in, List<Person> people, Map<String, Person> index,
+                       PlaceDictionary places) throws IOException {
+
+        byte op = in.readByte();
+
+        switch (op) {
+
+            case ADD_PERSON, UPDATE_PERSON -> {
+                String id = readString(in);
+                String name = readString(in);
+
+                var person = index.get(id);
+                if (person == null) {
+                    person = new Person(id, name);
+                    index.put(id, person);
+                    people.add(person);
+                }
+
+                person.setDisplayName(name);
+                person.setBirthDate(FamilyTreeSnapshot.fromEpochDay(in.readInt()));
+                person.setDeathDate(FamilyTreeSnapshot.fromEpochDay(in.readInt()));
+            }
+
+            case SET_PARENTS -> {
+                var person = index.get(readString(in));
+                var parent1 = lookup(index, readString(in));
+                var parent2 = lookup(index, readString(in));
+
+                if (person != null) {
+                    person.setParent1(parent1);
+                    person.setParent2(parent2);
+                }
+            }
+
+            case REMOVE_PERSON -> {
+                var person = index.remove(readString(in));
+
+                if (person != null) {
+                    person.unlink();
+                    people.remove(person);
+                }
+            }
+
+            case ADD_UNION -> {
+                var id = readString(in);
+                var spouse1 = index.get(readString(in));
+                var spouse2 = index.get(readString(in));
+
+                if (spouse1 == null || spouse2 == null || spouse1.getMarriage(id) != null)
+                    readMarriageFields(in, null);
+                else
+                    spouse1.addMarriage(readMarriageFields(in, new Marriage(places, id, spouse1, spouse2)));
+            }
+
+            default -> throw new IOException("Unknown journal record type " + op + " in " + path);
+        }
+    }
+
+    /**
+     * Reads the date and place fields into {@code m}, or skips them if it is null.
+     */
+    private static Marriage readMarriageFields(DataInputStream in, Marriage m) throws IOException {
+
+        var startDate = FamilyTreeSnapshot.fromEpochDay(in.readInt());
+        var startArea = readString(in);
+        var startCountry = readString(in);
+        var endDate = FamilyTreeSnapshot.fromEpochDay(in.readInt());
+        var endArea = readString(in);
+        var endCountry = readString(in);
+
+        if (m != null) {
+            m.setStartDate(startDate);
+            m.setStartArea(startArea);
+            m.setStartCountry(startCountry);
+            m.setEndDate(endDate);
+            m.setEndArea(endArea);
+            m.setEndCountry(endCountry);
+        }
+        return m;
+    }
+
+    private static Person lookup(Map<String, Person> index, String id) {
+        return id == null ? null : index.get(id);
+    }
+
+    private void writePersonFields(Person p) throws IOException {
+        writeString(p.getId());
+        writeString(p.getDisplayName());
+        payload.writeInt(FamilyTreeSnapshot.toEpochDay(p.getBirthDate()));
+        payload.writeInt(FamilyTreeSnapshot.toEpochDay(p.getDeathDate()));
+    }
+
+    private void writeString(String s) throws IOException {
+        payload.writeBoolean(s != null);
+        if (s != null)
+            payload.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private void begin(byte op) throws IOException {
+        buffer.reset();
+        payload.writeByte(op);
+    }
+
+    private void commit() throws IOException {
+
+        payload.flush();
+        byte[] body = buffer.toByteArray();
+
+        crc.reset();
+        crc.update(body);
+
+        var record = ByteBuffer.allocate(RECORD_HEADER + body.length);
+        record.putInt(body.length).putInt((int) crc.getValue()).put(body).flip();
+
+        while (record.hasRemaining())
+            channel.write(record);
+
+        channel.force(false);
+        recordCount++;
+    }
+}
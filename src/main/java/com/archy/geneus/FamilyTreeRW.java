@@ -1,223 +1,355 @@
 package com.archy.geneus;
 
-import org.w3c.dom.Element;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import java.io.File;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.LinkedHashSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.function.Consumer;
 
 
 public final class FamilyTreeRW {
 
-    public static List<Person> loadFamilyTree(String filePath) throws Exception {
+    public static final String COMPRESSED_EXTENSION = ".xml.gz";
+
+    public static List<Person> loadFamilyTree(String filePath, PlaceDictionary places) throws Exception {
+        return loadFamilyTree(filePath, places, problem -> { });
+    }
+
+    /**
+     * Loads the tree, with the places of its unions in {@code places}, and reports references it had
+     * to drop: ids of children or spouses that no person has, and children listed by more than two parents.
+     */
+    public static List<Person> loadFamilyTree(String filePath, PlaceDictionary places, Consumer<Diagnostic> problems) throws Exception {
 
         List<Person> people = new ArrayList<>();
+        Map<String, Person> index = new HashMap<>();
 
-        var dbf = DocumentBuilderFactory.newInstance();
-        var db = dbf.newDocumentBuilder();
-        var doc = db.parse(new File(filePath));
-        doc.getDocumentElement().normalize();
+        Map<String, String> placeNames = new HashMap<>();
 
+        List<Person> childParents = new ArrayList<>();
+        List<String> childIds = new ArrayList<>();
 
-        var personsWrap = (Element) doc.getElementsByTagName("persons").item(0);
-        var persons = personsWrap.getElementsByTagName("person");
+        var xif = XMLInputFactory.newInstance();
+        xif.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xif.setProperty(XMLInputFactory.IS_COALESCING, false);
 
-        for (int i = 0; i < persons.getLength(); i++) {
+        try (var in = openInput(filePath)) {
 
-            var personEl = (Element) persons.item(i);
-            String id = personEl.getAttribute("id");
-            String name = personEl.getAttribute("name");
-            String birthDateStr = personEl.getAttribute("birthDate");
-            String deathDateStr = personEl.getAttribute("deathDate");
+            var reader = xif.createXMLStreamReader(in);
+            Person current = null;
 
-            Person person = new Person(id, name);
-            if (!birthDateStr.isEmpty()) person.setBirthDate(LocalDate.parse(birthDateStr));
-            if (!deathDateStr.isEmpty()) person.setDeathDate(LocalDate.parse(deathDateStr));
+            while (reader.hasNext()) {
 
+                if (reader.next() != XMLStreamConstants.START_ELEMENT)
+                    continue;
 
-            people.add(person);
-        }
+                switch (reader.getLocalName()) {
 
-        var marriagesWrap = (Element) doc.getElementsByTagName("marriages").item(0);
-        var marriages = marriagesWrap.getElementsByTagName("marriage");
+                    case "person" -> {
+                        String id = reader.getAttributeValue(null, "id");
+                        String name = reader.getAttributeValue(null, "name");
 
-        for (int i = 0; i < marriages.getLength(); i++) {
+                        current = new Person(id, name);
+                        current.setBirthDate(parseDate(reader.getAttributeValue(null, "birthDate")));
+                        current.setDeathDate(parseDate(reader.getAttributeValue(null, "deathDate")));
 
-            var marriageEl = (Element) marriages.item(i);
-            var spouse1Id = marriageEl.getAttribute("spouse1");
-            var spouse2Id = marriageEl.getAttribute("spouse2");
+                        people.add(current);
+                        index.putIfAbsent(id, current);
+                    }
 
-            var spouse1 = Person.getPersonByID(people, spouse1Id);
-            var spouse2 = Person.getPersonByID(people, spouse2Id);
+                    case "child" -> {
+                        if (current != null) {
+                            childParents.add(current);
+                            childIds.add(reader.getAttributeValue(null, "id"));
+                        }
+                    }
 
-            if (spouse1 != null && spouse2 != null) {
+                    case "marriage" -> {
+                        var id1 = reader.getAttributeValue(null, "spouse1");
+                        var id2 = reader.getAttributeValue(null, "spouse2");
+                        var spouse1 = index.get(id1);
+                        var spouse2 = index.get(id2);
 
-                var marriage1 = new Marriage(spouse2);
-                var marriage2 = new Marriage(spouse1);
+                        if (spouse1 != null && spouse2 != null)
+                            readMarriage(reader, spouse1, spouse2, places, placeNames);
+                        else
+                            problems.accept(new Diagnostic(Diagnostic.Severity.WARNING, TreeValidator.DANGLING_REFERENCE,
+                                spouse1 != null ? id1 : id2,
+                                "Marriage of " + id1 + " and " + id2 + " names a person that does not exist, dropped"));
+                    }
 
-                marriage1.setStartDate(LocalDate.parse(marriageEl.getAttribute("startDate")));
-                marriage2.setStartDate(LocalDate.parse(marriageEl.getAttribute("startDate")));
-                marriage1.setStartArea(marriageEl.getAttribute("startArea"));
-                marriage2.setStartArea(marriageEl.getAttribute("startArea"));
-                marriage1.setStartCountry(marriageEl.getAttribute("startCountry"));
-                marriage2.setStartCountry(marriageEl.getAttribute("startCountry"));
-                marriage1.setEndDate(LocalDate.parse(marriageEl.getAttribute("endDate")));
-                marriage2.setEndDate(LocalDate.parse(marriageEl.getAttribute("endDate")));
-                marriage1.setEndArea(marriageEl.getAttribute("endArea"));
-                marriage2.setEndArea(marriageEl.getAttribute("endArea"));
-                marriage1.setEndCountry(marriageEl.getAttribute("endCountry"));
-                marriage2.setEndCountry(marriageEl.getAttribute("endCountry"));
+                    case "place" -> placeNames.put(reader.getAttributeValue(null, "id"), reader.getAttributeValue(null, "name"));
 
-                spouse1.addMarriage(marriage1);
-                spouse2.addMarriage(marriage2);
+                    case "places", "marriages" -> current = null;
 
+                    default -> { }
+                }
             }
+
+            reader.close();
         }
 
-        for (int i = 0; i < persons.getLength(); i++) {
+        // child links are resolved only once every person is indexed, so forward references work
+        for (int i = 0; i < childIds.size(); i++) {
+            var parent = childParents.get(i);
+            var child = index.get(childIds.get(i));
+
+            if (child == null)
+                problems.accept(new Diagnostic(Diagnostic.Severity.WARNING, TreeValidator.DANGLING_REFERENCE, parent.getId(),
+                    parent.getId() + " lists child " + childIds.get(i) + ", who does not exist"));
+            else if (!parent.addChild(child))
+                problems.accept(new Diagnostic(Diagnostic.Severity.WARNING, TreeValidator.EXTRA_PARENT, child.getId(),
+                    parent.getId() + " lists child " + child.getId() + ", who already has two parents"));
+        }
 
-            var personEl = (Element) persons.item(i);
-            var id = personEl.getAttribute("id");
-            var person = Person.getPersonByID(people, id);
+        return people;
+    }
 
-            if (person != null) {
+    private static void readMarriage(XMLStreamReader reader, Person spouse1, Person spouse2,
+                                     PlaceDictionary places, Map<String, String> placeNames) {
 
-                var children = personEl.getElementsByTagName("child");
+        var id = reader.getAttributeValue(null, "id");
+        var marriage = id != null && spouse1.getMarriage(id) == null
+                ? new Marriage(places, id, spouse1, spouse2)
+                : new Marriage(places, spouse1, spouse2);
 
-                for (int j = 0; j < children.getLength(); j++) {
+        marriage.setStartDate(parseDate(reader.getAttributeValue(null, "startDate")));
+        marriage.setStartArea(readPlace(reader, "startArea", placeNames));
+        marriage.setStartCountry(readPlace(reader, "startCountry", placeNames));
+        marriage.setEndDate(parseDate(reader.getAttributeValue(null, "endDate")));
+        marriage.setEndArea(readPlace(reader, "endArea", placeNames));
+        marriage.setEndCountry(readPlace(reader, "endCountry", placeNames));
 
-                    var childEl = (Element) children.item(j);
+        spouse1.addMarriage(marriage);
+    }
 
-                    String childId = childEl.getAttribute("id");
-                    var child = Person.getPersonByID(people, childId);
+    /** A reference into the {@code <places>} section, or the name itself in files written before it. */
+    private static String readPlace(XMLStreamReader reader, String attribute, Map<String, String> places) {
+        var ref = reader.getAttributeValue(null, attribute + "Id");
+        return ref != null ? places.get(ref) : reader.getAttributeValue(null, attribute);
+    }
 
-                    if (child != null)
-                        person.addChild(child);
+    private static InputStream openInput(String filePath) throws IOException {
+        var in = new BufferedInputStream(new FileInputStream(filePath), 1 << 16);
+        return PipelinedStreams.isCompressed(filePath) ? PipelinedStreams.inflating(in) : in;
+    }
 
-                }
-            }
-        }
+    private static LocalDate parseDate(String value) {
+        return value == null || value.isEmpty() ? null : LocalDate.parse(value);
+    }
 
-        for (var person : people) {
-            if (person.getParent1() != null)
-                person.getParent1().addChild(person);
+    public static void saveFamilyTree(List<Person> people, String filePath) throws Exception {
 
-            if (person.getParent2() != null)
-                person.getParent2().addChild(person);
+        writeAtomically(filePath, stream -> {
 
-        }
+            if (!PipelinedStreams.isCompressed(filePath)) {
+                writeDocument(people, stream);
+                return;
+            }
 
-        return people;
+            try (var out = PipelinedStreams.deflating(stream)) {
+                writeDocument(people, out);
+            }
+        });
+
+        System.out.println("Family tree saved to " + filePath);
     }
 
-    public static void saveFamilyTree(List<Person> people, String filePath) throws Exception {
+    private static void writeDocument(List<Person> people, OutputStream out) throws XMLStreamException {
 
-        var dbf = DocumentBuilderFactory.newInstance();
-        var db = dbf.newDocumentBuilder();
-        var doc = db.newDocument();
+        var xof = XMLOutputFactory.newInstance();
+        var writer = xof.createXMLStreamWriter(out, "UTF-8");
 
-        var root = doc.createElement("familyTree");
-        doc.appendChild(root);
+        writer.writeStartDocument("UTF-8", "1.0");
+        newLine(writer, 0);
+        writer.writeStartElement("familyTree");
+        newLine(writer, 1);
+        writer.writeStartElement("persons");
 
-        var personsWrap = doc.createElement("persons");
-        root.appendChild(personsWrap);
+        for (var person : people)
+            writePerson(writer, person);
 
-        List<Element> marriageElements = new ArrayList<>();
-        Set<String> seenMarriages = new HashSet<>();
+        newLine(writer, 1);
+        writer.writeEndElement();
 
-        for (var person : people) {
-            var personEl = doc.createElement("person");
-            personEl.setAttribute("id", person.getId());
+        var places = writePlaces(writer, people);
 
-            if (person.getDisplayName() != null) {
-                personEl.setAttribute("name", person.getDisplayName());
-            }
+        newLine(writer, 1);
+        writer.writeStartElement("marriages");
 
-            if (person.getBirthDate() != null) {
-                personEl.setAttribute("birthDate", person.getBirthDate().toString());
-            }
+        for (var person : people)
+            for (var m : person.getMarriages())
+                if (m.getSpouse1() == person)
+                    writeMarriage(writer, m, places);
 
-            if (person.getDeathDate() != null) {
-                personEl.setAttribute("deathDate", person.getDeathDate().toString());
-            }
+        newLine(writer, 1);
+        writer.writeEndElement();
+        newLine(writer, 0);
+        writer.writeEndElement();
+        newLine(writer, 0);
+        writer.writeEndDocument();
 
-            if (person.getParent1() != null) {
-                personEl.setAttribute("parent1", person.getParent1().getId());
-            }
+        writer.flush();
+        writer.close();
+    }
 
+    /**
+     * Writes every place name used by the marriages once and returns the reference of each, which
+     * marriages then use instead of the name. Names are read through each union's own dictionary.
+     */
+    private static Map<String, Integer> writePlaces(XMLStreamWriter writer, List<Person> people) throws XMLStreamException {
+
+        Map<String, Integer> places = new LinkedHashMap<>();
+        for (var person : people)
+            for (var m : person.getMarriages())
+                if (m.getSpouse1() == person)
+                    for (var name : new String[] { m.getStartArea(), m.getStartCountry(), m.getEndArea(), m.getEndCountry() })
+                        if (name != null)
+                            places.putIfAbsent(name, places.size());
+
+        if (places.isEmpty())
+            return places;
+
+        newLine(writer, 1);
+        writer.writeStartElement("places");
+        for (var place : places.entrySet()) {
+            newLine(writer, 2);
+            writer.writeEmptyElement("place");
+            writer.writeAttribute("id", place.getValue().toString());
+            writer.writeAttribute("name", place.getKey());
+        }
+        newLine(writer, 1);
+        writer.writeEndElement();
 
-            if (person.getParent2() != null) {
-                personEl.setAttribute("parent2", person.getParent2().getId());
-            }
+        return places;
+    }
 
-            for (var child : new LinkedHashSet<>(person.getDescendants())) {
-                Element childEl = doc.createElement("child");
-                childEl.setAttribute("id", child.getId());
-                personEl.appendChild(childEl);
-            }
+    private static void writePerson(XMLStreamWriter writer, Person person) throws XMLStreamException {
 
-            personsWrap.appendChild(personEl);
+        var descendants = person.getDescendants();
 
-            for (var m : person.getMarriages()) {
+        newLine(writer, 2);
+        if (descendants.isEmpty())
+            writer.writeEmptyElement("person");
+        else
+            writer.writeStartElement("person");
 
-                String id1 = person.getId();
-                String id2 = m.getSpouse().getId();
-                String key = id1.compareTo(id2) < 0 ? id1 + '-' + id2 : id2 + '-' + id1;
+        writer.writeAttribute("id", person.getId());
 
-                if (!seenMarriages.contains(key)) {
+        if (person.getDisplayName() != null)
+            writer.writeAttribute("name", person.getDisplayName());
 
-                    var marriageEl = doc.createElement("marriage");
-                    marriageEl.setAttribute("spouse1", id1);
-                    marriageEl.setAttribute("spouse2", id2);
+        if (person.getBirthDate() != null)
+            writer.writeAttribute("birthDate", person.getBirthDate().toString());
 
-                    if (m.getStartDate() != null)
-                        marriageEl.setAttribute("startDate", m.getStartDate().toString());
+        if (person.getDeathDate() != null)
+            writer.writeAttribute("deathDate", person.getDeathDate().toString());
 
-                    if (m.getStartArea() != null)
-                        marriageEl.setAttribute("startArea", m.getStartArea());
+        if (person.getParent1() != null)
+            writer.writeAttribute("parent1", person.getParent1().getId());
 
-                    if (m.getStartCountry() != null)
-                        marriageEl.setAttribute("startCountry", m.getStartCountry());
+        if (person.getParent2() != null)
+            writer.writeAttribute("parent2", person.getParent2().getId());
 
-                    if (m.getEndDate() != null)
-                        marriageEl.setAttribute("endDate", m.getEndDate().toString());
+        if (descendants.isEmpty())
+            return;
 
-                    if (m.getEndArea() != null)
-                        marriageEl.setAttribute("endArea", m.getEndArea());
+        for (var child : descendants) {
+            newLine(writer, 3);
+            writer.writeEmptyElement("child");
+            writer.writeAttribute("id", child.getId());
+        }
 
-                    if (m.getEndCountry() != null)
-                        marriageEl.setAttribute("endCountry", m.getEndCountry());
+        newLine(writer, 2);
+        writer.writeEndElement();
+    }
 
-                    marriageElements.add(marriageEl);
-                    seenMarriages.add(key);
-                }
-            }
-        }
+    private static void writeMarriage(XMLStreamWriter writer, Marriage m, Map<String, Integer> places) throws XMLStreamException {
 
-        var marriageWrap = doc.createElement("marriages");
-        root.appendChild(marriageWrap);
-        for (Element marriageEl : marriageElements)
-            marriageWrap.appendChild(marriageEl);
+        newLine(writer, 2);
+        writer.writeEmptyElement("marriage");
+        writer.writeAttribute("id", m.getId());
+        writer.writeAttribute("spouse1", m.getSpouse1().getId());
+        writer.writeAttribute("spouse2", m.getSpouse2().getId());
 
+        if (m.getStartDate() != null)
+            writer.writeAttribute("startDate", m.getStartDate().toString());
 
-        var tf = TransformerFactory.newInstance();
-        var transformer = tf.newTransformer();
-        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-        transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
+        writePlace(writer, "startAreaId", m.getStartArea(), places);
+        writePlace(writer, "startCountryId", m.getStartCountry(), places);
 
-        var source = new DOMSource(doc);
-        var result = new StreamResult(new File(filePath));
-        transformer.transform(source, result);
+        if (m.getEndDate() != null)
+            writer.writeAttribute("endDate", m.getEndDate().toString());
 
-        System.out.println("Family tree saved to " + filePath);
+        writePlace(writer, "endAreaId", m.getEndArea(), places);
+        writePlace(writer, "endCountryId", m.getEndCountry(), places);
+    }
+
+    private static void writePlace(XMLStreamWriter writer, String attribute, String name, Map<String, Integer> places) throws XMLStreamException {
+        if (name != null)
+            writer.writeAttribute(attribute, places.get(name).toString());
+    }
+
+    private static void newLine(XMLStreamWriter writer, int depth) throws XMLStreamException {
+        writer.writeCharacters("\n");
+        for (int i = 0; i < depth; i++)
+            writer.writeCharacters(INDENT);
+    }
+
+    private static final String INDENT = "    ";
+
+    @FunctionalInterface
+    interface StreamBody {
+        void writeTo(OutputStream out) throws Exception;
+    }
+
+    /**
+     * Writes into a temporary file next to the target and moves it over the target only once
+     * the content is complete and synced, so a crash never leaves a half-written file behind.
+     * Every write gets a temporary file of its own, so two saves to the same path cannot touch
+     * each other's; the last to finish wins.
+     */
+    static void writeAtomically(String filePath, StreamBody body) throws Exception {
+
+        var target = Path.of(filePath).toAbsolutePath();
+        var tmp = Files.createTempFile(target.getParent(), target.getFileName() + ".", ".tmp");
+
+        try {
+            try (var fos = new FileOutputStream(tmp.toFile());
+                 var out = new BufferedOutputStream(fos, 1 << 16)) {
+                body.writeTo(out);
+                out.flush();
+                fos.getFD().sync();
+            }
+
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
     }
 }
@@ -0,0 +1,364 @@
+package com.archy.geneus;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Binary snapshot of a family tree, an alternative to the XML files written by {@link FamilyTreeRW}.
+ * <p>
+ * Layout (big-endian ints):
+ * <pre>
+ * header     magic, version, stringCount, personCount, childEdgeCount, marriageCount, marriageEdgeCount
+ * strings    stringCount + 1 offsets into the UTF-8 blob, then the blob itself
+ * persons    personCount records of PERSON_INTS ints
+ * children   childEdgeCount person ordinals
+ * marriages  marriageCount records of MARRIAGE_INTS ints
+ * mEdges     marriageEdgeCount marriage ordinals, the per-person marriage lists
+ * idIndex    personCount person ordinals sorted by id
+ * </pre>
+ * Strings are referenced by table index, persons and marriages by ordinal, dates as epoch days.
+ * Missing values are stored as {@link #NONE} or {@link #NO_DATE}.
+ */
+public final class FamilyTreeSnapshot {
+
+    public static final String EXTENSION = ".gnb";
+
+    static final int MAGIC = 0x474E5553; // "GNUS"
+    static final int VERSION = 3;
+
+    static final int NONE = -1;
+    static final int NO_DATE = Integer.MIN_VALUE;
+
+    static final int HEADER_INTS = 7;
+
+    static final int PERSON_INTS = 10;
+    static final int P_ID = 0, P_NAME = 4, P_BIRTH = 8, P_DEATH = 12, P_PARENT1 = 16, P_PARENT2 = 20,
+                     P_CHILD_START = 24, P_CHILD_COUNT = 28, P_MARRIAGE_START = 32, P_MARRIAGE_COUNT = 36;
+
+    static final int MARRIAGE_INTS = 9;
+    static final int M_SPOUSE1 = 0, M_SPOUSE2 = 4, M_START_DATE = 8, M_START_AREA = 12, M_START_COUNTRY = 16,
+                     M_END_DATE = 20, M_END_AREA = 24, M_END_COUNTRY = 28, M_ID = 32;
+
+    private FamilyTreeSnapshot() { }
+
+    public static void saveSnapshot(List<Person> people, String filePath) throws Exception {
+
+        Map<Person, Integer> ordinals = new IdentityHashMap<>();
+        for (var person : people)
+            ordinals.put(person, ordinals.size());
+
+        var strings = new StringTable();
+        List<Marriage> marriages = new ArrayList<>();
+        Map<Marriage, Integer> marriageOrdinals = new IdentityHashMap<>();
+        int childEdges = 0, marriageEdges = 0;
+
+        for (var person : people) {
+            strings.add(person.getId());
+            strings.add(person.getDisplayName());
+            childEdges += person.getDescendants().size();
+            marriageEdges += person.getMarriages().size();
+
+            for (var m : person.getMarriages()) {
+                if (marriageOrdinals.putIfAbsent(m, marriages.size()) == null) {
+                    marriages.add(m);
+                    strings.add(m.getId());
+                    strings.add(m.getStartArea());
+                    strings.add(m.getStartCountry());
+                    strings.add(m.getEndArea());
+                    strings.add(m.getEndCountry());
+                }
+            }
+        }
+
+        int totalChildEdges = childEdges, totalMarriageEdges = marriageEdges;
+
+        FamilyTreeRW.writeAtomically(filePath, stream -> {
+
+            var out = new DataOutputStream(stream);
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(strings.size());
+            out.writeInt(people.size());
+            out.writeInt(totalChildEdges);
+            out.writeInt(marriages.size());
+            out.writeInt(totalMarriageEdges);
+
+            strings.writeTo(out);
+
+            int childStart = 0, marriageStart = 0;
+            for (var person : people) {
+                out.writeInt(strings.indexOf(person.getId()));
+                out.writeInt(strings.indexOf(person.getDisplayName()));
+                out.writeInt(toEpochDay(person.getBirthDate()));
+                out.writeInt(toEpochDay(person.getDeathDate()));
+                out.writeInt(ordinals.getOrDefault(person.getParent1(), NONE));
+                out.writeInt(ordinals.getOrDefault(person.getParent2(), NONE));
+                out.writeInt(childStart);
+                out.writeInt(person.getDescendants().size());
+                out.writeInt(marriageStart);
+                out.writeInt(person.getMarriages().size());
+
+                childStart += person.getDescendants().size();
+                marriageStart += person.getMarriages().size();
+            }
+
+            for (var person : people)
+                for (var child : person.getDescendants())
+                    out.writeInt(ordinals.getOrDefault(child, NONE));
+
+            for (int i = 0; i < marriages.size(); i++) {
+                var m = marriages.get(i);
+                out.writeInt(ordinals.getOrDefault(m.getSpouse1(), NONE));
+                out.writeInt(ordinals.getOrDefault(m.getSpouse2(), NONE));
+                out.writeInt(toEpochDay(m.getStartDate()));
+                out.writeInt(strings.indexOf(m.getStartArea()));
+                out.writeInt(strings.indexOf(m.getStartCountry()));
+                out.writeInt(toEpochDay(m.getEndDate()));
+                out.writeInt(strings.indexOf(m.getEndArea()));
+                out.writeInt(strings.indexOf(m.getEndCountry()));
+                out.writeInt(strings.indexOf(m.getId()));
+            }
+
+            for (var person : people)
+                for (var m : person.getMarriages())
+                    out.writeInt(marriageOrdinals.get(m));
+
+            Integer[] byId = new Integer[people.size()];
+            for (int i = 0; i < byId.length; i++)
+                byId[i] = i;
+            Arrays.sort(byId, Comparator.comparing(i -> people.get(i).getId()));
+            for (int ordinal : byId)
+                out.writeInt(ordinal);
+
+            out.flush();
+        });
+
+        GenealogyApp.log("Family tree snapshot saved to " + filePath);
+    }
+
+    public static List<Person> loadSnapshot(String filePath, PlaceDictionary places) throws IOException {
+        return loadSnapshot(filePath, places, problem -> { });
+    }
+
+    /**
+     * Loads every person of the snapshot, with the places of their unions in {@code places}, and
+     * reports links to persons that are not in the file, which are dropped.
+     */
+    public static List<Person> loadSnapshot(String filePath, PlaceDictionary places, Consumer<Diagnostic> problems) throws IOException {
+
+        var layout = Layout.map(filePath);
+
+        String[] strings = new String[layout.stringCount];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = layout.string(i);
+
+        IntFunction<String> string = index -> index == NONE ? null : strings[index];
+
+        var people = new ArrayList<Person>(layout.personCount);
+
+        for (int i = 0; i < layout.personCount; i++) {
+            int at = layout.personAt(i);
+            var person = new Person(string.apply(layout.buf.getInt(at + P_ID)), string.apply(layout.buf.getInt(at + P_NAME)));
+            person.setBirthDate(fromEpochDay(layout.buf.getInt(at + P_BIRTH)));
+            person.setDeathDate(fromEpochDay(layout.buf.getInt(at + P_DEATH)));
+            people.add(person);
+        }
+
+        IntFunction<Person> person = ordinal -> ordinal >= 0 && ordinal < people.size() ? people.get(ordinal) : null;
+        var unions = new Marriage[layout.marriageCount];
+
+        for (int i = 0; i < layout.personCount; i++) {
+            int at = layout.personAt(i);
+            var p = people.get(i);
+
+            // both sides of the child links are stored, so they are restored as written
+            p.assignParents(linked(p, "parent", layout.buf.getInt(at + P_PARENT1), person, problems),
+                            linked(p, "parent", layout.buf.getInt(at + P_PARENT2), person, problems));
+
+            int childStart = layout.buf.getInt(at + P_CHILD_START);
+            int childCount = layout.buf.getInt(at + P_CHILD_COUNT);
+            for (int c = 0; c < childCount; c++) {
+                var child = linked(p, "child", layout.child(childStart + c), person, problems);
+                if (child != null)
+                    p.children().add(child);
+            }
+
+            int marriageStart = layout.buf.getInt(at + P_MARRIAGE_START);
+            int marriageCount = layout.buf.getInt(at + P_MARRIAGE_COUNT);
+            for (int e = 0; e < marriageCount; e++) {
+                int ordinal = layout.marriageEdge(marriageStart + e);
+                if (ordinal == NONE)
+                    continue;
+                if (unions[ordinal] == null) {
+                    unions[ordinal] = layout.readMarriage(ordinal, person, string, places);
+                    if (unions[ordinal] == null)
+                        problems.accept(new Diagnostic(Diagnostic.Severity.WARNING, TreeValidator.DANGLING_REFERENCE, p.getId(),
+                            p.getId() + " has union #" + ordinal + " with a spouse who is not in the snapshot"));
+                }
+                // edges are stored per person, so each side keeps its own marriage order
+                if (unions[ordinal] != null)
+                    p.getMarriages().add(unions[ordinal]);
+            }
+        }
+
+        return people;
+    }
+
+    /** The person at {@code ordinal}, null for none; an ordinal outside the file is reported and dropped. */
+    private static Person linked(Person owner, String role, int ordinal, IntFunction<Person> person,
+                                 Consumer<Diagnostic> problems) {
+        if (ordinal == NONE)
+            return null;
+        var linked = person.apply(ordinal);
+        if (linked == null)
+            problems.accept(new Diagnostic(Diagnostic.Severity.WARNING, TreeValidator.DANGLING_REFERENCE, owner.getId(),
+                owner.getId() + " lists " + role + " #" + ordinal + ", who is not in the snapshot"));
+        return linked;
+    }
+
+    /**
+     * Section offsets of a mapped snapshot file, shared by the eager loader and {@link PagedFamilyTree}.
+     */
+    static final class Layout {
+
+        final ByteBuffer buf;
+        final int stringCount, personCount, childEdgeCount, marriageCount, marriageEdgeCount;
+        final int stringOffsetsAt, blobAt, personsAt, childrenAt, marriagesAt, marriageEdgesAt, idIndexAt;
+
+        private Layout(ByteBuffer buf, String filePath) throws IOException {
+
+            this.buf = buf;
+
+            if (buf.capacity() < HEADER_INTS * Integer.BYTES || buf.getInt(0) != MAGIC)
+                throw new IOException("Not a family tree snapshot: " + filePath);
+
+            int version = buf.getInt(4);
+            if (version != VERSION)
+                throw new IOException("Unsupported snapshot version " + version + ": " + filePath);
+
+            stringCount = buf.getInt(8);
+            personCount = buf.getInt(12);
+            childEdgeCount = buf.getInt(16);
+            marriageCount = buf.getInt(20);
+            marriageEdgeCount = buf.getInt(24);
+
+            stringOffsetsAt = HEADER_INTS * Integer.BYTES;
+            blobAt = stringOffsetsAt + (stringCount + 1) * Integer.BYTES;
+            personsAt = blobAt + buf.getInt(stringOffsetsAt + stringCount * Integer.BYTES);
+            childrenAt = personsAt + personCount * PERSON_INTS * Integer.BYTES;
+            marriagesAt = childrenAt + childEdgeCount * Integer.BYTES;
+            marriageEdgesAt = marriagesAt + marriageCount * MARRIAGE_INTS * Integer.BYTES;
+            idIndexAt = marriageEdgesAt + marriageEdgeCount * Integer.BYTES;
+        }
+
+        static Layout map(String filePath) throws IOException {
+            try (var channel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ)) {
+                return new Layout(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), filePath);
+            }
+        }
+
+        int personAt(int ordinal) {
+            return personsAt + ordinal * PERSON_INTS * Integer.BYTES;
+        }
+
+        int child(int edge) {
+            return buf.getInt(childrenAt + edge * Integer.BYTES);
+        }
+
+        int marriageEdge(int edge) {
+            return buf.getInt(marriageEdgesAt + edge * Integer.BYTES);
+        }
+
+        /** The ordinal of the {@code rank}-th person in id order. */
+        int idOrder(int rank) {
+            return buf.getInt(idIndexAt + rank * Integer.BYTES);
+        }
+
+        String string(int index) {
+            if (index == NONE)
+                return null;
+            int from = buf.getInt(stringOffsetsAt + index * Integer.BYTES);
+            int to = buf.getInt(stringOffsetsAt + (index + 1) * Integer.BYTES);
+            byte[] bytes = new byte[to - from];
+            buf.get(blobAt + from, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /** The union with the given ordinal, or null if one of its spouses was not saved. */
+        Marriage readMarriage(int ordinal, IntFunction<Person> person, IntFunction<String> string,
+                              PlaceDictionary places) {
+
+            int at = marriagesAt + ordinal * MARRIAGE_INTS * Integer.BYTES;
+            var spouse1 = person.apply(buf.getInt(at + M_SPOUSE1));
+            var spouse2 = person.apply(buf.getInt(at + M_SPOUSE2));
+
+            if (spouse1 == null || spouse2 == null)
+                return null;
+
+            var m = new Marriage(places, string.apply(buf.getInt(at + M_ID)), spouse1, spouse2);
+            m.setStartDate(fromEpochDay(buf.getInt(at + M_START_DATE)));
+            m.setStartArea(string.apply(buf.getInt(at + M_START_AREA)));
+            m.setStartCountry(string.apply(buf.getInt(at + M_START_COUNTRY)));
+            m.setEndDate(fromEpochDay(buf.getInt(at + M_END_DATE)));
+            m.setEndArea(string.apply(buf.getInt(at + M_END_AREA)));
+            m.setEndCountry(string.apply(buf.getInt(at + M_END_COUNTRY)));
+            return m;
+        }
+    }
+
+    static int toEpochDay(LocalDate date) {
+        return date == null ? NO_DATE : Math.toIntExact(date.toEpochDay());
+    }
+
+    static LocalDate fromEpochDay(int epochDay) {
+        return epochDay == NO_DATE ? null : LocalDate.ofEpochDay(epochDay);
+    }
+
+    private static final class StringTable {
+
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final List<byte[]> encoded = new ArrayList<>();
+
+        void add(String s) {
+            if (s != null && !indexes.containsKey(s)) {
+                indexes.put(s, encoded.size());
+                encoded.add(s.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        int indexOf(String s) {
+            return s == null ? NONE : indexes.get(s);
+        }
+
+        int size() {
+            return encoded.size();
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            int offset = 0;
+            out.writeInt(offset);
+            for (var bytes : encoded) {
+                offset += bytes.length;
+                out.writeInt(offset);
+            }
+            for (var bytes : encoded)
+                out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,652 @@
+package com.archy.geneus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Streaming GEDCOM 5.5.1 / 7.0 import and export.
+ * <p>
+ * Import reads line by line: INDI records become persons right away, FAM records are kept as small
+ * id-only records and resolved through an xref index once the whole file has been read, so families
+ * may refer to individuals defined after them. Values split over CONC and CONT lines are joined, and
+ * the character set is taken from the byte order mark or the CHAR line of the header. Export writes
+ * 5.5.1 with UTF-8, which 7.0 readers accept.
+ */
+public final class GedcomRW {
+
+    public static final String EXTENSION = ".ged";
+
+    // the TYPE of the REFN that keeps the original id of a person or union
+    private static final String SOURCE = "GENEUS";
+
+    // the header, and so its CHAR line, is looked for in this many bytes at the start of a file
+    private static final int HEADER_BYTES = 1 << 14;
+    private static final Pattern CHAR_LINE = Pattern.compile("(?m)^\\s*1\\s+CHAR\\s+(\\S+)");
+    // longer values are written in CONC parts; GEDCOM 5.5.1 allows 255 characters a line
+    private static final int MAX_VALUE = 200;
+
+    private static final String[] MONTHS =
+        { "JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC" };
+
+    private GedcomRW() { }
+
+    /** An INDI record being read; the person is made once the record ends and its id is known. */
+    private static final class Individual {
+        String xref, id, name;
+        LocalDate birthDate, deathDate;
+    }
+
+    private static final class Family {
+        String xref, id;
+        String husband, wife;
+        final List<String> children = new ArrayList<>(4);
+        LocalDate startDate, endDate;
+        String startPlace, endPlace;
+        boolean married;
+    }
+
+    public static List<Person> loadGedcom(String filePath, PlaceDictionary places) throws Exception {
+        return loadGedcom(filePath, places, problem -> { });
+    }
+
+    /**
+     * Imports the file, with the places of its unions in {@code places}, and reports what it had to
+     * drop: family members whose xref no individual has, children listed in more families than two
+     * parents allow, and individuals whose xref was already taken. A character set that cannot be
+     * decoded is reported as well, see {@link #charsetOf}.
+     */
+    public static List<Person> loadGedcom(String filePath, PlaceDictionary places, Consumer<Diagnostic> problems) throws Exception {
+
+        List<Person> people = new ArrayList<>();
+        Map<String, Person> index = new HashMap<>();
+        List<Family> families = new ArrayList<>();
+        var records = new Records(people, index, families, problems);
+
+        try (var stream = new BufferedInputStream(new FileInputStream(filePath), 1 << 16)) {
+
+            stream.mark(HEADER_BYTES);
+            var head = stream.readNBytes(HEADER_BYTES);
+            stream.reset();
+            var in = new BufferedReader(new InputStreamReader(stream, charsetOf(head, filePath, problems)), 1 << 16);
+
+            // a line is read once the next one shows that no CONC or CONT part of it follows
+            Line line = null;
+            String text;
+            do {
+                text = in.readLine();
+                var next = text != null ? Line.parse(text) : null;
+                if (text != null && next == null)
+                    continue;
+                if (line != null && next != null && next.continues()) {
+                    line.append(next);
+                    continue;
+                }
+                if (line != null)
+                    records.read(line);
+                line = next;
+            } while (text != null);
+
+            records.read(null);
+        }
+
+        for (var family : families) {
+
+            var husband = member(family, family.husband, index, problems);
+            var wife = member(family, family.wife, index, problems);
+
+            if (husband != null && wife != null && (family.married || family.startDate != null || family.endDate != null))
+                marry(husband, wife, family, places);
+
+            for (var childXref : family.children) {
+                var child = member(family, childXref, index, problems);
+                if (child == null)
+                    continue;
+                for (var parent : new Person[] { husband, wife })
+                    if (parent != null && !parent.addChild(child))
+                        problems.accept(new Diagnostic(Diagnostic.Severity.WARNING, TreeValidator.EXTRA_PARENT, child.getId(),
+                            "Family " + family.xref + " lists child " + child.getId() + ", who already has two parents"));
+            }
+        }
+
+        GenealogyApp.log("Imported " + people.size() + " individuals and " + families.size() + " families from '" + filePath + "'");
+        return people;
+    }
+
+    /** One logical line, with the parts of its value from CONC and CONT lines joined in. */
+    private static final class Line {
+
+        final int level;
+        final String xref, tag;
+        final StringBuilder value;
+
+        private Line(int level, String xref, String tag, String value) {
+            this.level = level;
+            this.xref = xref;
+            this.tag = tag;
+            this.value = new StringBuilder(value);
+        }
+
+        /** The line, or null if it is not one. The value keeps its spaces, a CONC part may need them. */
+        static Line parse(String text) {
+
+            if (!text.isEmpty() && text.charAt(0) == '\uFEFF')
+                text = text.substring(1);
+            text = text.stripLeading();
+
+            int levelEnd = text.indexOf(' ');
+            if (levelEnd < 0)
+                return null;
+
+            int level;
+            try {
+                level = Integer.parseInt(text, 0, levelEnd, 10);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            int tagStart = levelEnd + 1;
+            String xref = null;
+            if (text.startsWith("@", tagStart)) {
+                int xrefEnd = text.indexOf(' ', tagStart);
+                if (xrefEnd < 0)
+                    return null;
+                xref = text.substring(tagStart, xrefEnd);
+                tagStart = xrefEnd + 1;
+            }
+
+            int tagEnd = text.indexOf(' ', tagStart);
+            String tag = tagEnd < 0 ? text.substring(tagStart).strip() : text.substring(tagStart, tagEnd);
+            return new Line(level, xref, tag, tagEnd < 0 ? "" : text.substring(tagEnd + 1));
+        }
+
+        boolean continues() {
+            return level > 0 && ("CONC".equals(tag) || "CONT".equals(tag));
+        }
+
+        void append(Line part) {
+            if ("CONT".equals(part.tag))
+                value.append('\n');
+            value.append(part.value);
+        }
+
+        String value() {
+            return value.toString().strip();
+        }
+    }
+
+    /** Turns the lines of a file into individuals and families, one record at a time. */
+    private static final class Records {
+
+        final List<Person> people;
+        final Map<String, Person> index;
+        final List<Family> families;
+        final Consumer<Diagnostic> problems;
+
+        Individual person;
+        Family family;
+        String event, refn;
+
+        Records(List<Person> people, Map<String, Person> index, List<Family> families, Consumer<Diagnostic> problems) {
+            this.people = people;
+            this.index = index;
+            this.families = families;
+            this.problems = problems;
+        }
+
+        /** Reads one line; null ends the last record. */
+        void read(Line line) {
+
+            if (line == null) {
+                addPerson(person, people, index, problems);
+                person = null;
+                return;
+            }
+
+            String tag = line.tag, value = line.value(), xref = line.xref;
+
+            if (line.level == 0) {
+                addPerson(person, people, index, problems);
+                person = null;
+                family = null;
+                event = null;
+
+                if ("INDI".equals(tag) && xref != null) {
+                    person = new Individual();
+                    person.xref = xref;
+
+                } else if ("FAM".equals(tag)) {
+                    family = new Family();
+                    family.xref = xref;
+                    families.add(family);
+                }
+                return;
+            }
+
+            if (line.level == 1) {
+                event = tag;
+                refn = "REFN".equals(tag) ? value : null;
+
+                if (person != null && "NAME".equals(tag) && person.name == null) {
+                    person.name = parseName(value);
+
+                } else if (family != null) {
+                    switch (tag) {
+                        case "HUSB" -> family.husband = value;
+                        case "WIFE" -> family.wife = value;
+                        case "CHIL" -> family.children.add(value);
+                        case "MARR" -> family.married = true;
+                        default -> { }
+                    }
+                }
+                return;
+            }
+
+            if (line.level == 2 && event != null) {
+
+                // ids of persons and unions written by this exporter, the xrefs are only ordinals
+                if (refn != null && "TYPE".equals(tag) && SOURCE.equals(value)) {
+                    if (person != null) person.id = refn;
+                    else if (family != null) family.id = refn;
+
+                } else if (person != null && "DATE".equals(tag)) {
+                    if ("BIRT".equals(event)) person.birthDate = parseDate(value);
+                    else if ("DEAT".equals(event)) person.deathDate = parseDate(value);
+
+                } else if (family != null && "MARR".equals(event)) {
+                    if ("DATE".equals(tag)) family.startDate = parseDate(value);
+                    else if ("PLAC".equals(tag)) family.startPlace = value;
+
+                } else if (family != null && "DIV".equals(event)) {
+                    if ("DATE".equals(tag)) family.endDate = parseDate(value);
+                    else if ("PLAC".equals(tag)) family.endPlace = value;
+                }
+            }
+        }
+    }
+
+    /**
+     * The character set of a file that starts with {@code head}: from its byte order mark, from the
+     * zero bytes of UTF-16 without one, or else from the CHAR line of the header, and UTF-8, as
+     * GEDCOM 7 requires, without one. Java has no decoder for ANSEL, so such a file is read as
+     * ISO-8859-1, which keeps ASCII intact, and reported; so is a set this reader does not know,
+     * read as UTF-8.
+     */
+    static Charset charsetOf(byte[] head, String filePath, Consumer<Diagnostic> problems) {
+
+        if (startsWith(head, 0xEF, 0xBB, 0xBF))
+            return StandardCharsets.UTF_8;
+        if (startsWith(head, 0xFE, 0xFF) || startsWith(head, 0xFF, 0xFE))
+            return StandardCharsets.UTF_16;
+        if (startsWith(head, '0', 0))
+            return StandardCharsets.UTF_16LE;
+        if (startsWith(head, 0, '0'))
+            return StandardCharsets.UTF_16BE;
+
+        var found = CHAR_LINE.matcher(new String(head, StandardCharsets.ISO_8859_1));
+        var name = found.find() ? found.group(1).toUpperCase(Locale.ROOT) : "UTF-8";
+
+        return switch (name) {
+            // UTF-16 was recognized above, a file that only claims it is read like UTF-8
+            case "UTF-8", "UNICODE" -> StandardCharsets.UTF_8;
+            // files marked ASCII often hold letters of the exporting system's code page
+            case "ANSI", "ASCII" -> Charset.forName("windows-1252");
+            case "ANSEL" -> {
+                problems.accept(new Diagnostic(Diagnostic.Severity.WARNING, TreeValidator.CHARACTER_SET, null,
+                    "'" + filePath + "' is encoded in ANSEL, which is read as Latin-1: letters with diacritics may be wrong"));
+                yield StandardCharsets.ISO_8859_1;
+            }
+            default -> {
+                problems.accept(new Diagnostic(Diagnostic.Severity.WARNING, TreeValidator.CHARACTER_SET, null,
+                    "'" + filePath + "' is encoded in " + name + ", which is read as UTF-8"));
+                yield StandardCharsets.UTF_8;
+            }
+        };
+    }
+
+    private static boolean startsWith(byte[] head, int... bytes) {
+        if (head.length < bytes.length)
+            return false;
+        for (int i = 0; i < bytes.length; i++)
+            if ((head[i] & 0xFF) != bytes[i])
+                return false;
+        return true;
+    }
+
+    private static void addPerson(Individual record, List<Person> people, Map<String, Person> index,
+                                  Consumer<Diagnostic> problems) {
+        if (record == null)
+            return;
+        var person = new Person(record.id != null ? record.id : stripXref(record.xref), record.name);
+        person.setBirthDate(record.birthDate);
+        person.setDeathDate(record.deathDate);
+        people.add(person);
+        if (index.putIfAbsent(record.xref, person) != null)
+            problems.accept(new Diagnostic(Diagnostic.Severity.WARNING, TreeValidator.DUPLICATE_ID, person.getId(),
+                "Individual " + record.xref + " appears twice, families refer to the first"));
+    }
+
+    /** The individual with {@code xref}, or null; a missing one is reported. */
+    private static Person member(Family family, String xref, Map<String, Person> index, Consumer<Diagnostic> problems) {
+        if (xref == null)
+            return null;
+        var person = index.get(xref);
+        if (person == null)
+            problems.accept(new Diagnostic(Diagnostic.Severity.WARNING, TreeValidator.DANGLING_REFERENCE, null,
+                "Family " + family.xref + " refers to " + xref + ", who does not exist"));
+        return person;
+    }
+
+    private static void marry(Person spouse1, Person spouse2, Family family, PlaceDictionary places) {
+
+        var id = family.id != null ? family.id : family.xref != null ? stripXref(family.xref) : null;
+        var marriage = id != null && spouse1.getMarriage(id) == null
+                ? new Marriage(places, id, spouse1, spouse2)
+                : new Marriage(places, spouse1, spouse2);
+        marriage.setStartDate(family.startDate);
+        marriage.setEndDate(family.endDate);
+
+        if (family.startPlace != null) {
+            var place = splitPlace(family.startPlace);
+            marriage.setStartArea(place[0]);
+            marriage.setStartCountry(place[1]);
+        }
+
+        if (family.endPlace != null) {
+            var place = splitPlace(family.endPlace);
+            marriage.setEndArea(place[0]);
+            marriage.setEndCountry(place[1]);
+        }
+
+        spouse1.addMarriage(marriage);
+    }
+
+    /** "Area, Country" with the last jurisdiction taken as the country. */
+    private static String[] splitPlace(String place) {
+        int comma = place.lastIndexOf(',');
+        if (comma < 0)
+            return new String[] { emptyToNull(place.strip()), null };
+        return new String[] { emptyToNull(place.substring(0, comma).strip()), emptyToNull(place.substring(comma + 1).strip()) };
+    }
+
+    private static String emptyToNull(String s) {
+        return s.isEmpty() ? null : s;
+    }
+
+    private static String stripXref(String xref) {
+        return xref.length() > 2 && xref.startsWith("@") && xref.endsWith("@") ? xref.substring(1, xref.length() - 1) : xref;
+    }
+
+    private static String parseName(String value) {
+        return value.replace('/', ' ').trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Best effort: qualifiers (ABT, BEF, BET ... AND ...) are dropped and a missing day or month becomes 1.
+     */
+    static LocalDate parseDate(String value) {
+
+        int day = 0, month = 0, year = 0;
+
+        for (var token : value.toUpperCase(Locale.ROOT).split("\\s+")) {
+
+            if (token.isEmpty() || token.startsWith("@#"))
+                continue;
+
+            if ("AND".equals(token) || "TO".equals(token))
+                break;
+
+            if (Character.isDigit(token.charAt(0))) {
+                int slash = token.indexOf('/');
+                String digits = slash < 0 ? token : token.substring(0, slash);
+                int n;
+                try {
+                    n = Integer.parseInt(digits);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (month == 0 && day == 0 && digits.length() <= 2) day = n;
+                else year = n;
+                continue;
+            }
+
+            for (int m = 0; m < MONTHS.length; m++)
+                if (MONTHS[m].equals(token))
+                    month = m + 1;
+        }
+
+        if (year == 0)
+            return null;
+
+        try {
+            return LocalDate.of(year, Math.max(month, 1), Math.max(day, 1));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    static String formatDate(LocalDate date) {
+        return date.getDayOfMonth() + " " + MONTHS[date.getMonthValue() - 1] + " " + date.getYear();
+    }
+
+    /** Two parents in their original order, compared by identity since ids may repeat. */
+    private record Couple(Person parent1, Person parent2) {
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Couple c && c.parent1 == parent1 && c.parent2 == parent2;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(parent1) + System.identityHashCode(parent2);
+        }
+    }
+
+    /**
+     * Xrefs are numbered, {@code @I..@} for persons and {@code @F..@} for families, so they cannot
+     * collide whatever the ids are; the ids go into a REFN of type GENEUS and are read back from there.
+     */
+    public static void saveGedcom(List<Person> people, String filePath) throws Exception {
+
+        Map<Person, String> xrefs = new IdentityHashMap<>();
+        for (var p : people)
+            xrefs.putIfAbsent(p, "@I" + (xrefs.size() + 1) + "@");
+
+        // one family per marriage, plus one per parent pair that has children but no marriage
+        Map<Marriage, Integer> unions = new IdentityHashMap<>();
+        Map<Couple, Integer> unmarried = new HashMap<>();
+        List<Couple> couples = new ArrayList<>();
+        List<Marriage> marriages = new ArrayList<>();
+
+        for (var p : people)
+            for (var m : p.getMarriages())
+                if (xrefs.containsKey(m.getSpouse1()) && xrefs.containsKey(m.getSpouse2())
+                        && unions.putIfAbsent(m, couples.size()) == null) {
+                    couples.add(new Couple(m.getSpouse1(), m.getSpouse2()));
+                    marriages.add(m);
+                }
+
+        Map<Person, Integer> childOf = new IdentityHashMap<>();
+        for (var p : people) {
+            if (p.getParent1() == null && p.getParent2() == null)
+                continue;
+            var family = familyOf(p, unions);
+            if (family == null) {
+                var parents = new Couple(p.getParent1(), p.getParent2());
+                family = unmarried.get(parents);
+                if (family == null) {
+                    family = couples.size();
+                    unmarried.put(parents, family);
+                    couples.add(parents);
+                    marriages.add(null);
+                }
+            }
+            childOf.put(p, family);
+        }
+
+        List<List<Person>> children = new ArrayList<>(couples.size());
+        for (int i = 0; i < couples.size(); i++)
+            children.add(new ArrayList<>(2));
+        for (var p : people) {
+            var family = childOf.get(p);
+            if (family != null)
+                children.get(family).add(p);
+        }
+
+        FamilyTreeRW.writeAtomically(filePath, stream -> {
+
+            Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1 << 16);
+
+            line(out, "0 HEAD");
+            line(out, "1 SOUR " + SOURCE);
+            line(out, "1 GEDC");
+            line(out, "2 VERS 5.5.1");
+            line(out, "2 FORM LINEAGE-LINKED");
+            line(out, "1 CHAR UTF-8");
+
+            for (var p : people) {
+                line(out, "0 " + xrefs.get(p) + " INDI");
+                if (p.getDisplayName() != null)
+                    value(out, 1, "NAME", formatName(p.getDisplayName()));
+                reference(out, p.getId());
+                event(out, "BIRT", p.getBirthDate(), null);
+                event(out, "DEAT", p.getDeathDate(), null);
+
+                var family = childOf.get(p);
+                if (family != null)
+                    line(out, "1 FAMC @F" + (family + 1) + "@");
+
+                for (var m : p.getMarriages()) {
+                    family = unions.get(m);
+                    if (family != null)
+                        line(out, "1 FAMS @F" + (family + 1) + "@");
+                }
+            }
+
+            for (int i = 0; i < couples.size(); i++) {
+                var couple = couples.get(i);
+                var m = marriages.get(i);
+
+                line(out, "0 @F" + (i + 1) + "@ FAM");
+                if (couple.parent1() != null && xrefs.containsKey(couple.parent1()))
+                    line(out, "1 HUSB " + xrefs.get(couple.parent1()));
+                if (couple.parent2() != null && xrefs.containsKey(couple.parent2()))
+                    line(out, "1 WIFE " + xrefs.get(couple.parent2()));
+
+                if (m != null) {
+                    reference(out, m.getId());
+                    if (m.getStartDate() == null && m.getStartArea() == null && m.getStartCountry() == null)
+                        line(out, "1 MARR Y");
+                    else
+                        event(out, "MARR", m.getStartDate(), formatPlace(m.getStartArea(), m.getStartCountry()));
+                    event(out, "DIV", m.getEndDate(), formatPlace(m.getEndArea(), m.getEndCountry()));
+                }
+
+                for (var child : children.get(i))
+                    line(out, "1 CHIL " + xrefs.get(child));
+            }
+
+            line(out, "0 TRLR");
+            out.flush();
+        });
+
+        GenealogyApp.log("Exported " + people.size() + " individuals and " + couples.size() + " families to '" + filePath + "'");
+    }
+
+    /**
+     * The family of the first marriage between the child's two parents, or null. A child with
+     * one parent or unmarried parents gets a family of its own parent pair.
+     */
+    private static Integer familyOf(Person child, Map<Marriage, Integer> unions) {
+        var p1 = child.getParent1();
+        var p2 = child.getParent2();
+        if (p1 == null || p2 == null)
+            return null;
+        for (var m : p1.getMarriages())
+            if ((m.getSpouse1() == p1 && m.getSpouse2() == p2 || m.getSpouse1() == p2 && m.getSpouse2() == p1)
+                    && unions.containsKey(m))
+                return unions.get(m);
+        return null;
+    }
+
+    private static void reference(Writer out, String id) throws Exception {
+        if (id == null || id.isEmpty())
+            return;
+        line(out, "1 REFN " + id);
+        line(out, "2 TYPE " + SOURCE);
+    }
+
+    private static String formatName(String name) {
+        int space = name.lastIndexOf(' ');
+        return space < 0 ? name : name.substring(0, space) + " /" + name.substring(space + 1) + "/";
+    }
+
+    private static String formatPlace(String area, String country) {
+        if (area == null && country == null)
+            return null;
+        if (country == null)
+            return area;
+        return (area != null ? area : "") + ", " + country;
+    }
+
+    private static void event(Writer out, String tag, LocalDate date, String place) throws Exception {
+        if (date == null && place == null)
+            return;
+        line(out, "1 " + tag);
+        if (date != null)
+            line(out, "2 DATE " + formatDate(date));
+        if (place != null)
+            value(out, 2, "PLAC", place);
+    }
+
+    /**
+     * A line with a value that may be long or hold line breaks, continued in CONT lines at the breaks
+     * and CONC lines in between. Parts are not split next to a space, which some readers drop.
+     */
+    private static void value(Writer out, int level, String tag, String value) throws Exception {
+
+        var lines = value.split("\\r?\\n", -1);
+        for (int i = 0; i < lines.length; i++) {
+            var text = lines[i];
+            var prefix = i == 0 ? level + " " + tag : (level + 1) + " CONT";
+            int start = 0;
+            do {
+                int end = splitPoint(text, start);
+                line(out, end > start ? prefix + " " + text.substring(start, end) : prefix);
+                prefix = (level + 1) + " CONC";
+                start = end;
+            } while (start < text.length());
+        }
+    }
+
+    private static int splitPoint(String text, int start) {
+        if (text.length() - start <= MAX_VALUE)
+            return text.length();
+        int end = start + MAX_VALUE;
+        while (end > start + 1 && (text.charAt(end - 1) == ' ' || text.charAt(end) == ' '
+                                   || Character.isHighSurrogate(text.charAt(end - 1))))
+            end--;
+        return end;
+    }
+
+    private static void line(Writer out, String s) throws Exception {
+        out.write(s);
+        out.write("\r\n");
+    }
+}
@@ -17,6 +17,8 @@ public class GenealogyApp extends javafx.application.Application {
     protected static FileWriter logWriter;
     protected static File logFile;
 
+    private PeopleWindowController controller;
+
     public static void log(String message) {
         var sb = new StringBuilder();
         sb.append("[");
@@ -50,6 +52,7 @@ public class GenealogyApp extends javafx.application.Application {
 
         var scene = new Scene(loader.load(), 1200, 800);
         log("Loaded scene");
+        controller = loader.getController();
 
         scene.getStylesheets().add(getClass().getResource("/style.css").toExternalForm());
 
@@ -59,6 +62,11 @@ public class GenealogyApp extends javafx.application.Application {
         log("Stage shown");
     }
 
+    @Override
+    public void stop() {
+        if (controller != null)
+            controller.shutdown();
+    }
 
     public static void main(String[] args) {
         launch(args);
@@ -0,0 +1,237 @@
+package com.archy.geneus;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Closed intervals of longs with an attached value, answering "which intervals overlap [from, to]"
+ * in O(log n) per interval found rather than a scan.
+ * <p>
+ * The intervals are kept in a treap ordered by start, where every node also knows the largest end
+ * in its subtree; a query skips any subtree whose largest end is before {@code from}, and stops at
+ * the first start after {@code to}. Values are told apart by {@code equals}, one interval each. Not
+ * thread-safe.
+ */
+public final class IntervalIndex<T> {
+
+    private static final class Node<T> {
+
+        final T value;
+        final long start, end, order;
+        final int priority = ThreadLocalRandom.current().nextInt();
+        long maxEnd;
+        Node<T> left, right;
+
+        Node(T value, long start, long end, long order) {
+            this.value = value;
+            this.start = start;
+            this.end = end;
+            this.order = order;
+            this.maxEnd = end;
+        }
+
+        int compareTo(long start, long order) {
+            int c = Long.compare(this.start, start);
+            return c != 0 ? c : Long.compare(this.order, order);
+        }
+
+        void refresh() {
+            long max = end;
+            if (left != null && left.maxEnd > max) max = left.maxEnd;
+            if (right != null && right.maxEnd > max) max = right.maxEnd;
+            maxEnd = max;
+        }
+    }
+
+    private Node<T> root;
+    private final Map<T, Node<T>> nodes = new HashMap<>();
+    private long inserted;
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public boolean contains(T value) {
+        return nodes.containsKey(value);
+    }
+
+    /** Adds or moves the interval of {@code value}; {@code start} must not be after {@code end}. */
+    public void put(T value, long start, long end) {
+
+        if (start > end)
+            throw new IllegalArgumentException("Interval starts after it ends: " + start + " > " + end);
+
+        var old = nodes.get(value);
+        if (old != null) {
+            if (old.start == start && old.end == end)
+                return;
+            root = delete(root, old);
+        }
+
+        var node = new Node<>(value, start, end, inserted++);
+        nodes.put(value, node);
+        root = insert(root, node);
+    }
+
+    /**
+     * Fills an empty index in one go: the intervals are sorted and the treap is built bottom-up
+     * instead of by one insertion each. {@code interval} gives {start, end}, or null to skip a value.
+     */
+    public void load(Collection<? extends T> values, Function<? super T, long[]> interval) {
+
+        if (root != null)
+            throw new IllegalStateException("Index is not empty");
+
+        var sorted = new ArrayList<Node<T>>(values.size());
+        for (T value : values) {
+            var span = interval.apply(value);
+            if (span == null || nodes.containsKey(value))
+                continue;
+            if (span[0] > span[1])
+                throw new IllegalArgumentException("Interval starts after it ends: " + span[0] + " > " + span[1]);
+            var node = new Node<>(value, span[0], span[1], inserted++);
+            nodes.put(value, node);
+            sorted.add(node);
+        }
+        sorted.sort((a, b) -> a.compareTo(b.start, b.order));
+
+        // Cartesian tree by priority over the sorted nodes; the stack holds the right spine
+        var spine = new ArrayDeque<Node<T>>();
+        for (var node : sorted) {
+            Node<T> last = null;
+            while (!spine.isEmpty() && spine.peek().priority < node.priority)
+                last = spine.pop();
+            node.left = last;
+            if (!spine.isEmpty())
+                spine.peek().right = node;
+            spine.push(node);
+        }
+        root = spine.peekLast();
+        refreshAll(root);
+    }
+
+    private static <T> void refreshAll(Node<T> node) {
+        if (node == null)
+            return;
+        refreshAll(node.left);
+        refreshAll(node.right);
+        node.refresh();
+    }
+
+    public void remove(T value) {
+        var node = nodes.remove(value);
+        if (node != null)
+            root = delete(root, node);
+    }
+
+    public void clear() {
+        root = null;
+        nodes.clear();
+    }
+
+    /**
+     * Calls {@code action} for every value whose interval overlaps {@code [from, to]}, in order of
+     * start, until it returns false.
+     */
+    public void forEachOverlapping(long from, long to, Predicate<? super T> action) {
+        visit(root, from, to, action);
+    }
+
+    public List<T> overlapping(long from, long to, int limit) {
+        var result = new ArrayList<T>();
+        if (limit > 0)
+            forEachOverlapping(from, to, value -> {
+                result.add(value);
+                return result.size() < limit;
+            });
+        return result;
+    }
+
+    private static <T> boolean visit(Node<T> node, long from, long to, Predicate<? super T> action) {
+
+        if (node == null || node.maxEnd < from)
+            return true;
+        if (!visit(node.left, from, to, action))
+            return false;
+        if (node.start > to)
+            return true;
+        if (node.end >= from && !action.test(node.value))
+            return false;
+        return visit(node.right, from, to, action);
+    }
+
+    private static <T> Node<T> insert(Node<T> root, Node<T> node) {
+
+        if (root == null)
+            return node;
+
+        if (node.compareTo(root.start, root.order) < 0) {
+            root.left = insert(root.left, node);
+            if (root.left.priority > root.priority)
+                root = rotateRight(root);
+        } else {
+            root.right = insert(root.right, node);
+            if (root.right.priority > root.priority)
+                root = rotateLeft(root);
+        }
+        root.refresh();
+        return root;
+    }
+
+    private static <T> Node<T> delete(Node<T> root, Node<T> node) {
+
+        if (root == null)
+            return null;
+
+        if (root == node)
+            return merge(root.left, root.right);
+
+        if (node.compareTo(root.start, root.order) < 0)
+            root.left = delete(root.left, node);
+        else
+            root.right = delete(root.right, node);
+        root.refresh();
+        return root;
+    }
+
+    /** Joins two treaps where every start in {@code a} sorts before every start in {@code b}. */
+    private static <T> Node<T> merge(Node<T> a, Node<T> b) {
+
+        if (a == null) return b;
+        if (b == null) return a;
+
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            a.refresh();
+            return a;
+        }
+        b.left = merge(a, b.left);
+        b.refresh();
+        return b;
+    }
+
+    private static <T> Node<T> rotateRight(Node<T> node) {
+        var left = node.left;
+        node.left = left.right;
+        left.right = node;
+        node.refresh();
+        left.refresh();
+        return left;
+    }
+
+    private static <T> Node<T> rotateLeft(Node<T> node) {
+        var right = node.right;
+        node.right = right.left;
+        right.left = node;
+        node.refresh();
+        right.refresh();
+        return right;
+    }
+}
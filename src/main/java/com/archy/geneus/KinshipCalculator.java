@@ -0,0 +1,279 @@
+package com.archy.geneus;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Kinship coefficients (the probability that alleles drawn from two persons are identical by
+ * descent), inbreeding coefficients and Wright's coefficient of relationship for a fixed list of
+ * persons. Persons without known parents are taken as unrelated founders.
+ * <p>
+ * A coefficient is worked out from the parents of the person of the later generation, who cannot
+ * be an ancestor of the other, on an explicit stack, so each step goes one generation up and deep
+ * pedigrees cannot overflow. Every related pair is memoized, so pedigree collapse is computed once
+ * instead of once per path. Unrelated pairs are kept sparsely: persons in different connected parts
+ * of the tree are not stored at all, pairs of a founder with someone of the same or a later
+ * generation are answered on the spot, and only the zeros that took work to find go into a set that
+ * all queries share. The calculator works on a {@link RelationGraph} snapshot, so later edits to the
+ * persons are not seen.
+ */
+public final class KinshipCalculator {
+
+    private final RelationGraph graph;
+    private final int[] generation;
+    private final int[] component;
+    private final List<int[]> layers;
+    private final Map<Long, Double> related = new ConcurrentHashMap<>();
+    private final Set<Long> unrelated = ConcurrentHashMap.newKeySet();
+
+    private KinshipCalculator(RelationGraph graph) {
+        this.graph = graph;
+        this.generation = new int[graph.size()];
+        this.layers = layer(graph, generation);
+        this.component = components(graph);
+    }
+
+    public static KinshipCalculator of(List<Person> people) {
+        return new KinshipCalculator(RelationGraph.of(people));
+    }
+
+    /**
+     * A calculator over the given persons and their ancestors, which is all that coefficients
+     * between them depend on.
+     */
+    public static KinshipCalculator ofPedigree(Person... persons) {
+        Set<Person> pedigree = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (var p : persons)
+            RelationshipCalculator.ancestors(p).forEach((ancestor, distance) -> pedigree.add(ancestor));
+        return of(new ArrayList<>(pedigree));
+    }
+
+    /**
+     * Groups the ordinals by generation, founders first (Kahn's algorithm). Persons caught in a
+     * parent cycle, and their descendants, end up in one last layer and are treated as founders.
+     */
+    private static List<int[]> layer(RelationGraph graph, int[] generation) {
+
+        int n = graph.size();
+        var pending = new int[n];
+        var order = new int[n];
+        int head = 0, tail = 0;
+
+        for (int i = 0; i < n; i++) {
+            pending[i] = graph.parentCount(i);
+            if (pending[i] == 0)
+                order[tail++] = i;
+        }
+
+        while (head < tail) {
+            int p = order[head++];
+            for (int e = graph.childStart(p); e < graph.childEnd(p); e++) {
+                int c = graph.child(e);
+                generation[c] = Math.max(generation[c], generation[p] + 1);
+                if (--pending[c] == 0)
+                    order[tail++] = c;
+            }
+        }
+
+        int maxGeneration = 0;
+        for (int i = 0; i < tail; i++)
+            maxGeneration = Math.max(maxGeneration, generation[order[i]]);
+
+        if (tail < n) {
+            GenealogyApp.log((n - tail) + " persons are in or below a parent cycle, kinship treats them as founders");
+            maxGeneration++;
+            for (int i = 0; i < n; i++)
+                if (pending[i] > 0)
+                    generation[i] = maxGeneration;
+        }
+
+        var counts = new int[maxGeneration + 1];
+        for (int g : generation)
+            counts[g]++;
+
+        List<int[]> layers = new ArrayList<>(maxGeneration + 1);
+        for (int count : counts)
+            layers.add(new int[count]);
+
+        var filled = new int[maxGeneration + 1];
+        for (int i = 0; i < n; i++)
+            layers.get(generation[i])[filled[generation[i]]++] = i;
+
+        return layers;
+    }
+
+    /**
+     * Connected parts of the tree over the parent links, by union-find; persons in different parts
+     * have no common ancestor.
+     */
+    private static int[] components(RelationGraph graph) {
+
+        int n = graph.size();
+        var root = new int[n];
+        for (int i = 0; i < n; i++)
+            root[i] = i;
+
+        for (int i = 0; i < n; i++)
+            for (int e = graph.parentStart(i); e < graph.parentEnd(i); e++) {
+                int a = find(root, i), b = find(root, graph.parent(e));
+                if (a != b)
+                    root[a] = b;
+            }
+
+        for (int i = 0; i < n; i++)
+            root[i] = find(root, i);
+        return root;
+    }
+
+    private static int find(int[] root, int i) {
+        while (root[i] != i) {
+            root[i] = root[root[i]];
+            i = root[i];
+        }
+        return i;
+    }
+
+    public double kinship(Person a, Person b) {
+        return phi(ordinal(a), ordinal(b));
+    }
+
+    public double inbreeding(Person p) {
+        return inbreeding(ordinal(p));
+    }
+
+    /**
+     * Wright's coefficient of relationship: 0.5 for parent and child or full siblings, 0.125 for
+     * first cousins, more where the pedigree collapses.
+     */
+    public double relationship(Person a, Person b) {
+        int x = ordinal(a), y = ordinal(b);
+        return 2 * phi(x, y) / Math.sqrt((1 + inbreeding(x)) * (1 + inbreeding(y)));
+    }
+
+    /**
+     * Inbreeding coefficients of all persons, indexed like the list the calculator was built from.
+     * Generations are processed in order and the persons of one generation in parallel, so each
+     * layer finds the pairs of the earlier ones, related or not, already in the shared tables.
+     */
+    public double[] inbreedingAll() {
+
+        var result = new double[graph.size()];
+
+        for (var layer : layers)
+            IntStream.of(layer).parallel().forEach(i -> result[i] = inbreeding(i));
+
+        return result;
+    }
+
+    /** Number of related pairs kept in the table. */
+    public int memoSize() {
+        return related.size();
+    }
+
+    private int ordinal(Person p) {
+        int o = graph.ordinalOf(p);
+        if (o == RelationGraph.NONE)
+            throw new IllegalArgumentException("Person " + p.getId() + " is not part of this calculator");
+        return o;
+    }
+
+    private double inbreeding(int x) {
+        int p1 = parent(x, 0), p2 = parent(x, 1);
+        return p1 < 0 || p2 < 0 ? 0 : phi(p1, p2);
+    }
+
+    /** The {@code k}-th parent of {@code x} from an earlier generation, or -1. */
+    private int parent(int x, int k) {
+        int e = graph.parentStart(x) + k;
+        if (e >= graph.parentEnd(x))
+            return -1;
+        int p = graph.parent(e);
+        return generation[p] < generation[x] ? p : -1;
+    }
+
+    private boolean isFounder(int x) {
+        return parent(x, 0) < 0 && parent(x, 1) < 0;
+    }
+
+    private static long key(int a, int b) {
+        return a < b ? (long) a << 32 | b : (long) b << 32 | a;
+    }
+
+    /** The coefficient of a pair if it is known or needs no work, otherwise NaN. */
+    private double lookup(int a, int b) {
+
+        if (a != b && component[a] != component[b])
+            return 0;
+        // a founder is not the ancestor of anyone of the same or an earlier generation
+        if (a != b && isFounder(generation[a] >= generation[b] ? a : b))
+            return 0;
+
+        long key = key(a, b);
+        var known = related.get(key);
+        if (known != null)
+            return known;
+        return unrelated.contains(key) ? 0 : Double.NaN;
+    }
+
+    /**
+     * Kinship of {@code a} and {@code b}. Pairs whose parts are not known yet are pushed and worked
+     * out first; each of them is one generation closer to the founders, so the stack cannot loop.
+     */
+    private double phi(int a, int b) {
+
+        double value = lookup(a, b);
+        if (!Double.isNaN(value))
+            return value;
+
+        var stack = new ArrayDeque<Long>();
+        stack.push(key(a, b));
+
+        while (!stack.isEmpty()) {
+            long key = stack.peek();
+            int x = (int) (key >>> 32), y = (int) key;
+            if (generation[x] < generation[y]) {
+                x = y;
+                y = (int) (key >>> 32);
+            }
+
+            if (!Double.isNaN(lookup(x, y))) {
+                stack.pop();
+                continue;
+            }
+
+            // x is of the same or a later generation, so it is not an ancestor of y
+            int p1 = parent(x, 0), p2 = parent(x, 1);
+            if (x == y) {
+                double f = p1 < 0 || p2 < 0 ? 0 : lookup(p1, p2);
+                if (Double.isNaN(f)) {
+                    stack.push(key(p1, p2));
+                    continue;
+                }
+                value = (1 + f) / 2;
+            } else {
+                double k1 = p1 < 0 ? 0 : lookup(p1, y), k2 = p2 < 0 ? 0 : lookup(p2, y);
+                if (Double.isNaN(k1))
+                    stack.push(key(p1, y));
+                if (Double.isNaN(k2))
+                    stack.push(key(p2, y));
+                if (Double.isNaN(k1) || Double.isNaN(k2))
+                    continue;
+                value = (k1 + k2) / 2;
+            }
+
+            stack.pop();
+            if (value == 0)
+                unrelated.add(key);
+            else
+                related.put(key, value);
+        }
+        return lookup(a, b);
+    }
+}
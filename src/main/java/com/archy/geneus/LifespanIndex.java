@@ -0,0 +1,182 @@
+package com.archy.geneus;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Answers "who was alive in 1918" and "which unions lasted through 1850" from {@link IntervalIndex}es
+ * over lifespans and marriages, kept current by {@link #catchUp}.
+ * <p>
+ * Persons and unions are indexed by the keys of their records in a {@link TreeVersion}, so the index
+ * is built from a version on any thread; {@link #catchUp} applies the records that changed since, and
+ * the keys it returns are mapped back to persons by whoever owns them.
+ * <p>
+ * A missing death date is taken as {@link #ASSUMED_LIFESPAN_YEARS} after birth, and a missing birth
+ * date as that long before death; persons with neither are not indexed. A marriage without an end
+ * date lasts until the earlier end of its spouses' lifespans, and one without a start date is not
+ * indexed.
+ */
+public final class LifespanIndex {
+
+    public static final int ASSUMED_LIFESPAN_YEARS = 100;
+
+    private final IntervalIndex<String> lifespans = new IntervalIndex<>();
+    private final IntervalIndex<String> unions = new IntervalIndex<>();
+    // the unions of each spouse, whose spans follow the spouse's lifespan
+    private final Map<String, List<String>> unionsOf = new HashMap<>();
+    private TreeVersion version;
+
+    public static LifespanIndex of(TreeVersion version) {
+
+        var persons = new ArrayList<String>(version.size());
+        version.persons().forEach((key, record) -> persons.add(key));
+        var unionKeys = new ArrayList<String>(version.unionCount());
+        version.unions().forEach((key, union) -> unionKeys.add(key));
+
+        var index = new LifespanIndex();
+        index.version = version;
+        index.lifespans.load(persons, key -> lifespan(version.person(key)));
+        index.unions.load(unionKeys, key -> union(version, version.union(key)));
+        version.unions().forEach(index::link);
+        return index;
+    }
+
+    /**
+     * Brings the index from the version it reflects to {@code now}, visiting only the persons and
+     * unions that differ between the two, and the unions of persons whose dates changed.
+     */
+    public synchronized void catchUp(TreeVersion now) {
+
+        if (now == version)
+            return;
+
+        Set<String> dirty = new HashSet<>();
+        now.compare(version, (key, old, record) -> {
+            var span = lifespan(record);
+            if (span == null)
+                lifespans.remove(key);
+            else
+                lifespans.put(key, span[0], span[1]);
+            if (old == null || record == null || !Objects.equals(old.birthDate(), record.birthDate())
+                    || !Objects.equals(old.deathDate(), record.deathDate()))
+                dirty.addAll(unionsOf.getOrDefault(key, List.of()));
+        }, (key, old, union) -> {
+            if (old != null)
+                unlink(key, old);
+            if (union != null)
+                link(key, union);
+            dirty.add(key);
+        });
+
+        for (var key : dirty) {
+            var span = union(now, now.union(key));
+            if (span == null)
+                unions.remove(key);
+            else
+                unions.put(key, span[0], span[1]);
+        }
+        version = now;
+    }
+
+    private void link(String key, UnionRecord union) {
+        unionsOf.computeIfAbsent(union.spouse1(), k -> new ArrayList<>(1)).add(key);
+        unionsOf.computeIfAbsent(union.spouse2(), k -> new ArrayList<>(1)).add(key);
+    }
+
+    private void unlink(String key, UnionRecord union) {
+        for (var spouse : new String[] { union.spouse1(), union.spouse2() }) {
+            var list = unionsOf.get(spouse);
+            if (list != null && list.remove(key) && list.isEmpty())
+                unionsOf.remove(spouse);
+        }
+    }
+
+    public synchronized int size() {
+        return lifespans.size();
+    }
+
+    public synchronized List<String> aliveIn(int year, int limit) {
+        return aliveDuring(LocalDate.of(year, 1, 1), LocalDate.of(year, 12, 31), limit);
+    }
+
+    public synchronized List<String> aliveOn(LocalDate day, int limit) {
+        return aliveDuring(day, day, limit);
+    }
+
+    /** Keys of the persons alive at some point between {@code from} and {@code to}, by birth. */
+    public synchronized List<String> aliveDuring(LocalDate from, LocalDate to, int limit) {
+        return lifespans.overlapping(from.toEpochDay(), to.toEpochDay(), limit);
+    }
+
+    /** Keys of the persons whose lifespan overlaps that of {@code person}, without {@code person} itself. */
+    public synchronized List<String> contemporariesOf(String person, int limit) {
+
+        var span = lifespan(version.person(person));
+        if (span == null)
+            return List.of();
+
+        var result = lifespans.overlapping(span[0], span[1], limit + 1);
+        result.remove(person);
+        return result.size() > limit ? result.subList(0, limit) : result;
+    }
+
+    /** Keys of the unions that lasted at some point between {@code from} and {@code to}, by start. */
+    public synchronized List<String> unionsDuring(LocalDate from, LocalDate to, int limit) {
+        return unions.overlapping(from.toEpochDay(), to.toEpochDay(), limit);
+    }
+
+    /**
+     * True if {@code p} was alive at some point between {@code from} and {@code to}, by the same
+     * assumptions as the index; for filtering persons the index was not asked about.
+     */
+    public static boolean wasAlive(Person p, LocalDate from, LocalDate to) {
+        var span = lifespan(p.getBirthDate(), p.getDeathDate());
+        return span != null && span[0] <= to.toEpochDay() && span[1] >= from.toEpochDay();
+    }
+
+    private static long[] lifespan(PersonRecord record) {
+        return record == null ? null : lifespan(record.birthDate(), record.deathDate());
+    }
+
+    /** Birth and death as epoch days, with a missing one assumed; null if both are missing. */
+    private static long[] lifespan(LocalDate birth, LocalDate death) {
+
+        if (birth == null && death == null)
+            return null;
+        if (birth == null)
+            birth = death.minusYears(ASSUMED_LIFESPAN_YEARS);
+        if (death == null)
+            death = birth.plusYears(ASSUMED_LIFESPAN_YEARS);
+
+        // a death recorded before the birth is a data error, index the person on the birth day
+        long start = birth.toEpochDay();
+        return new long[] { start, Math.max(start, death.toEpochDay()) };
+    }
+
+    private static long[] union(TreeVersion version, UnionRecord union) {
+
+        if (union == null || union.startDate() == null)
+            return null;
+
+        long from = union.startDate().toEpochDay();
+        long to;
+
+        if (union.endDate() != null) {
+            to = union.endDate().toEpochDay();
+        } else {
+            to = union.startDate().plusYears(ASSUMED_LIFESPAN_YEARS).toEpochDay();
+            for (var spouse : new String[] { union.spouse1(), union.spouse2() }) {
+                var span = lifespan(version.person(spouse));
+                if (span != null)
+                    to = Math.min(to, span[1]);
+            }
+        }
+        return new long[] { from, Math.max(from, to) };
+    }
+}
@@ -1,30 +1,96 @@
 package com.archy.geneus;
 
 import java.time.LocalDate;
+import java.util.UUID;
 
+/**
+ * A union between two persons. One instance is shared by both spouses, so an edit made through
+ * either of them is seen by the other.
+ */
 public class Marriage {
 
-    protected final Person spouse;
+    protected final String id;
+    protected final Person spouse1, spouse2;
 
+    // places are ids in this dictionary, which also indexes the union by them
+    protected final PlaceDictionary places;
     protected LocalDate startDate;
-    protected String startArea;
-    protected String startCountry;
+    protected int startArea = PlaceDictionary.NONE;
+    protected int startCountry = PlaceDictionary.NONE;
 
     private LocalDate endDate;
-    private String endArea;
-    private String endCountry;
+    private int endArea = PlaceDictionary.NONE;
+    private int endCountry = PlaceDictionary.NONE;
 
 
     public boolean isActive() {
         return endDate == null;
     }
 
-    public Marriage(Person spouse) {
-        this.spouse = spouse;
+    public Marriage(PlaceDictionary places, String id, Person spouse1, Person spouse2) {
+        this.places = places;
+        this.id = id;
+        this.spouse1 = spouse1;
+        this.spouse2 = spouse2;
     }
 
-    public Person getSpouse() {
-        return spouse;
+    /**
+     * A new union with a random id. Ids are never derived from the spouse ids, which may contain
+     * any character; every file format stores them, so a union keeps its id once saved.
+     */
+    public Marriage(PlaceDictionary places, Person spouse1, Person spouse2) {
+        this(places, UUID.randomUUID().toString(), spouse1, spouse2);
+    }
+
+    /**
+     * A detached copy of this union between two other person instances, keeping the id.
+     * Copies share the dictionary but are not listed in its place index.
+     */
+    public Marriage copyFor(Person spouse1, Person spouse2) {
+        var copy = new Marriage(places, id, spouse1, spouse2);
+        copy.startDate = startDate;
+        copy.startArea = startArea;
+        copy.startCountry = startCountry;
+        copy.endDate = endDate;
+        copy.endArea = endArea;
+        copy.endCountry = endCountry;
+        return copy;
+    }
+
+    /** Sets the place ids of a detached copy, which is not listed in the place index. */
+    void setPlaceIds(int startArea, int startCountry, int endArea, int endCountry) {
+        this.startArea = startArea;
+        this.startCountry = startCountry;
+        this.endArea = endArea;
+        this.endCountry = endCountry;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /** The dictionary of the tree this union belongs to, which the place ids refer to. */
+    public PlaceDictionary getPlaces() {
+        return places;
+    }
+
+    public Person getSpouse1() {
+        return spouse1;
+    }
+
+    public Person getSpouse2() {
+        return spouse2;
+    }
+
+    /**
+     * The other spouse of {@code person}, who must be one of the two.
+     */
+    public Person getSpouseOf(Person person) {
+        return person.equals(spouse1) ? spouse2 : spouse1;
+    }
+
+    public boolean involves(Person person) {
+        return person.equals(spouse1) || person.equals(spouse2);
     }
 
     public LocalDate getStartDate() {
@@ -36,19 +102,31 @@ public class Marriage {
     }
 
     public String getStartArea() {
+        return places.name(startArea);
+    }
+
+    public int getStartAreaId() {
         return startArea;
     }
 
     public void setStartArea(String startArea) {
-        this.startArea = startArea;
+        int old = this.startArea;
+        this.startArea = places.intern(startArea);
+        places.reindexAreas(this, old, endArea, this.startArea, endArea);
     }
 
     public String getStartCountry() {
+        return places.name(startCountry);
+    }
+
+    public int getStartCountryId() {
         return startCountry;
     }
 
     public void setStartCountry(String startCountry) {
-        this.startCountry = startCountry;
+        int old = this.startCountry;
+        this.startCountry = places.intern(startCountry);
+        places.reindexCountries(this, old, endCountry, this.startCountry, endCountry);
     }
 
     public LocalDate getEndDate() {
@@ -60,31 +138,45 @@ public class Marriage {
     }
 
     public String getEndArea() {
+        return places.name(endArea);
+    }
+
+    public int getEndAreaId() {
         return endArea;
     }
 
     public String getEndCountry() {
+        return places.name(endCountry);
+    }
+
+    public int getEndCountryId() {
         return endCountry;
     }
 
     public void setEndArea(String endArea) {
-        this.endArea = endArea;
+        int old = this.endArea;
+        this.endArea = places.intern(endArea);
+        places.reindexAreas(this, startArea, old, startArea, this.endArea);
     }
 
     public void setEndCountry(String endCountry) {
-        this.endCountry = endCountry;
+        int old = this.endCountry;
+        this.endCountry = places.intern(endCountry);
+        places.reindexCountries(this, startCountry, old, startCountry, this.endCountry);
     }
 
     @Override
     public String toString() {
         return "Marriage{" +
-               "spouse=(" + spouse.getDisplayName() + ", " + spouse.getId() + ")" +
+               "id='" + id + '\'' +
+               ", spouse1=(" + spouse1.getDisplayName() + ", " + spouse1.getId() + ")" +
+               ", spouse2=(" + spouse2.getDisplayName() + ", " + spouse2.getId() + ")" +
                ", startDate=" + startDate +
-               ", startArea='" + startArea + '\'' +
-               ", startCountry='" + startCountry + '\'' +
+               ", startArea='" + getStartArea() + '\'' +
+               ", startCountry='" + getStartCountry() + '\'' +
                ", endDate=" + endDate +
-               ", endArea='" + endArea + '\'' +
-               ", endCountry='" + endCountry + '\'' +
+               ", endArea='" + getEndArea() + '\'' +
+               ", endCountry='" + getEndCountry() + '\'' +
                '}';
     }
 }
\ No newline at end of file
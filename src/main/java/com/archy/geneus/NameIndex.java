@@ -0,0 +1,375 @@
+package com.archy.geneus;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Search index over display names, kept up to date by {@link #add}, {@link #update} and
+ * {@link #remove} instead of being rebuilt.
+ * <p>
+ * Persons are indexed by {@link PersonRecord#key() key}, so an index can be built from the records
+ * of a {@link TreeVersion} on any thread without touching the live persons. {@link #catchUp} then
+ * applies only the records that changed since that version; the keys it returns are mapped back to
+ * persons by whoever owns them.
+ * <p>
+ * Names are compared without case and diacritics ("Dvořák" is found by "dvor"). Every name is split
+ * into words; a sorted map from word to persons answers whole-word and prefix matches, and a map from
+ * three-letter sequences to persons answers matches inside a word. Each person holds a slot number and
+ * the lists are kept in slot order. Removed persons leave a dead slot behind that is skipped, and the
+ * index is rebuilt once half of the slots are dead.
+ * <p>
+ * Every query word has to match, words shorter than three letters only at the start of a word.
+ * Matches rank by how well the words match, whole words before
+ * prefixes before inner matches, and then by the order they were found, which for a one-word query
+ * is alphabetical by the matched word. The search stops as soon as nothing better can follow.
+ */
+public final class NameIndex {
+
+    public static final int DEFAULT_LIMIT = 200;
+
+    private static final int EXACT = 3, PREFIX = 2, INFIX = 1;
+
+    private final Map<String, Integer> slots = new HashMap<>();
+    // the key of each slot and its normalized name
+    private String[] persons = new String[1024];
+    private String[] keys = new String[1024];
+    private int used, dead;
+    private TreeVersion version;
+
+    private final TreeMap<String, IntList> words = new TreeMap<>();
+    private final Map<Long, IntList> trigrams = new HashMap<>();
+
+    /** Indexes the persons of {@code version} in the order they were added. */
+    public static NameIndex of(TreeVersion version) {
+        var index = new NameIndex();
+        for (var record : version.personRecords())
+            index.add(record.key(), record.displayName());
+        index.version = version;
+        return index;
+    }
+
+    /**
+     * Brings the index from the version it reflects to {@code now}, visiting only the persons that
+     * differ between the two.
+     */
+    public synchronized void catchUp(TreeVersion now) {
+        if (now == version)
+            return;
+        if (version != null)
+            now.compare(version, (key, old, record) -> {
+                if (record == null)
+                    remove(key);
+                else
+                    update(key, record.displayName());
+            }, (key, old, union) -> { });
+        version = now;
+    }
+
+    public synchronized int size() {
+        return slots.size();
+    }
+
+    public synchronized void add(String person, String name) {
+        if (!slots.containsKey(person))
+            insert(person, normalize(name));
+    }
+
+    private void insert(String person, String key) {
+
+        if (used == persons.length) {
+            persons = Arrays.copyOf(persons, used * 2);
+            keys = Arrays.copyOf(keys, used * 2);
+        }
+
+        int slot = used++;
+        persons[slot] = person;
+        keys[slot] = key;
+        slots.put(person, slot);
+
+        forEachWord(key, (from, to) -> {
+            var word = key.substring(from, to);
+            words.computeIfAbsent(word, w -> new IntList()).addOnce(slot);
+            for (int i = from; i + 3 <= to; i++)
+                trigrams.computeIfAbsent(trigram(key, i), t -> new IntList()).addOnce(slot);
+        });
+    }
+
+    public synchronized void remove(String person) {
+
+        var slot = slots.remove(person);
+        if (slot == null)
+            return;
+
+        persons[slot] = null;
+        keys[slot] = null;
+        dead++;
+
+        if (dead > 1024 && dead > used / 2)
+            compact();
+    }
+
+    /** Re-indexes {@code person} after its name changed; adds it if it is not indexed yet. */
+    public synchronized void update(String person, String name) {
+
+        var key = normalize(name);
+        var slot = slots.get(person);
+        if (slot != null && keys[slot].equals(key))
+            return;
+
+        remove(person);
+        insert(person, key);
+    }
+
+    private void compact() {
+
+        var live = new ArrayList<String>(slots.size());
+        var liveKeys = new ArrayList<String>(slots.size());
+        for (int i = 0; i < used; i++)
+            if (persons[i] != null) {
+                live.add(persons[i]);
+                liveKeys.add(keys[i]);
+            }
+
+        slots.clear();
+        words.clear();
+        trigrams.clear();
+        Arrays.fill(persons, 0, used, null);
+        Arrays.fill(keys, 0, used, null);
+        used = dead = 0;
+
+        for (int i = 0; i < live.size(); i++)
+            insert(live.get(i), liveKeys.get(i));
+    }
+
+    /**
+     * The keys of up to {@code limit} persons whose name matches every word of {@code query}, best
+     * first. An empty query matches nobody.
+     */
+    public synchronized List<String> search(String query, int limit) {
+
+        var terms = terms(query);
+        if (terms.length == 0 || limit <= 0)
+            return List.of();
+
+        // candidates come from the most selective word, the others are checked against each candidate's name
+        String driver = null;
+        int fewest = Integer.MAX_VALUE;
+        for (var t : terms) {
+            int estimate = estimate(t, fewest);
+            if (estimate == 0)
+                return List.of();
+            if (estimate < fewest) {
+                driver = t;
+                fewest = estimate;
+            }
+        }
+
+        var search = new Search(terms, limit);
+
+        var exact = words.get(driver);
+        if (exact != null && search.scan(exact, EXACT))
+            return search.result();
+
+        for (var entry : words.subMap(driver, false, driver + Character.MAX_VALUE, false).entrySet())
+            if (search.scan(entry.getValue(), PREFIX))
+                return search.result();
+
+        if (driver.length() >= 3)
+            search.scan(rarestTrigram(driver), INFIX);
+        return search.result();
+    }
+
+    /**
+     * An upper bound of the persons {@code term} can match, or any number from {@code enough} up if
+     * that is more.
+     */
+    private int estimate(String term, int enough) {
+
+        if (term.length() >= 3) {
+            var list = rarestTrigram(term);
+            return list == null ? 0 : list.size;
+        }
+
+        int count = 0;
+        for (var list : words.subMap(term, true, term + Character.MAX_VALUE, false).values()) {
+            count += list.size;
+            if (count >= enough)
+                break;
+        }
+        return count;
+    }
+
+    /** The shortest list of the trigrams of {@code term}, null if one of them is not indexed. */
+    private IntList rarestTrigram(String term) {
+        IntList rarest = null;
+        for (int i = 0; i + 3 <= term.length(); i++) {
+            var list = trigrams.get(trigram(term, i));
+            if (list == null)
+                return null;
+            if (rarest == null || list.size < rarest.size)
+                rarest = list;
+        }
+        return rarest;
+    }
+
+    private final class Search {
+
+        private record Match(int slot, int score, int order) { }
+
+        private static final Comparator<Match> RANK =
+            Comparator.comparingInt(Match::score).reversed().thenComparingInt(Match::order);
+
+        private final String[] terms;
+        private final int limit;
+        private final BitSet seen = new BitSet(used);
+        private final List<Match> matches = new ArrayList<>();
+        private final int[] atLeast;
+
+        Search(String[] terms, int limit) {
+            this.terms = terms;
+            this.limit = limit;
+            this.atLeast = new int[EXACT * terms.length + 1];
+        }
+
+        /**
+         * Scores the live persons of {@code slots} whose driver word matched as {@code kind}. Returns
+         * true once {@code limit} matches are known that no later candidate can outrank.
+         */
+        boolean scan(IntList slots, int kind) {
+
+            int best = kind + EXACT * (terms.length - 1);
+
+            for (int i = 0; i < slots.size; i++) {
+                int slot = slots.values[i];
+                if (persons[slot] == null || seen.get(slot))
+                    continue;
+                seen.set(slot);
+
+                int score = score(keys[slot], terms);
+                if (score == 0)
+                    continue;
+
+                matches.add(new Match(slot, score, matches.size()));
+                for (int s = 1; s <= score; s++)
+                    atLeast[s]++;
+                if (atLeast[best] >= limit)
+                    return true;
+            }
+            return atLeast[best] >= limit;
+        }
+
+        List<String> result() {
+            matches.sort(RANK);
+            var result = new ArrayList<String>(Math.min(limit, matches.size()));
+            for (int i = 0; i < matches.size() && i < limit; i++)
+                result.add(persons[matches.get(i).slot()]);
+            return result;
+        }
+    }
+
+    /** Sum over the query words of how well each matches a word of {@code key}; 0 if one does not. */
+    private static int score(String key, String[] terms) {
+
+        int total = 0;
+
+        for (var term : terms) {
+            int best = 0;
+            for (int from = 0; from < key.length() && best < EXACT; ) {
+                int to = key.indexOf(' ', from);
+                if (to < 0) to = key.length();
+                if (key.startsWith(term, from))
+                    best = Math.max(best, to - from == term.length() ? EXACT : PREFIX);
+                from = to + 1;
+            }
+            if (best == 0 && term.length() >= 3 && key.contains(term))
+                best = INFIX;
+            if (best == 0)
+                return 0;
+            total += best;
+        }
+        return total;
+    }
+
+    /**
+     * Lower case without diacritics; anything but letters and digits separates words, which are
+     * joined by single spaces.
+     */
+    static String normalize(String name) {
+
+        if (name == null)
+            return "";
+
+        var decomposed = Normalizer.normalize(name, Normalizer.Form.NFD);
+        var sb = new StringBuilder(decomposed.length());
+        boolean space = false;
+
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK)
+                continue;
+            if (Character.isLetterOrDigit(c)) {
+                if (space && sb.length() > 0)
+                    sb.append(' ');
+                sb.append(Character.toLowerCase(c));
+                space = false;
+            } else {
+                space = true;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String[] terms(String query) {
+        var key = normalize(query);
+        return key.isEmpty() ? new String[0] : key.split(" ");
+    }
+
+    /**
+     * True if {@code p}'s name matches every word of {@code query} the way {@link #search} does, for
+     * callers that filter without an index.
+     */
+    public static boolean matches(Person p, String query) {
+        var terms = terms(query);
+        return terms.length > 0 && score(normalize(p.getDisplayName()), terms) > 0;
+    }
+
+    @FunctionalInterface
+    private interface WordAction {
+        void accept(int from, int to);
+    }
+
+    private static void forEachWord(String key, WordAction action) {
+        for (int from = 0; from < key.length(); ) {
+            int to = key.indexOf(' ', from);
+            if (to < 0) to = key.length();
+            action.accept(from, to);
+            from = to + 1;
+        }
+    }
+
+    private static long trigram(String s, int at) {
+        return (long) s.charAt(at) << 32 | (long) s.charAt(at + 1) << 16 | s.charAt(at + 2);
+    }
+
+    /** Growable list of slots in ascending order. */
+    private static final class IntList {
+
+        int[] values = new int[2];
+        int size;
+
+        void addOnce(int value) {
+            if (size > 0 && values[size - 1] == value)
+                return;
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+    }
+}
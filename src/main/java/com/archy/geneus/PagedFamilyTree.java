@@ -0,0 +1,218 @@
+package com.archy.geneus;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Read-only view of a {@link FamilyTreeSnapshot} file for archives too large to load in full.
+ * <p>
+ * Persons are created from the mapped file only when asked for, and their parents, children and
+ * marriages are looked up by ordinal each time they are read rather than held, so nothing links
+ * one person to the rest of the tree. The {@code cacheSize} persons and unions used last are kept;
+ * others are dropped once nothing references them and re-read when next asked for. While a person
+ * or union is still referenced, asking for it again returns that same instance.
+ */
+public final class PagedFamilyTree {
+
+    public static final int DEFAULT_CACHE_SIZE = 50_000;
+
+    private final FamilyTreeSnapshot.Layout layout;
+    private final Interned<PagedPerson> persons;
+    private final Interned<Marriage> unions;
+    private final PlaceDictionary places = new PlaceDictionary();
+
+    private PagedFamilyTree(FamilyTreeSnapshot.Layout layout, int cacheSize) {
+        this.layout = layout;
+        this.persons = new Interned<>(cacheSize);
+        this.unions = new Interned<>(cacheSize);
+    }
+
+    /**
+     * Instances by ordinal: the most recently used are held strongly, the rest weakly, so that an
+     * ordinal never has two live instances.
+     */
+    private static final class Interned<V> {
+
+        private final class Ref extends WeakReference<V> {
+            final int ordinal;
+
+            Ref(int ordinal, V value) {
+                super(value, queue);
+                this.ordinal = ordinal;
+            }
+        }
+
+        private final ReferenceQueue<V> queue = new ReferenceQueue<>();
+        private final Map<Integer, Ref> live = new HashMap<>();
+        private final Map<Integer, V> recent;
+
+        Interned(int capacity) {
+            recent = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, V> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        V get(int ordinal) {
+            expunge();
+            var value = recent.get(ordinal);
+            if (value != null)
+                return value;
+            var ref = live.get(ordinal);
+            value = ref != null ? ref.get() : null;
+            if (value != null)
+                recent.put(ordinal, value);
+            return value;
+        }
+
+        void put(int ordinal, V value) {
+            live.put(ordinal, new Ref(ordinal, value));
+            recent.put(ordinal, value);
+        }
+
+        int size() {
+            return recent.size();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void expunge() {
+            Ref ref;
+            while ((ref = (Ref) queue.poll()) != null)
+                live.remove(ref.ordinal, ref);
+        }
+    }
+
+    public static PagedFamilyTree open(String filePath) throws IOException {
+        return open(filePath, DEFAULT_CACHE_SIZE);
+    }
+
+    public static PagedFamilyTree open(String filePath, int cacheSize) throws IOException {
+        return new PagedFamilyTree(FamilyTreeSnapshot.Layout.map(filePath), cacheSize);
+    }
+
+    public int size() {
+        return layout.personCount;
+    }
+
+    public synchronized Person getPerson(int ordinal) {
+
+        if (ordinal == FamilyTreeSnapshot.NONE)
+            return null;
+
+        var person = persons.get(ordinal);
+        if (person == null) {
+            int at = layout.personAt(ordinal);
+            person = new PagedPerson(this, ordinal,
+                layout.string(layout.buf.getInt(at + FamilyTreeSnapshot.P_ID)),
+                layout.string(layout.buf.getInt(at + FamilyTreeSnapshot.P_NAME)),
+                FamilyTreeSnapshot.fromEpochDay(layout.buf.getInt(at + FamilyTreeSnapshot.P_BIRTH)),
+                FamilyTreeSnapshot.fromEpochDay(layout.buf.getInt(at + FamilyTreeSnapshot.P_DEATH)));
+            persons.put(ordinal, person);
+        }
+        return person;
+    }
+
+    /**
+     * Binary search over the id index of the file; O(log n) string reads.
+     */
+    public synchronized Person findPerson(String id) {
+
+        int low = 0, high = layout.personCount - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int ordinal = layout.idOrder(mid);
+            int cmp = layout.string(layout.buf.getInt(layout.personAt(ordinal) + FamilyTreeSnapshot.P_ID)).compareTo(id);
+
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return getPerson(ordinal);
+        }
+        return null;
+    }
+
+    /**
+     * All persons in file order; each element is faulted in by {@code get}.
+     */
+    public List<Person> asList() {
+        return new PersonList();
+    }
+
+    /** Persons held strongly by the cache; referenced persons beyond these stay alive too. */
+    public synchronized int getCachedCount() {
+        return persons.size();
+    }
+
+    /** {@code slot} is {@link FamilyTreeSnapshot#P_PARENT1} or {@link FamilyTreeSnapshot#P_PARENT2}. */
+    synchronized Person parent(int ordinal, int slot) {
+        return getPerson(layout.buf.getInt(layout.personAt(ordinal) + slot));
+    }
+
+    synchronized Set<Person> children(int ordinal) {
+        int at = layout.personAt(ordinal);
+        int start = layout.buf.getInt(at + FamilyTreeSnapshot.P_CHILD_START);
+        int count = layout.buf.getInt(at + FamilyTreeSnapshot.P_CHILD_COUNT);
+
+        var children = new LinkedHashSet<Person>(count * 2);
+        for (int c = 0; c < count; c++) {
+            var child = getPerson(layout.child(start + c));
+            if (child != null)
+                children.add(child);
+        }
+        return Collections.unmodifiableSet(children);
+    }
+
+    /**
+     * Unions are interned by ordinal too, so that both spouses see one instance.
+     */
+    synchronized List<Marriage> marriages(PagedPerson person) {
+        int at = layout.personAt(person.ordinal);
+        int start = layout.buf.getInt(at + FamilyTreeSnapshot.P_MARRIAGE_START);
+        int count = layout.buf.getInt(at + FamilyTreeSnapshot.P_MARRIAGE_COUNT);
+
+        var marriages = new ArrayList<Marriage>(count);
+        for (int e = 0; e < count; e++) {
+            int ordinal = layout.marriageEdge(start + e);
+            if (ordinal == FamilyTreeSnapshot.NONE)
+                continue;
+
+            var m = unions.get(ordinal);
+            if (m == null) {
+                m = layout.readMarriage(ordinal, this::getPerson, layout::string, places);
+                if (m == null)
+                    continue;
+                unions.put(ordinal, m);
+            }
+            marriages.add(m);
+        }
+        return Collections.unmodifiableList(marriages);
+    }
+
+    private final class PersonList extends AbstractList<Person> implements RandomAccess {
+
+        @Override
+        public Person get(int index) {
+            if (index < 0 || index >= size())
+                throw new IndexOutOfBoundsException(index);
+            return getPerson(index);
+        }
+
+        @Override
+        public int size() {
+            return layout.personCount;
+        }
+    }
+}
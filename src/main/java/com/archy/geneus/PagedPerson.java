@@ -0,0 +1,79 @@
+package com.archy.geneus;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A read-only person of a {@link PagedFamilyTree}. Parents, children and marriages are not held
+ * but looked up by ordinal through the tree on every access, so keeping one person does not keep
+ * the part of the tree around it in memory.
+ */
+class PagedPerson extends Person {
+
+    private final PagedFamilyTree tree;
+    final int ordinal;
+
+    PagedPerson(PagedFamilyTree tree, int ordinal, String id, String displayName,
+                LocalDate birthDate, LocalDate deathDate) {
+        super(id, displayName);
+        super.setBirthDate(birthDate);
+        super.setDeathDate(deathDate);
+        this.tree = tree;
+        this.ordinal = ordinal;
+    }
+
+    @Override
+    public Person getParent1() {
+        return tree.parent(ordinal, FamilyTreeSnapshot.P_PARENT1);
+    }
+
+    @Override
+    public Person getParent2() {
+        return tree.parent(ordinal, FamilyTreeSnapshot.P_PARENT2);
+    }
+
+    @Override
+    Set<Person> children() {
+        return tree.children(ordinal);
+    }
+
+    @Override
+    public Set<Person> getDescendants() {
+        return children();
+    }
+
+    @Override
+    public List<Marriage> getMarriages() {
+        return tree.marriages(this);
+    }
+
+    @Override
+    public void setParent1(Person p) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setParent2(Person p) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setDisplayName(String name) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setBirthDate(LocalDate bd) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setDeathDate(LocalDate dd) {
+        throw readOnly();
+    }
+
+    private UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("Person " + getId() + " belongs to a read-only snapshot");
+    }
+}
@@ -1,19 +1,35 @@
 package com.archy.geneus;
 
+import javafx.animation.PauseTransition;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.control.*;
 import javafx.scene.layout.*;
 import javafx.stage.FileChooser;
+import javafx.stage.Modality;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 import javafx.application.Platform;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.collections.*;
+import javafx.collections.transformation.FilteredList;
+import javafx.collections.transformation.SortedList;
 
 import java.io.File;
+import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 public class PeopleWindowController {
 
@@ -22,15 +38,88 @@ public class PeopleWindowController {
     @FXML private ScrollPane treeScroll;
     @FXML private MenuItem loadMenuItem;
     @FXML private MenuItem saveMenuItem;
-
-    private ObservableList<Person> people;
+    @FXML private MenuItem browseMenuItem;
+    @FXML private MenuItem undoMenuItem;
+    @FXML private MenuItem redoMenuItem;
+    @FXML private MenuItem duplicatesMenuItem;
+    @FXML private MenuItem relationshipMenuItem;
+    @FXML private CheckMenuItem chartMenuItem;
+    @FXML private Label statusLabel;
+    @FXML private TextField searchField;
+
+    private static final String TREE_FILE = "family_tree.xml";
+    private static final int COMPACT_AFTER_RECORDS = 500;
+    private static final int CHART_GENERATIONS = 20;
+    // larger charts are drawn on a canvas instead of with a node per person
+    private static final int SCENE_GRAPH_BOXES = 1000;
+    // quiet time after an edit before the ancestor index is rebuilt
+    private static final Duration INDEX_DELAY = Duration.millis(300);
+
+    private final PersonRepository repository = new PersonRepository();
+    // the persons of the repository in order of addition; a removed person's row is set to null,
+    // which the filter hides, and the nulls are dropped once they outnumber the persons
+    private final ObservableList<Person> rows = FXCollections.observableArrayList();
+    private final Map<Person, Integer> rowOf = new IdentityHashMap<>();
+    private int removedRows;
+    private final SortedList<Person> tree = new SortedList<>(new FilteredList<>(rows, Objects::nonNull));
+    private ObservableList<Person> people = tree;
     private Person rootPerson;
+    private final EditHistory history = new EditHistory(repository.version());
+
+    private EditJournal journal;
+    private boolean journalStale;
+    private long staleGeneration;
+
+    private final SaveService saveService = new SaveService();
+    private boolean shutDown;
+
+    private PagedFamilyTree archive;
+
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor(r -> {
+        var thread = new Thread(r, "geneus-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicReference<TreeVersion> pendingIndex = new AtomicReference<>();
+    private final PauseTransition indexDelay = new PauseTransition(INDEX_DELAY);
+    private volatile ReachabilityIndex reachability;
+
+    /** Indexes built from a version; they catch up with the repository when they are used. */
+    private record SearchIndexes(NameIndex names, LifespanIndex lifespans) {
+        SearchIndexes catchUp(TreeVersion now) {
+            names.catchUp(now);
+            lifespans.catchUp(now);
+            return this;
+        }
+    }
+
+    private SearchIndexes search;
+    private long searchGeneration;
+    // read on the indexer thread to skip charts that were asked for again meanwhile
+    private volatile long chartGeneration;
+    private boolean chartStale;
 
     @FXML
     public void initialize() {
 
         loadMenuItem.setOnAction(e -> onLoad());
         saveMenuItem.setOnAction(e -> onSave());
+        browseMenuItem.setOnAction(e -> onBrowse());
+        undoMenuItem.setOnAction(e -> restoreVersion(history.undo()));
+        redoMenuItem.setOnAction(e -> restoreVersion(history.redo()));
+        chartMenuItem.setOnAction(e -> redrawTree());
+        duplicatesMenuItem.setOnAction(e -> onFindDuplicates());
+        relationshipMenuItem.setOnAction(e -> onRelationship());
+        indexDelay.setOnFinished(e -> refreshIndexes());
+        for (var size : List.of(treeScroll.widthProperty(), treeScroll.heightProperty()))
+            size.addListener((obs, oldVal, newVal) -> {
+                if (chartStale && treeVisible())
+                    redrawTree();
+            });
+        peopleTable.setSortPolicy(table -> archive == null && TableView.DEFAULT_SORT_POLICY.call(table));
+        tree.comparatorProperty().bind(peopleTable.comparatorProperty());
+        statusLabel.textProperty().bind(saveService.statusProperty());
+        searchField.textProperty().addListener((obs, oldVal, newVal) -> applySearch());
         idCol.setCellValueFactory(cd -> new SimpleStringProperty(cd.getValue().getId()));
         nameCol.setCellValueFactory(cd -> new SimpleStringProperty(cd.getValue().getDisplayName()));
         birthCol.setCellValueFactory(cd -> new SimpleStringProperty(
@@ -51,19 +140,51 @@ public class PeopleWindowController {
         ));
 
 
+        repository.addListener(this::onRepositoryChange);
+
+        List<Diagnostic> loadProblems = new ArrayList<>();
+        var places = new PlaceDictionary();
+        List<Person> loaded;
+
+        try {
+            loaded = FamilyTreeRW.loadFamilyTree(TREE_FILE, places, loadProblems::add);
+            GenealogyApp.log("Loaded family tree from file '" + TREE_FILE + "'");
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            GenealogyApp.log("Failed to load family tree from file '" + TREE_FILE + "': " + e.getMessage());
+            loaded = new ArrayList<>();
+        }
+
+        int replayed = 0;
         try {
-            people = FXCollections.observableArrayList(
-                FamilyTreeRW.loadFamilyTree("family_tree.xml")
-            );
-            GenealogyApp.log("Loaded family tree from file 'family_tree.xml'");
+            journal = EditJournal.open(TREE_FILE);
+            replayed = journal.replay(loaded, places);
 
         } catch (Exception e) {
             e.printStackTrace();
-            GenealogyApp.log("Failed to load family tree from file 'family_tree.xml': " + e.getMessage());
-            people = FXCollections.observableArrayList();
+            GenealogyApp.log("Failed to open edit journal: " + e.getMessage());
+            journal = null;
+        }
+
+        repository.replaceAll(loaded, places);
+        history.reset(repository.version());
+
+        if (replayed > 0) {
+            GenealogyApp.log("Replayed " + replayed + " journal records from '" + journal.getPath() + "'");
+            journalStale = true;
+            try {
+                compact();
+            } catch (Exception e) {
+                e.printStackTrace();
+                GenealogyApp.log("Failed to save the replayed tree: " + e.getMessage());
+            }
         }
 
         peopleTable.setItems(people);
+        refreshIndexes();
+        rebuildSearch();
+        validateInBackground(loadProblems);
 
         if (!people.isEmpty()) {
             rootPerson = people.get(0);
@@ -79,17 +200,89 @@ public class PeopleWindowController {
         redrawTree();
     }
 
+    /**
+     * Shows the tree of the selected person. The chart is laid out on the indexer thread over a copy
+     * of the current version, and only while it can be seen; a chart that could not be seen is laid
+     * out once the pane opens again. Read-only snapshots are laid out here, their pages are read on
+     * this thread.
+     */
     private void redrawTree() {
-        if (rootPerson != null) {
-            Pane tree = new TreeBuilder(rootPerson).build();
-            treeScroll.setContent(tree);
+
+        if (rootPerson == null)
+            return;
+        if (!chartMenuItem.isSelected()) {
+            showTree(new TreeBuilder(rootPerson).build(), false);
+            return;
+        }
+        if (archive != null) {
+            showChart(layoutChart(rootPerson));
+            return;
+        }
+
+        long generation = ++chartGeneration;
+        var rootKey = repository.keyOf(rootPerson);
+        chartStale = !treeVisible();
+        if (chartStale || rootKey == null)
+            return;
+
+        var version = repository.version();
+        indexer.execute(() -> {
+            if (generation != chartGeneration)
+                return;
+            var records = version.personRecords();
+            var copies = version.toPersons();
+            var keys = new IdentityHashMap<Person, String>(copies.size() * 2);
+            Person root = null;
+            for (int i = 0; i < copies.size(); i++) {
+                keys.put(copies.get(i), records.get(i).key());
+                if (records.get(i).key().equals(rootKey))
+                    root = copies.get(i);
+            }
+            var layout = layoutChart(root);
             Platform.runLater(() -> {
-                treeScroll.setVvalue(0);
-                treeScroll.setHvalue(0);
+                // an edit or a new selection since has asked for another chart
+                if (generation == chartGeneration)
+                    showChart(layout.withPersons(p -> repository.byKey(keys.get(p))));
             });
+        });
+    }
+
+    private static ChartLayout layoutChart(Person root) {
+        return new TreeLayout(PersonNode.WIDTH, PersonNode.HEIGHT).layout(root, CHART_GENERATIONS, CHART_GENERATIONS);
+    }
+
+    private void showChart(ChartLayout layout) {
+        if (layout.boxes().size() > SCENE_GRAPH_BOXES) {
+            // the canvas pans and zooms by itself and fills the view
+            var chart = new ChartCanvas(layout);
+            chart.setOnPersonOpened(this::selectPerson);
+            showTree(chart, true);
+        } else {
+            showTree(new TreeBuilder(layout.root().person()).buildChart(layout), false);
         }
     }
 
+    /** Whether the tree pane is in a window and not collapsed by the split. */
+    private boolean treeVisible() {
+        return treeScroll.getScene() != null && treeScroll.isVisible()
+               && treeScroll.getWidth() > 0 && treeScroll.getHeight() > 0;
+    }
+
+    private void showTree(Region tree, boolean fitToView) {
+        treeScroll.setFitToWidth(fitToView);
+        treeScroll.setFitToHeight(fitToView);
+        treeScroll.setContent(tree);
+        Platform.runLater(() -> {
+            treeScroll.setVvalue(0);
+            treeScroll.setHvalue(0);
+        });
+    }
+
+    private void selectPerson(Person p) {
+        peopleTable.getSelectionModel().select(p);
+        peopleTable.scrollTo(p);
+    }
+
     private Person showPersonDialog(Person toEdit) {
         try {
             var loader = new FXMLLoader(getClass().getResource("/PersonDialog.fxml"));
@@ -97,7 +290,8 @@ public class PeopleWindowController {
 
             DialogPane dialogPane = loader.load();
             PersonDialogController controller = loader.getController();
-            controller.setData(people, toEdit);
+            var indexes = searchIndexes();
+            controller.setData(repository, toEdit, reachability, indexes != null ? indexes.names() : null);
 
             Dialog<ButtonType> dialog = new Dialog<>();
             dialog.setDialogPane(dialogPane);
@@ -127,13 +321,20 @@ public class PeopleWindowController {
     @FXML
     private void onAdd() {
 
+        if (rejectReadOnly()) return;
+
         Person newPerson = showPersonDialog(null);
         GenealogyApp.log("New person: " + (newPerson != null ? newPerson.getDisplayName() : "null"));
 
         if (newPerson != null) {
-            people.add(newPerson);
+            repository.add(newPerson);
+            recordStep();
+            applySearch();
             peopleTable.getSelectionModel().select(newPerson);
-            saveAndRedraw();
+            saveAndRedraw(j -> {
+                j.recordAdd(newPerson);
+                j.recordParents(newPerson);
+            });
             GenealogyApp.log("Added new person: " + newPerson.getDisplayName());
         }
     }
@@ -141,14 +342,22 @@ public class PeopleWindowController {
     @FXML
     private void onEdit() {
 
+        if (rejectReadOnly()) return;
+
         Person selected = peopleTable.getSelectionModel().getSelectedItem();
 
         if (selected != null) {
             GenealogyApp.log("Editing person: " + selected.getDisplayName());
             Person updated = showPersonDialog(selected);
             if (updated != null) {
+                repository.update(updated);
+                recordStep();
+                applySearch();
                 peopleTable.refresh();
-                saveAndRedraw();
+                saveAndRedraw(j -> {
+                    j.recordUpdate(updated);
+                    j.recordParents(updated);
+                });
             }
         }
     }
@@ -156,6 +365,8 @@ public class PeopleWindowController {
     @FXML
     private void onDelete() {
 
+        if (rejectReadOnly()) return;
+
         Person selected = peopleTable.getSelectionModel().getSelectedItem();
 
         if (selected != null) {
@@ -171,111 +382,588 @@ public class PeopleWindowController {
 
             if (result.isPresent() && result.get() == ButtonType.OK) {
                 GenealogyApp.log("Deleting person: " + (selected != null ? selected.getDisplayName() : "null"));
-                removePersonEverywhere(selected);
-                people.remove(selected);
-                saveAndRedraw();
+                repository.remove(selected);
+                recordStep();
+                applySearch();
+                GenealogyApp.log("Removed person: " + selected.getDisplayName());
+                saveAndRedraw(j -> j.recordRemove(selected));
             }
         }
     }
 
-    private void removePersonEverywhere(Person p) {
-
-        if (p.getParent1() != null)
-            p.getParent1().getDescendants().remove(p);
-
-        if (p.getParent2() != null)
-            p.getParent2().getDescendants().remove(p);
+    private void onLoad() {
 
+        var fc = new FileChooser();
+        fc.setTitle("Open Family Tree File");
+        fc.getExtensionFilters().addAll(treeFileFilters());
+        File file = fc.showOpenDialog(peopleTable.getScene().getWindow());
 
-        for (var other : people) {
+        if (file != null) {
+            try {
+                archive = null;
+                List<Diagnostic> loadProblems = new ArrayList<>();
+                var places = new PlaceDictionary();
+                repository.replaceAll(readTree(file, places, loadProblems), places);
+                history.reset(repository.version());
+                showPeople(tree);
+                validateInBackground(loadProblems);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                showError("Failed to load file:\n" + ex.getMessage());
+                GenealogyApp.log("Failed to load file: " + ex.getMessage());
+            }
+        }
+    }
 
-            if (other.getParent1() != null && other.getParent1().equals(p))
-                other.setParent1(null);
+    private void onBrowse() {
 
-            if (other.getParent2() != null && other.getParent2().equals(p))
-                other.setParent2(null);
+        var fc = new FileChooser();
+        fc.setTitle("Browse Family Tree Snapshot");
+        fc.getExtensionFilters().add(new FileChooser.ExtensionFilter("Geneus Snapshots", "*" + FamilyTreeSnapshot.EXTENSION));
+        File file = fc.showOpenDialog(peopleTable.getScene().getWindow());
 
+        if (file != null) {
+            try {
+                archive = PagedFamilyTree.open(file.getAbsolutePath());
+                history.reset(repository.version());
+                showPeople(FXCollections.observableList(archive.asList()));
+                GenealogyApp.log("Browsing " + archive.size() + " persons from '" + file + "' read-only");
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                showError("Failed to open snapshot:\n" + ex.getMessage());
+                GenealogyApp.log("Failed to open snapshot: " + ex.getMessage());
+            }
+        }
+    }
 
-            other.getDescendants().remove(p);
+    private void showPeople(ObservableList<Person> loaded) {
 
-            List<Marriage> toRemove = new ArrayList<>();
+        updateUndoMenu();
 
-            for (var m : other.getMarriages())
-                if (m.getSpouse().equals(p))
-                    toRemove.add(m);
+        people = loaded;
+        peopleTable.setItems(people);
+        journalStale = true;
+        staleGeneration++;
+        refreshIndexes();
+        rebuildSearch();
 
-            other.getMarriages().removeAll(toRemove);
+        if (!people.isEmpty()) {
+            rootPerson = people.get(0);
+            peopleTable.getSelectionModel().select(rootPerson);
         }
 
-        p.setParent1(null);
-        p.setParent2(null);
-
-        GenealogyApp.log("Removed person: " + p.getDisplayName());
+        redrawTree();
     }
 
+    private void recordStep() {
+        history.record(repository.version());
+        updateUndoMenu();
+    }
 
+    private void updateUndoMenu() {
+        undoMenuItem.setDisable(archive != null || !history.canUndo());
+        redoMenuItem.setDisable(archive != null || !history.canRedo());
+    }
 
-    private void onLoad() {
+    /**
+     * Brings the tree back to {@code version} from the edit history and journals the difference, or
+     * saves the whole tree if the journal has no record for part of it.
+     */
+    private void restoreVersion(TreeVersion version) {
+
+        if (version == null || rejectReadOnly())
+            return;
+
+        var from = repository.version();
+        repository.restore(version);
+        updateUndoMenu();
+        applySearch();
+        peopleTable.refresh();
+
+        if (rootPerson != null && !repository.contains(rootPerson))
+            peopleTable.getSelectionModel().clearSelection();
+
+        var entry = journalEntry(from, version);
+        if (entry == null)
+            journalStale = true;
+        saveAndRedraw(entry != null ? entry : j -> { });
+        GenealogyApp.log("Restored " + version);
+    }
 
-        var fc = new FileChooser();
-        fc.setTitle("Open Family Tree File");
-        fc.getExtensionFilters().add(new FileChooser.ExtensionFilter("XML Files", "*.xml"));
-        File file = fc.showOpenDialog(peopleTable.getScene().getWindow());
+    /**
+     * The journal records that take a tree from {@code from} to {@code to}, which the repository now
+     * holds; null if a union was changed or removed while both spouses stayed, there is no record
+     * for that.
+     */
+    private JournalEntry journalEntry(TreeVersion from, TreeVersion to) {
+
+        var removed = new ArrayList<PersonRecord>();
+        var added = new ArrayList<PersonRecord>();
+        var changed = new ArrayList<PersonRecord>();
+        var unions = new ArrayList<UnionRecord>();
+        var unrecorded = new boolean[1];
+
+        to.compare(from, (key, old, now) -> {
+            if (now == null) removed.add(old);
+            else if (old == null) added.add(now);
+            else changed.add(now);
+        }, (key, old, now) -> {
+            if (old != null && (now != null || to.person(old.spouse1()) != null && to.person(old.spouse2()) != null))
+                unrecorded[0] = true;
+            else if (now != null)
+                unions.add(now);
+        });
 
-        if (file != null) {
-            try {
-                people = FXCollections.observableArrayList(FamilyTreeRW.loadFamilyTree(file.getAbsolutePath()));
+        if (unrecorded[0])
+            return null;
+
+        added.sort(Comparator.comparingLong(PersonRecord::order));
+        return j -> {
+            for (var record : removed)
+                j.recordRemove(record.toPerson());
+            for (var record : added)
+                j.recordAdd(repository.byKey(record.key()));
+            for (var record : changed)
+                j.recordUpdate(repository.byKey(record.key()));
+            // parents once every person exists, they may refer to each other
+            for (var record : added)
+                j.recordParents(repository.byKey(record.key()));
+            for (var record : changed)
+                j.recordParents(repository.byKey(record.key()));
+            for (var union : unions)
+                j.recordMarriage(repository.byKey(union.spouse1()).getMarriage(union.id()));
+        };
+    }
 
-                peopleTable.setItems(people);
+    /**
+     * Mirrors the repository into the table list and the search indexes. A reload only refills the
+     * list, {@link #showPeople} rebuilds the indexes.
+     */
+    private void onRepositoryChange(PersonRepository.Change change) {
 
-                if (!people.isEmpty()) {
-                    rootPerson = people.get(0);
-                    peopleTable.getSelectionModel().select(rootPerson);
-                }
+        var p = change.person();
 
-                redrawTree();
-            } catch (Exception ex) {
-                ex.printStackTrace();
-                showError("Failed to load file:\n" + ex.getMessage());
-                GenealogyApp.log("Failed to load file: " + ex.getMessage());
+        switch (change.kind()) {
+            case ADDED -> {
+                rowOf.put(p, rows.size());
+                rows.add(p);
             }
+            case UPDATED -> { }
+            case REMOVED -> removeRow(p);
+            case RELOADED -> fillRows();
         }
     }
 
+    private void removeRow(Person p) {
+        var row = rowOf.remove(p);
+        if (row == null)
+            return;
+        rows.set(row, null);
+        if (++removedRows > rowOf.size())
+            fillRows();
+    }
+
+    private void fillRows() {
+        var persons = repository.snapshot();
+        rowOf.clear();
+        for (int i = 0; i < persons.size(); i++)
+            rowOf.put(persons.get(i), i);
+        removedRows = 0;
+        rows.setAll(persons);
+    }
+
+    private boolean rejectReadOnly() {
+        if (archive == null)
+            return false;
+        showError("This snapshot is opened read-only.\nUse File > Load... to edit it.");
+        return true;
+    }
+
     private void onSave() {
 
         var fc = new FileChooser();
 
         fc.setTitle("Save Family Tree File");
-        fc.getExtensionFilters().add(new FileChooser.ExtensionFilter("XML Files", "*.xml"));
+        fc.getExtensionFilters().addAll(treeFileFilters());
 
         File file = fc.showSaveDialog(peopleTable.getScene().getWindow());
 
         if (file != null) {
+            saveService.submit(snapshot(), file.getAbsolutePath(),
+                (snapshot, path) -> writeTree(snapshot, new File(path)),
+                null,
+                ex -> showError("Failed to save file:\n" + ex.getMessage()));
+        }
+    }
+
+
+    /**
+     * The shown persons for a save: the current version of the tree, turned into persons on the save
+     * thread, or a copy of the read-only snapshot.
+     */
+    private Supplier<List<Person>> snapshot() {
+        if (archive == null)
+            return repository.version()::toPersons;
+        var copy = Person.copyOf(people);
+        return () -> copy;
+    }
+
+    private static List<FileChooser.ExtensionFilter> treeFileFilters() {
+        return List.of(
+            new FileChooser.ExtensionFilter("XML Files", "*.xml"),
+            new FileChooser.ExtensionFilter("Compressed XML Files", "*" + FamilyTreeRW.COMPRESSED_EXTENSION),
+            new FileChooser.ExtensionFilter("Geneus Snapshots", "*" + FamilyTreeSnapshot.EXTENSION),
+            new FileChooser.ExtensionFilter("GEDCOM Files", "*" + GedcomRW.EXTENSION)
+        );
+    }
+
+    /** Reads a tree whose union places go into {@code places}, a new dictionary for the tree. */
+    private static List<Person> readTree(File file, PlaceDictionary places, List<Diagnostic> problems) throws Exception {
+        if (file.getName().endsWith(FamilyTreeSnapshot.EXTENSION))
+            return FamilyTreeSnapshot.loadSnapshot(file.getAbsolutePath(), places, problems::add);
+        if (file.getName().endsWith(GedcomRW.EXTENSION))
+            return GedcomRW.loadGedcom(file.getAbsolutePath(), places, problems::add);
+        return FamilyTreeRW.loadFamilyTree(file.getAbsolutePath(), places, problems::add);
+    }
+
+    private static void writeTree(List<Person> people, File file) throws Exception {
+        if (file.getName().endsWith(FamilyTreeSnapshot.EXTENSION))
+            FamilyTreeSnapshot.saveSnapshot(people, file.getAbsolutePath());
+        else if (file.getName().endsWith(GedcomRW.EXTENSION))
+            GedcomRW.saveGedcom(people, file.getAbsolutePath());
+        else
+            FamilyTreeRW.saveFamilyTree(people, file.getAbsolutePath());
+    }
+
+
+    /**
+     * Indexes the names and lifespans of a newly shown tree on the indexer thread, from the records
+     * of its current version. Until the indexes are published, searches scan the list; afterwards
+     * they catch up with the edits made meanwhile when first used. Read-only snapshots are not
+     * searchable, indexing them would page in every person.
+     */
+    private void rebuildSearch() {
+
+        long generation = ++searchGeneration;
+        search = null;
+        searchField.setDisable(archive != null);
+        searchField.clear();
+
+        if (archive != null)
+            return;
+
+        var version = repository.version();
+        indexer.execute(() -> {
+            var indexes = new SearchIndexes(NameIndex.of(version), LifespanIndex.of(version));
+            Platform.runLater(() -> {
+                if (generation != searchGeneration)
+                    return;
+                search = indexes;
+                GenealogyApp.log("Indexed " + indexes.names().size() + " names and "
+                                 + indexes.lifespans().size() + " lifespans");
+            });
+        });
+    }
+
+    /** The search indexes brought up to the current version, or null while they are being built. */
+    private SearchIndexes searchIndexes() {
+        return search != null ? search.catchUp(repository.version()) : null;
+    }
+
+    /** The live persons of {@code keys}, without those removed since. */
+    private List<Person> personsOf(List<String> keys) {
+        var found = new ArrayList<Person>(keys.size());
+        for (var key : keys) {
+            var p = repository.byKey(key);
+            if (p != null)
+                found.add(p);
+        }
+        return found;
+    }
+
+    /**
+     * Shows the best matches of the search field in the table, or everyone if it is empty. A year in
+     * the query keeps only the persons alive in it, "1918" alone lists everyone alive then.
+     */
+    private void applySearch() {
+
+        var query = searchField.getText();
+
+        if (query == null || query.isBlank()) {
+            if (peopleTable.getItems() != people)
+                peopleTable.setItems(people);
+            return;
+        }
+
+        Integer year = null;
+        var name = new StringBuilder();
+        for (var word : query.trim().split("\\s+")) {
+            if (year == null && word.matches("\\d{3,4}"))
+                year = Integer.valueOf(word);
+            else
+                name.append(word).append(' ');
+        }
+
+        int limit = NameIndex.DEFAULT_LIMIT;
+        List<Person> found;
+
+        if (year == null) {
+            found = nameMatches(query, limit);
+        } else {
+            var from = LocalDate.of(year, 1, 1);
+            var to = LocalDate.of(year, 12, 31);
+            var words = name.toString();
+
+            var indexes = searchIndexes();
+            if (words.isBlank() && indexes != null) {
+                found = personsOf(indexes.lifespans().aliveDuring(from, to, limit));
+            } else {
+                List<Person> named = words.isBlank() ? people : nameMatches(words, Integer.MAX_VALUE);
+                found = named.stream().filter(p -> LifespanIndex.wasAlive(p, from, to)).limit(limit).toList();
+            }
+        }
+        peopleTable.setItems(FXCollections.observableArrayList(found));
+    }
+
+    private List<Person> nameMatches(String query, int limit) {
+        var indexes = searchIndexes();
+        return indexes != null
+            ? personsOf(indexes.names().search(query, limit))
+            : people.stream().filter(p -> NameIndex.matches(p, query)).limit(limit).toList();
+    }
+
+    /**
+     * Checks the freshly loaded tree on the fork/join pool, on the records of the current version so
+     * that edits made meanwhile do not get in the way. Findings go to the log; a summary is shown once the
+     * check is done.
+     */
+    private void validateInBackground(List<Diagnostic> loadProblems) {
+
+        TreeValidator.validateAsync(repository.version(), loadProblems, d -> GenealogyApp.log(d.toString()))
+            .whenComplete((report, ex) -> {
+                if (ex != null) {
+                    GenealogyApp.log("Tree validation failed: " + ex);
+                } else if (!report.isClean()) {
+                    GenealogyApp.log("Tree validation found " + report.total() + " problems: " + report.counts());
+                    Platform.runLater(() -> new Alert(Alert.AlertType.WARNING,
+                        "The family tree has " + report.total() + " problems.\nSee log.txt for details.",
+                        ButtonType.OK).show());
+                }
+            });
+    }
+
+    /**
+     * Looks for persons recorded twice in a copy of the tree on the indexer thread, then lists the
+     * candidates; double-clicking one selects its first person.
+     */
+    private void onFindDuplicates() {
+
+        if (archive != null) {
+            showError("Duplicates are only looked for in a loaded tree.\nUse File > Load... to open it.");
+            return;
+        }
+
+        // the copy keeps the order of the list, so copies map back to live persons by position
+        var live = repository.snapshot();
+        var copies = Person.copyOf(live);
+
+        indexer.execute(() -> {
             try {
-                FamilyTreeRW.saveFamilyTree(people, file.getAbsolutePath());
-            } catch (Exception ex) {
-                ex.printStackTrace();
-                showError("Failed to save file:\n" + ex.getMessage());
-                GenealogyApp.log("Failed to save file: " + ex.getMessage());
+                Map<Person, Person> liveOf = new IdentityHashMap<>(live.size() * 2);
+                for (int i = 0; i < live.size(); i++)
+                    liveOf.put(copies.get(i), live.get(i));
+
+                var candidates = DuplicateFinder.find(copies).stream()
+                    .map(c -> new DuplicateFinder.Candidate(liveOf.get(c.first()), liveOf.get(c.second()), c.score(),
+                                                            c.nameScore(), c.dateScore(), c.relativeScore()))
+                    .toList();
+                Platform.runLater(() -> showDuplicates(candidates));
+
+            } catch (Exception e) {
+                e.printStackTrace();
+                GenealogyApp.log("Failed to look for duplicates: " + e.getMessage());
             }
+        });
+    }
+
+    private void showDuplicates(List<DuplicateFinder.Candidate> found) {
+
+        // persons deleted while the search ran are left out
+        var candidates = found.stream()
+            .filter(c -> repository.contains(c.first()) && repository.contains(c.second()))
+            .toList();
+
+        if (candidates.isEmpty()) {
+            new Alert(Alert.AlertType.INFORMATION, "No persons seem to be recorded twice.", ButtonType.OK).show();
+            return;
         }
+
+        var list = new ListView<>(FXCollections.observableList(candidates));
+        list.setCellFactory(view -> new ListCell<>() {
+            @Override
+            protected void updateItem(DuplicateFinder.Candidate c, boolean empty) {
+                super.updateItem(c, empty);
+                setText(empty || c == null ? null : String.format("%s (%s)  ~  %s (%s)    %.0f%%",
+                    c.first().getDisplayName(), c.first().getId(),
+                    c.second().getDisplayName(), c.second().getId(), c.score() * 100));
+            }
+        });
+        list.setOnMouseClicked(e -> {
+            var selected = list.getSelectionModel().getSelectedItem();
+            if (e.getClickCount() == 2 && selected != null)
+                selectPerson(selected.first());
+        });
+        list.setPrefSize(520, 360);
+
+        var dialog = new Dialog<Void>();
+        dialog.setTitle("Find Duplicates");
+        dialog.setHeaderText(candidates.size() + " pairs may be the same person");
+        dialog.initOwner(peopleTable.getScene().getWindow());
+        dialog.initModality(Modality.NONE);
+        dialog.getDialogPane().setContent(list);
+        dialog.getDialogPane().getButtonTypes().add(ButtonType.CLOSE);
+        dialog.show();
     }
 
+    /**
+     * Asks for a second person and tells how the selected person is related to them, with the
+     * coefficient of relationship worked out over the ancestors of the two.
+     */
+    private void onRelationship() {
+
+        var from = rootPerson;
+        if (from == null) {
+            showError("Select the person to start from first.");
+            return;
+        }
+
+        var query = new TextField();
+        query.setPromptText("Search by name");
+        var matches = new ListView<Person>();
+        matches.setCellFactory(view -> new ListCell<>() {
+            @Override
+            protected void updateItem(Person p, boolean empty) {
+                super.updateItem(p, empty);
+                setText(empty || p == null ? null : p.getDisplayName() + " (" + p.getId() + ")");
+            }
+        });
+        query.textProperty().addListener((obs, oldVal, newVal) -> matches.setItems(FXCollections.observableList(
+            newVal == null || newVal.isBlank() ? List.of() : nameMatches(newVal, NameIndex.DEFAULT_LIMIT))));
+        matches.setPrefSize(360, 240);
+
+        var dialog = new Dialog<Person>();
+        dialog.setTitle("Relationship");
+        dialog.setHeaderText("How is " + from.getDisplayName() + " related to...");
+        dialog.initOwner(peopleTable.getScene().getWindow());
+        dialog.getDialogPane().setContent(new VBox(6, query, matches));
+        dialog.getDialogPane().getButtonTypes().addAll(ButtonType.OK, ButtonType.CANCEL);
+        dialog.getDialogPane().lookupButton(ButtonType.OK).disableProperty()
+              .bind(matches.getSelectionModel().selectedItemProperty().isNull());
+        dialog.setResultConverter(bt -> bt == ButtonType.OK ? matches.getSelectionModel().getSelectedItem() : null);
+        Platform.runLater(query::requestFocus);
+
+        dialog.showAndWait().ifPresent(to -> {
+            var relationship = RelationshipCalculator.relate(from, to);
+            var text = relationship.isRelated()
+                ? from.getDisplayName() + " is " + to.getDisplayName() + "'s " + relationship.label() + "."
+                : from.getDisplayName() + " and " + to.getDisplayName() + " are not related by blood.";
+            if (relationship.isRelated() && relationship.stepsUp() > 0 && relationship.stepsDown() > 0)
+                text += "\nNearest common ancestors: " + relationship.commonAncestors().stream()
+                    .map(Person::getDisplayName).collect(Collectors.joining(", "));
+            if (relationship.isRelated() && from != to)
+                text += String.format("\nCoefficient of relationship: %.4g%%",
+                                      100 * KinshipCalculator.ofPedigree(from, to).relationship(from, to));
+            new Alert(Alert.AlertType.INFORMATION, text, ButtonType.OK).show();
+        });
+    }
 
     private void showError(String msg) {
         new Alert(Alert.AlertType.ERROR, msg, ButtonType.OK).showAndWait();
     }
 
-    private void saveAndRedraw() {
+    @FunctionalInterface
+    private interface JournalEntry {
+        void writeTo(EditJournal journal) throws Exception;
+    }
+
+    /**
+     * Journals the edit, then saves the whole tree as well once the journal is long or misses some
+     * edit. The edit is journaled even while a save is running, a crash before that save completes
+     * would otherwise lose it; the save marks the journal after this write, so it discards exactly
+     * what the snapshot holds.
+     */
+    private void saveAndRedraw(JournalEntry entry) {
         try {
-            FamilyTreeRW.saveFamilyTree(people, "family_tree.xml");
+            if (journal != null)
+                entry.writeTo(journal);
+            if (journal == null || journalStale || journal.getRecordCount() >= COMPACT_AFTER_RECORDS) {
+                journalStale = true;
+                compact();
+            }
         } catch (Exception e) {
-            e.printStackTrace();
+            GenealogyApp.log("Failed to record edit, saving the whole tree instead: " + e.getMessage());
+            journalStale = true;
+            try {
+                compact();
+            } catch (Exception ex) {
+                showError("Failed to save changes:\n" + ex.getMessage());
+            }
         }
+        refreshIndexesLater();
         redrawTree();
     }
 
+    /**
+     * Rebuilds the derived indexes once edits pause for {@link #INDEX_DELAY}, so that a burst of
+     * edits, like undoing many steps, costs one build. Until then the old index answers by walking
+     * the links, since its version no longer has the current ones.
+     */
+    private void refreshIndexesLater() {
+        indexDelay.playFromStart();
+    }
+
+    /**
+     * Rebuilds the derived indexes on the indexer thread from the records of the current version,
+     * which no edit can change. Requests made while a build is queued replace its version.
+     */
+    private void refreshIndexes() {
+
+        indexDelay.stop();
+        if (archive != null) {
+            reachability = null;
+            return;
+        }
+
+        if (pendingIndex.getAndSet(repository.version()) == null)
+            indexer.execute(this::buildIndexes);
+    }
+
+    private void buildIndexes() {
+
+        TreeVersion version;
+        while ((version = pendingIndex.getAndSet(null)) != null) {
+            var index = ReachabilityIndex.of(version);
+            if (index.isCurrent(repository.version()))
+                reachability = index;
+        }
+    }
+
+    private void compact() throws Exception {
+
+        var j = journal;
+        var mark = j != null ? j.mark() : null;
+        long generation = ++staleGeneration;
+
+        saveService.submit(snapshot(), TREE_FILE, FamilyTreeRW::saveFamilyTree, () -> {
+            if (j != null)
+                j.discardUpTo(mark);
+            Platform.runLater(() -> {
+                if (generation == staleGeneration)
+                    journalStale = false;
+            });
+        }, null);
+    }
+
     @FXML
     private void onExit() {
         var alert = new Alert(Alert.AlertType.CONFIRMATION, "Really exit Geneus?", ButtonType.YES, ButtonType.NO);
@@ -283,10 +971,32 @@ public class PeopleWindowController {
         alert.setTitle("Exit");
         alert.initOwner(peopleTable.getScene().getWindow());
         if (alert.showAndWait().orElse(ButtonType.NO) == ButtonType.YES) {
-            GenealogyApp.log("Exiting Geneus");
+            // the application stops when its last window closes, and shutdown() runs from there
             var stage = (Stage) peopleTable.getScene().getWindow();
             stage.close();
         }
     }
 
+    /**
+     * Waits for pending saves and closes the journal. Called when the application stops, however its
+     * window was closed; calling it again does nothing.
+     */
+    public void shutdown() {
+        if (shutDown)
+            return;
+        shutDown = true;
+
+        GenealogyApp.log("Exiting Geneus");
+        try {
+            if (!saveService.flush(30, TimeUnit.SECONDS))
+                GenealogyApp.log("Timed out waiting for pending saves");
+            saveService.shutdown();
+            indexer.shutdownNow();
+            if (journal != null)
+                journal.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
 }
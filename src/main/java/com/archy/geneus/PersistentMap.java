@@ -0,0 +1,397 @@
+package com.archy.geneus;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable hash map where {@link #with} and {@link #without} return a new map in O(log n) that
+ * shares all untouched parts with the old one.
+ * <p>
+ * The map is a hash array mapped trie: every level takes five bits of the key's hash and keeps only
+ * the slots in use, marked in a bitmap. Keys whose hashes are equal share a collision node at the
+ * bottom. Since versions share their unchanged subtrees, {@link #diff} skips them by identity and
+ * costs about the size of the change rather than the size of the map.
+ */
+public final class PersistentMap<K, V> {
+
+    @FunctionalInterface
+    public interface DiffAction<K, V> {
+        /** {@code oldValue} is null for an added key, {@code newValue} for a removed one. */
+        void accept(K key, V oldValue, V newValue);
+    }
+
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+
+    private static final int BITS = 5, MASK = (1 << BITS) - 1;
+
+    private final BitmapNode root;
+    private final int size;
+
+    private PersistentMap(BitmapNode root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        if (root == null)
+            return null;
+        var entry = root.find(key, hash(key), 0);
+        return entry != null ? (V) entry.value : null;
+    }
+
+    /** This map with {@code key} mapped to {@code value}, which must not be null. */
+    public PersistentMap<K, V> with(K key, V value) {
+
+        Objects.requireNonNull(value);
+        var entry = new Entry(key, hash(key), value);
+        if (root == null)
+            return new PersistentMap<>(BitmapNode.of(entry, 0), 1);
+
+        var added = new boolean[1];
+        var node = root.with(entry, 0, added);
+        if (node == root)
+            return this;
+        return new PersistentMap<>((BitmapNode) node, added[0] ? size + 1 : size);
+    }
+
+    public PersistentMap<K, V> without(K key) {
+
+        if (root == null)
+            return this;
+
+        var node = root.without(key, hash(key), 0);
+        if (node == root)
+            return this;
+        return node == null ? empty() : new PersistentMap<>((BitmapNode) node, size - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (root != null)
+            root.forEach(e -> action.accept((K) e.key, (V) e.value));
+    }
+
+    /**
+     * Calls {@code action} for every key whose value differs between {@code from} and {@code to},
+     * by {@link Object#equals}. Subtrees the two maps share are not visited.
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> void diff(PersistentMap<K, V> from, PersistentMap<K, V> to, DiffAction<K, V> action) {
+        diffSlots(from.root, to.root, 0, (key, a, b) -> action.accept((K) key, (V) a, (V) b));
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private record Entry(Object key, int hash, Object value) { }
+
+    private interface EntryAction {
+        void accept(Entry e);
+    }
+
+    private interface Node {
+
+        Entry find(Object key, int hash, int shift);
+
+        /** This node with {@code entry} put in; sets {@code added[0]} if its key was new. */
+        Node with(Entry entry, int shift, boolean[] added);
+
+        /** This node without {@code key}, itself if the key is absent, or null once it is empty. */
+        Node without(Object key, int hash, int shift);
+
+        void forEach(EntryAction action);
+    }
+
+    private static final class BitmapNode implements Node {
+
+        final int bitmap;
+        // an Entry or a Node for every set bit, in bit order
+        final Object[] slots;
+
+        BitmapNode(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        static BitmapNode of(Entry entry, int shift) {
+            return new BitmapNode(bit(entry.hash, shift), new Object[] { entry });
+        }
+
+        static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        public Entry find(Object key, int hash, int shift) {
+
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0)
+                return null;
+
+            var slot = slots[index(bit)];
+            if (slot instanceof Entry e)
+                return e.key.equals(key) ? e : null;
+            return ((Node) slot).find(key, hash, shift + BITS);
+        }
+
+        @Override
+        public Node with(Entry entry, int shift, boolean[] added) {
+
+            int bit = bit(entry.hash, shift);
+            int index = index(bit);
+
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                var copy = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, copy, 0, index);
+                copy[index] = entry;
+                System.arraycopy(slots, index, copy, index + 1, slots.length - index);
+                return new BitmapNode(bitmap | bit, copy);
+            }
+
+            var slot = slots[index];
+            Object replacement;
+
+            if (slot instanceof Entry e) {
+                if (e.key.equals(entry.key)) {
+                    if (e.value == entry.value)
+                        return this;
+                    replacement = entry;
+                } else {
+                    added[0] = true;
+                    replacement = pair(e, entry, shift + BITS);
+                }
+            } else {
+                replacement = ((Node) slot).with(entry, shift + BITS, added);
+                if (replacement == slot)
+                    return this;
+            }
+
+            var copy = slots.clone();
+            copy[index] = replacement;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        private static Node pair(Entry a, Entry b, int shift) {
+
+            if (a.hash == b.hash)
+                return new CollisionNode(a.hash, new Entry[] { a, b });
+
+            int bitA = bit(a.hash, shift), bitB = bit(b.hash, shift);
+            if (bitA == bitB)
+                return new BitmapNode(bitA, new Object[] { pair(a, b, shift + BITS) });
+            // bits in unsigned order, 1 << 31 is negative
+            var slots = Integer.compareUnsigned(bitA, bitB) < 0 ? new Object[] { a, b } : new Object[] { b, a };
+            return new BitmapNode(bitA | bitB, slots);
+        }
+
+        @Override
+        public Node without(Object key, int hash, int shift) {
+
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0)
+                return this;
+
+            int index = index(bit);
+            var slot = slots[index];
+            Object replacement;
+
+            if (slot instanceof Entry e) {
+                if (!e.key.equals(key))
+                    return this;
+                replacement = null;
+            } else {
+                var child = ((Node) slot).without(key, hash, shift + BITS);
+                if (child == slot)
+                    return this;
+                replacement = inline(child);
+            }
+
+            if (replacement != null) {
+                var copy = slots.clone();
+                copy[index] = replacement;
+                return new BitmapNode(bitmap, copy);
+            }
+
+            if (slots.length == 1)
+                return null;
+            var copy = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, copy, 0, index);
+            System.arraycopy(slots, index + 1, copy, index, copy.length - index);
+            return new BitmapNode(bitmap & ~bit, copy);
+        }
+
+        /** A child left with a single entry is replaced by the entry itself. */
+        private static Object inline(Node child) {
+            if (child instanceof BitmapNode b && b.slots.length == 1 && b.slots[0] instanceof Entry e)
+                return e;
+            if (child instanceof CollisionNode c && c.entries.length == 1)
+                return c.entries[0];
+            return child;
+        }
+
+        @Override
+        public void forEach(EntryAction action) {
+            for (var slot : slots) {
+                if (slot instanceof Entry e)
+                    action.accept(e);
+                else
+                    ((Node) slot).forEach(action);
+            }
+        }
+    }
+
+    private static final class CollisionNode implements Node {
+
+        final int hash;
+        final Entry[] entries;
+
+        CollisionNode(int hash, Entry[] entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < entries.length; i++)
+                if (entries[i].key.equals(key))
+                    return i;
+            return -1;
+        }
+
+        @Override
+        public Entry find(Object key, int hash, int shift) {
+            if (hash != this.hash)
+                return null;
+            int i = indexOf(key);
+            return i < 0 ? null : entries[i];
+        }
+
+        @Override
+        public Node with(Entry entry, int shift, boolean[] added) {
+
+            if (entry.hash != hash) {
+                // only reachable below the last full level; split like any two different hashes
+                var node = new BitmapNode(BitmapNode.bit(hash, shift), new Object[] { this });
+                return node.with(entry, shift, added);
+            }
+
+            int i = indexOf(entry.key);
+            if (i >= 0) {
+                if (entries[i].value == entry.value)
+                    return this;
+                var copy = entries.clone();
+                copy[i] = entry;
+                return new CollisionNode(hash, copy);
+            }
+
+            added[0] = true;
+            var copy = Arrays.copyOf(entries, entries.length + 1);
+            copy[entries.length] = entry;
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        public Node without(Object key, int hash, int shift) {
+
+            int i = hash == this.hash ? indexOf(key) : -1;
+            if (i < 0)
+                return this;
+            if (entries.length == 1)
+                return null;
+
+            var copy = new Entry[entries.length - 1];
+            System.arraycopy(entries, 0, copy, 0, i);
+            System.arraycopy(entries, i + 1, copy, i, copy.length - i);
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        public void forEach(EntryAction action) {
+            for (var e : entries)
+                action.accept(e);
+        }
+    }
+
+    private interface RawDiff {
+        void accept(Object key, Object oldValue, Object newValue);
+    }
+
+    /** Compares two slots found at the same position, whose contents are at level {@code shift}. */
+    private static void diffSlots(Object a, Object b, int shift, RawDiff action) {
+
+        if (a == b)
+            return;
+
+        if (a == null) {
+            forEachEntry(b, e -> action.accept(e.key, null, e.value));
+            return;
+        }
+        if (b == null) {
+            forEachEntry(a, e -> action.accept(e.key, e.value, null));
+            return;
+        }
+
+        if (a instanceof BitmapNode na && b instanceof BitmapNode nb) {
+            int all = na.bitmap | nb.bitmap;
+            while (all != 0) {
+                int bit = Integer.lowestOneBit(all);
+                all &= ~bit;
+                var slotA = (na.bitmap & bit) != 0 ? na.slots[na.index(bit)] : null;
+                var slotB = (nb.bitmap & bit) != 0 ? nb.slots[nb.index(bit)] : null;
+                diffSlots(slotA, slotB, shift + BITS, action);
+            }
+            return;
+        }
+
+        // an entry against a subtree, or collisions: few entries, compare them by lookup
+        forEachEntry(a, e -> {
+            var other = findIn(b, e.key, e.hash, shift);
+            if (other == null)
+                action.accept(e.key, e.value, null);
+            else if (!Objects.equals(e.value, other.value))
+                action.accept(e.key, e.value, other.value);
+        });
+        forEachEntry(b, e -> {
+            if (findIn(a, e.key, e.hash, shift) == null)
+                action.accept(e.key, null, e.value);
+        });
+    }
+
+    private static Entry findIn(Object slot, Object key, int hash, int shift) {
+        if (slot instanceof Entry e)
+            return e.key.equals(key) ? e : null;
+        return ((Node) slot).find(key, hash, shift);
+    }
+
+    private static void forEachEntry(Object slot, EntryAction action) {
+        if (slot instanceof Entry e)
+            action.accept(e);
+        else
+            ((Node) slot).forEach(action);
+    }
+}
@@ -2,17 +2,18 @@ package com.archy.geneus;
 
 import java.time.LocalDate;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class Person implements Comparable<Person> {
 
+    public static final Comparator<Person> COMPARATOR =
+        Comparator.comparing(Person::getBirthDate)
+                  .thenComparing(Person::getDisplayName);
+
     @Override
     public int compareTo(Person o) {
-
-        return Comparator.comparing(Person::getBirthDate)
-                         .thenComparing(Person::getDisplayName)
-                         .compare(this, o);
+        return COMPARATOR.compare(this, o);
     }
 
     private String id;
@@ -23,7 +24,11 @@ public class Person implements Comparable<Person> {
 
     private Person parent1, parent2;
 
-    private List<Person> descendants = new ArrayList<>();
+    // built by RelationshipCalculator on first use, dropped here when the links above change
+    RelationshipCalculator.Ancestors ancestors;
+
+    private final Set<Person> descendants = new LinkedHashSet<>();
+    private final Set<Person> descendantsView = Collections.unmodifiableSet(descendants);
     private List<Marriage> marriages = new ArrayList<>();
 
     public Person(String id, String displayName) {
@@ -33,65 +38,275 @@ public class Person implements Comparable<Person> {
 
     public String getId()           { return id;           }
     public String getDisplayName()  { return displayName;  }
+    public void setDisplayName(String name) { this.displayName = name; }
     public LocalDate getBirthDate() { return birthDate;    }
     public void setBirthDate(LocalDate bd) { this.birthDate = bd; }
 
-    public void setParent1(Person p) { this.parent1 = p; }
-    public void setParent2(Person p) { this.parent2 = p; }
+    /**
+     * Parent and child links are kept in step: setting a parent also updates the children of
+     * both the previous and the new parent.
+     */
+    public void setParent1(Person p) {
+        if (parent1 == p) return;
+        var old = parent1;
+        parent1 = p;
+        relink(old, p);
+    }
+
+    public void setParent2(Person p) {
+        if (parent2 == p) return;
+        var old = parent2;
+        parent2 = p;
+        relink(old, p);
+    }
+
+    private void relink(Person oldParent, Person newParent) {
+        if (oldParent != null && oldParent != parent1 && oldParent != parent2)
+            oldParent.children().remove(this);
+        if (newParent != null)
+            newParent.children().add(this);
+        forgetAncestors();
+    }
+
+    /**
+     * Sets both parent slots without touching the children of either parent, for loaders
+     * that fill in the other side of the links themselves.
+     */
+    void assignParents(Person p1, Person p2) {
+        this.parent1 = p1;
+        this.parent2 = p2;
+        forgetAncestors();
+    }
+
+    /**
+     * Links a new copy to its parents, on both sides. Unlike the setters it does not look at the
+     * previous parents, a new copy has none.
+     */
+    void linkCopy(Person p1, Person p2) {
+        this.parent1 = p1;
+        this.parent2 = p2;
+        if (p1 != null) p1.children().add(this);
+        if (p2 != null && p2 != p1) p2.children().add(this);
+        forgetAncestors();
+    }
+
+    /**
+     * Drops the ancestor index of this person and of its descendants. An index is only built once
+     * the parents have theirs, so below a person without one there are none to drop.
+     */
+    private void forgetAncestors() {
+
+        if (ancestors == null)
+            return;
+
+        Deque<Person> work = new ArrayDeque<>();
+        work.push(this);
+        while (!work.isEmpty()) {
+            var p = work.pop();
+            if (p.ancestors == null)
+                continue;
+            p.ancestors = null;
+            work.addAll(p.children());
+        }
+    }
 
     public Person getParent1() { return parent1; }
     public Person getParent2() { return parent2; }
 
-    public void addChild(Person child) {
-        descendants.add(child);
-        if (child.parent1 == null) child.parent1 = this;
-        else if (child.parent2 == null) child.parent2 = this;
+    /**
+     * Makes this person a parent of {@code child}, taking the first free parent slot.
+     * Returns false if the child already has two other parents.
+     */
+    public boolean addChild(Person child) {
+        if (child.getParent1() == this || child.getParent2() == this) return true;
+        if (child.getParent1() == null) child.setParent1(this);
+        else if (child.getParent2() == null) child.setParent2(this);
+        else return false;
+        return true;
+    }
+
+    public void removeChild(Person child) {
+        if (child.getParent1() == this) child.setParent1(null);
+        if (child.getParent2() == this) child.setParent2(null);
     }
 
     public void setDeathDate(LocalDate dd) { this.deathDate = dd; }
     public LocalDate getDeathDate() { return deathDate; }
 
-    public List<Person> getDescendants() { return descendants; }
+    /**
+     * Children in the order they were linked; read-only, use {@link #addChild} and
+     * {@link #removeChild} or the parent setters to change it.
+     */
+    public Set<Person> getDescendants() {
+        return descendantsView;
+    }
+
+    Set<Person> children() { return descendants; }
 
     public List<Person> getParents() {
-        return Stream.of(parent1, parent2)
-                     .filter(Objects::nonNull)
-                     .collect(Collectors.toList());
+        List<Person> parents = new ArrayList<>(2);
+        forEachParent(parents::add);
+        return parents;
+    }
+
+    /**
+     * Registers {@code m}, which must involve this person, with both of its spouses.
+     */
+    public void addMarriage(Marriage m) {
+        addIfAbsent(m.getSpouse1().getMarriages(), m);
+        addIfAbsent(m.getSpouse2().getMarriages(), m);
+    }
+
+    private static void addIfAbsent(List<Marriage> marriages, Marriage m) {
+        for (int i = 0, n = marriages.size(); i < n; i++)
+            if (marriages.get(i) == m) return;
+        marriages.add(m);
     }
 
-    public void addMarriage(Marriage m) { marriages.add(m); }
 
     public List<Marriage> getMarriages() { return marriages; }
 
     public Marriage getMarriageWith(Person partner) {
-        return marriages.stream()
-                        .filter(m -> m.getSpouse().equals(partner))
-                        .findFirst()
-                        .orElse(null);
+        var marriages = getMarriages();
+        for (int i = 0, n = marriages.size(); i < n; i++) {
+            var m = marriages.get(i);
+            if (m.getSpouseOf(this).equals(partner))
+                return m;
+        }
+        return null;
+    }
+
+    public Marriage getMarriage(String marriageId) {
+        var marriages = getMarriages();
+        for (int i = 0, n = marriages.size(); i < n; i++) {
+            var m = marriages.get(i);
+            if (m.getId().equals(marriageId))
+                return m;
+        }
+        return null;
     }
 
     public List<Person> getPartners() {
-        return marriages.stream()
-                        .map(Marriage::getSpouse)
-                        .collect(Collectors.toList());
+        List<Person> partners = new ArrayList<>(getMarriages().size());
+        forEachPartner(partners::add);
+        return partners;
     }
 
     public List<Person> getSiblings() {
-        return getParents().stream()
-            .flatMap(p -> p.getDescendants().stream())
-            .filter(c -> !c.equals(this))
-            .distinct()
-            .collect(Collectors.toList());
+        List<Person> siblings = new ArrayList<>();
+        forEachSibling(siblings::add);
+        return siblings;
     }
 
     public List<Person> getSharedDescendantsWith(Person partner) {
-        return getDescendants().stream()
-            .filter(child ->
-                (Objects.equals(child.getParent1(), this) && Objects.equals(child.getParent2(), partner)) ||
-                (Objects.equals(child.getParent2(), this) && Objects.equals(child.getParent1(), partner))
-            ).distinct().toList();
+        List<Person> shared = new ArrayList<>();
+        forEachSharedChild(partner, shared::add);
+        return shared;
+    }
+
+    /*
+     * The visitors below walk the links in place instead of building a list; the list-returning
+     * methods above are built on them.
+     */
+
+    public void forEachParent(Consumer<? super Person> action) {
+        var p1 = getParent1();
+        var p2 = getParent2();
+        if (p1 != null) action.accept(p1);
+        if (p2 != null) action.accept(p2);
+    }
+
+    /**
+     * Children of parent1 first, then those of parent2 that were not already visited.
+     */
+    public void forEachSibling(Consumer<? super Person> action) {
+        var p1 = getParent1();
+        var p2 = getParent2();
+
+        if (p1 != null)
+            for (var c : p1.getDescendants())
+                if (c != this) action.accept(c);
+
+        if (p2 != null && p2 != p1)
+            for (var c : p2.getDescendants())
+                if (c != this && (p1 == null || !c.hasParent(p1))) action.accept(c);
+    }
+
+    public void forEachPartner(Consumer<? super Person> action) {
+        var marriages = getMarriages();
+        for (int i = 0, n = marriages.size(); i < n; i++)
+            action.accept(marriages.get(i).getSpouseOf(this));
+    }
+
+    public void forEachSharedChild(Person partner, Consumer<? super Person> action) {
+        for (var child : getDescendants())
+            if (child.getParent1() == this && child.getParent2() == partner
+                || child.getParent2() == this && child.getParent1() == partner)
+                action.accept(child);
+    }
+
+    public boolean hasParent(Person p) {
+        return getParent1() == p || getParent2() == p;
+    }
+
+    /**
+     * Detaches this person from its parents, children and spouses. Only the linked
+     * persons are visited, so it costs O(degree) rather than a scan of the whole tree.
+     */
+    public void unlink() {
+
+        setParent1(null);
+        setParent2(null);
+
+        for (var child : new ArrayList<>(getDescendants()))
+            removeChild(child);
+
+        for (var m : getMarriages()) {
+            m.getSpouseOf(this).getMarriages().remove(m);
+            m.getPlaces().forget(m);
+        }
+        getMarriages().clear();
+    }
+
+    /**
+     * Deep copy of {@code people} with all links pointing into the copy, so it can be
+     * read on another thread while the original keeps being edited.
+     */
+    public static List<Person> copyOf(List<Person> people) {
+
+        Map<Person, Person> copies = new IdentityHashMap<>(people.size() * 2);
+        Map<Marriage, Marriage> marriageCopies = new IdentityHashMap<>();
+        List<Person> result = new ArrayList<>(people.size());
+
+        for (var p : people)
+            result.add(copies.computeIfAbsent(p, Person::detachedCopy));
+
+        for (var p : people) {
+            var copy = copies.get(p);
+
+            if (p.getParent1() != null) copy.parent1 = copies.computeIfAbsent(p.getParent1(), Person::detachedCopy);
+            if (p.getParent2() != null) copy.parent2 = copies.computeIfAbsent(p.getParent2(), Person::detachedCopy);
+
+            for (var child : p.getDescendants())
+                copy.descendants.add(copies.computeIfAbsent(child, Person::detachedCopy));
+
+            for (var m : p.getMarriages())
+                copy.marriages.add(marriageCopies.computeIfAbsent(m, x -> x.copyFor(
+                    copies.computeIfAbsent(x.getSpouse1(), Person::detachedCopy),
+                    copies.computeIfAbsent(x.getSpouse2(), Person::detachedCopy))));
+        }
+
+        return result;
+    }
+
+    private static Person detachedCopy(Person p) {
+        var copy = new Person(p.id, p.displayName);
+        copy.birthDate = p.birthDate;
+        copy.deathDate = p.deathDate;
+        return copy;
     }
 
+    /** Scans {@code people}; a {@link PersonRepository} finds ids without a scan. */
     public static Person getPersonByID(List<Person> people, String id) {
         return people.stream()
                      .filter(p -> p.getId().equals(id))
@@ -118,12 +333,12 @@ public class Person implements Comparable<Person> {
             ", displayName='" + displayName + '\'' +
             ", birthDate=" + birthDate +
             ", deathDate=" + deathDate +
-            ", parent1=" + (parent1 != null ? parent1.getDisplayName() + " (ID: " + parent1.getId() + ")" : null) +
-            ", parent2=" + (parent2 != null ? parent2.getDisplayName() + " (ID: " + parent2.getId() + ")" : null) +
-            ", marriages=" + marriages.stream()
-            .map(m -> m.getSpouse().getDisplayName() + " (ID: " + m.getSpouse().getId() + ")")
+            ", parent1=" + (getParent1() != null ? getParent1().getDisplayName() + " (ID: " + getParent1().getId() + ")" : null) +
+            ", parent2=" + (getParent2() != null ? getParent2().getDisplayName() + " (ID: " + getParent2().getId() + ")" : null) +
+            ", marriages=" + getMarriages().stream()
+            .map(m -> m.getSpouseOf(this).getDisplayName() + " (ID: " + m.getSpouseOf(this).getId() + ")")
             .collect(Collectors.joining(", ", "[", "]")) +
-            ", descendants=" + descendants.stream()
+            ", descendants=" + getDescendants().stream()
             .map(d -> d.getDisplayName() + " (ID: " + d.getId() + ")")
             .collect(Collectors.joining(", ", "[", "]")) +
             '}';
@@ -0,0 +1,94 @@
+package com.archy.geneus;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * Reusable buffer of related persons for hot loops. Each call to {@link #parents}, {@link #siblings}
+ * and the like replaces the content, and the backing array only grows, so walking a whole tree
+ * through one cursor builds no list per person; iterating the children still takes an iterator.
+ * <pre>
+ *     var cursor = new PersonCursor();
+ *     for (var p : people)
+ *         for (cursor.siblings(p); cursor.hasNext(); )
+ *             visit(cursor.next());
+ * </pre>
+ * A cursor holds strong references until it is loaded again or {@link #clear() cleared}, and is
+ * not thread-safe.
+ */
+public final class PersonCursor {
+
+    private Person[] items = new Person[8];
+    private int size;
+    private int position;
+
+    private final Consumer<Person> push = this::push;
+
+    public PersonCursor parents(Person person) {
+        clear();
+        person.forEachParent(push);
+        return this;
+    }
+
+    public PersonCursor siblings(Person person) {
+        clear();
+        person.forEachSibling(push);
+        return this;
+    }
+
+    public PersonCursor partners(Person person) {
+        clear();
+        person.forEachPartner(push);
+        return this;
+    }
+
+    public PersonCursor children(Person person) {
+        clear();
+        for (var child : person.getDescendants())
+            push(child);
+        return this;
+    }
+
+    public PersonCursor sharedChildren(Person person, Person partner) {
+        clear();
+        person.forEachSharedChild(partner, push);
+        return this;
+    }
+
+    public boolean hasNext() {
+        return position < size;
+    }
+
+    public Person next() {
+        if (position >= size)
+            throw new NoSuchElementException();
+        return items[position++];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Person get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException(index);
+        return items[index];
+    }
+
+    public void rewind() {
+        position = 0;
+    }
+
+    public void clear() {
+        Arrays.fill(items, 0, size, null);
+        size = 0;
+        position = 0;
+    }
+
+    private void push(Person person) {
+        if (size == items.length)
+            items = Arrays.copyOf(items, size * 2);
+        items[size++] = person;
+    }
+}
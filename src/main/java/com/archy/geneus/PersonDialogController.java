@@ -5,7 +5,9 @@ import javafx.scene.control.*;
 import javafx.util.Callback;
 
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 public class PersonDialogController {
 
@@ -13,26 +15,32 @@ public class PersonDialogController {
     @FXML private DatePicker birthDatePicker, deathDatePicker;
     @FXML private ComboBox<Person> parent1Combo, parent2Combo;
 
-    private List<Person> allPeople;
-    private Person editingPerson;
+    @FXML private TextField parentSearchField;
 
-    public void setData(List<Person> allPeople, Person editingPerson) {
+    private static final int PARENT_CHOICES = 500;
 
-        this.allPeople = allPeople;
+    private PersonRepository repository;
+    private List<Person> allPeople;
+    private Person editingPerson;
+    private ReachabilityIndex reachability;
+    private NameIndex names;
+    private boolean hideDescendants;
+
+    /**
+     * {@code reachability} may be null or outdated; it only decides whether descendants of the edited
+     * person can be left out of the parent lists up front. {@code names} may be null, the parent
+     * search then scans the persons of {@code repository}; otherwise it must be up to date with the
+     * current version of {@code repository}.
+     */
+    public void setData(PersonRepository repository, Person editingPerson, ReachabilityIndex reachability, NameIndex names) {
+
+        this.repository = repository;
+        this.allPeople = repository.snapshot();
         this.editingPerson = editingPerson;
+        this.reachability = reachability;
+        this.names = names;
 
-        parent1Combo.getItems().clear();
-        parent2Combo.getItems().clear();
-
-        parent1Combo.getItems().add(null);
-        parent2Combo.getItems().add(null);
-
-        for (Person p : allPeople) {
-            if (editingPerson == null || !p.equals(editingPerson)) {
-                parent1Combo.getItems().add(p);
-                parent2Combo.getItems().add(p);
-            }
-        }
+        hideDescendants = editingPerson != null && reachability != null && reachability.isCurrent(repository.version());
 
         Callback<ListView<Person>, ListCell<Person>> personCellFactory = lv -> new ListCell<>() {
             @Override
@@ -60,8 +68,49 @@ public class PersonDialogController {
             parent1Combo.setValue(editingPerson.getParent1());
             parent2Combo.setValue(editingPerson.getParent2());
         }
+
+        showParentChoices("");
+        parentSearchField.textProperty().addListener((obs, oldVal, newVal) -> showParentChoices(newVal));
+    }
+
+
+    /**
+     * Fills both parent lists with the best matches of {@code query}, or the first persons if it is
+     * empty, at most {@link #PARENT_CHOICES}. The chosen parents stay in their lists.
+     */
+    private void showParentChoices(String query) {
+
+        List<Person> choices = new ArrayList<>();
+
+        if (query == null || query.isBlank()) {
+            for (var p : allPeople) {
+                if (choices.size() == PARENT_CHOICES) break;
+                if (isEligibleParent(p)) choices.add(p);
+            }
+        } else {
+            var found = names != null
+                    ? names.search(query, PARENT_CHOICES).stream().map(repository::byKey).filter(Objects::nonNull).toList()
+                    : allPeople.stream().filter(p -> NameIndex.matches(p, query)).limit(PARENT_CHOICES).toList();
+            for (var p : found)
+                if (isEligibleParent(p)) choices.add(p);
+        }
+
+        for (var combo : List.of(parent1Combo, parent2Combo)) {
+            var chosen = combo.getValue();
+            var items = new ArrayList<Person>(choices.size() + 2);
+            items.add(null);
+            if (chosen != null && !choices.contains(chosen))
+                items.add(chosen);
+            items.addAll(choices);
+            combo.getItems().setAll(items);
+            combo.setValue(chosen);
+        }
     }
 
+    private boolean isEligibleParent(Person p) {
+        return editingPerson == null || !p.equals(editingPerson)
+                && !(hideDescendants && reachability.isAncestor(editingPerson, p, repository));
+    }
 
     public Person getResult() {
 
@@ -83,10 +132,16 @@ public class PersonDialogController {
             return null;
         }
 
+        if (editingPerson != null && (isDescendant(p1) || isDescendant(p2))) {
+            showError("A person cannot be their own ancestor!");
+            return null;
+        }
+
         Person result = editingPerson == null
-                ? new Person(generateUniqueId(allPeople), name)
+                ? new Person(repository.nextId(), name)
                 : editingPerson;
 
+        result.setDisplayName(name);
         result.setBirthDate(birth);
         result.setDeathDate(death);
         result.setParent1(p1);
@@ -94,15 +149,15 @@ public class PersonDialogController {
         return result;
     }
 
-    private void showError(String msg) {
-        new Alert(Alert.AlertType.ERROR, msg, ButtonType.OK).showAndWait();
+    private boolean isDescendant(Person p) {
+        if (p == null)
+            return false;
+        return reachability != null
+                ? reachability.isAncestor(editingPerson, p, repository)
+                : ReachabilityIndex.isAncestorByWalk(editingPerson, p);
     }
 
-    private String generateUniqueId(List<Person> allPeople) {
-        int max = allPeople.stream().mapToInt(p -> {
-            try { return Integer.parseInt(p.getId()); }
-            catch (Exception e) { return 0; }
-        }).max().orElse(0);
-        return String.valueOf(max + 1);
+    private void showError(String msg) {
+        new Alert(Alert.AlertType.ERROR, msg, ButtonType.OK).showAndWait();
     }
 }
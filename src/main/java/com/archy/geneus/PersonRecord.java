@@ -0,0 +1,27 @@
+package com.archy.geneus;
+
+import java.time.LocalDate;
+
+/**
+ * The fields of a {@link Person} at one {@link TreeVersion}, with parents referred to by key.
+ * The key is the id, unless an earlier person of the tree has the same id; then it is the id with
+ * a suffix that keeps it unique. {@code order} keeps the person's place in the tree when a version
+ * is turned back into a list.
+ */
+public record PersonRecord(String key, String id, long order, String displayName,
+                           LocalDate birthDate, LocalDate deathDate,
+                           String parent1, String parent2) {
+
+    /** A new, unlinked person with these fields. */
+    Person toPerson() {
+        var p = new Person(id, displayName);
+        copyFieldsTo(p);
+        return p;
+    }
+
+    void copyFieldsTo(Person p) {
+        p.setDisplayName(displayName);
+        p.setBirthDate(birthDate);
+        p.setDeathDate(deathDate);
+    }
+}
@@ -0,0 +1,382 @@
+package com.archy.geneus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * The persons of one editable tree, with lookup by id, id allocation and change events.
+ * <p>
+ * Persons keep their order of addition. A removed person leaves a hole that later snapshots skip,
+ * and the holes are closed once they outnumber the persons, so adding, updating and removing cost
+ * O(1) plus the person's own links; removal detaches it through {@link Person#unlink()}, which visits
+ * only its parents, children and unions. Listeners are called synchronously on the thread that made
+ * the change; the repository itself is meant to be used from one thread, the FX thread in the app.
+ * <p>
+ * Ids are handed out from a counter that starts above the largest numeric id present. If a tree has
+ * the same id twice, lookup finds the first person added under it that is still present; versions
+ * still tell them apart by {@link PersonRecord#key() key}.
+ * <p>
+ * Every change also derives the next {@link TreeVersion}, in O(log n), and {@link #restore} brings
+ * the persons back to any earlier or later version by applying only the difference.
+ * <p>
+ * The versions are how other threads read the tree. A change is published as one atomic swap once
+ * it is complete, so {@link #version()} can be called from any thread without locking and never
+ * shows half of an edit. Readers on other threads traverse the records of that version and hand
+ * record keys back to the FX thread, where {@link #byKey} turns them into live persons.
+ */
+public final class PersonRepository {
+
+    public enum Kind { ADDED, UPDATED, REMOVED, RELOADED }
+
+    /**
+     * One change; {@code person} is null for {@code RELOADED}, which replaces everything. For
+     * {@code REMOVED} and {@code UPDATED}, {@code unions} lists the marriages the person was detached
+     * from.
+     */
+    public record Change(Kind kind, Person person, List<Marriage> unions) { }
+
+    // guarded by itself, nextId() reads it from other threads; later persons with an id already in
+    // byId wait in sameId, in order of addition, to take its place when it is removed
+    private final Map<String, Person> byId = new HashMap<>();
+    private final Map<String, List<Person>> sameId = new HashMap<>();
+    private final Map<Person, Integer> slots = new IdentityHashMap<>();
+    private final Map<Person, String> keys = new IdentityHashMap<>();
+    private final Map<String, Person> byKey = new HashMap<>();
+    private int duplicates;
+    private Person[] order = new Person[16];
+    private int used;
+    private PlaceDictionary places = new PlaceDictionary();
+    private final AtomicReference<TreeVersion> published = new AtomicReference<>(TreeVersion.empty(places));
+
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final List<Consumer<Change>> listeners = new CopyOnWriteArrayList<>();
+
+    public PersonRepository() { }
+
+    public PersonRepository(List<Person> people, PlaceDictionary places) {
+        load(people, places);
+    }
+
+    public void addListener(Consumer<Change> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<Change> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Replaces all persons with {@code people}, which should already be linked to each other, and the
+     * place dictionary with {@code places}, the one their unions were loaded into.
+     */
+    public void replaceAll(List<Person> people, PlaceDictionary places) {
+        load(people, places);
+        fire(new Change(Kind.RELOADED, null, List.of()));
+    }
+
+    private void load(List<Person> people, PlaceDictionary places) {
+
+        this.places = places;
+
+        synchronized (byId) {
+            byId.clear();
+            sameId.clear();
+        }
+        slots.clear();
+        keys.clear();
+        byKey.clear();
+        duplicates = 0;
+        order = new Person[Math.max(16, people.size() + people.size() / 4)];
+        used = 0;
+        nextId.set(1);
+
+        for (var p : people)
+            insert(p, null);
+        published.set(TreeVersion.of(people, keys::get, places));
+    }
+
+    public void add(Person p) {
+        if (slots.containsKey(p))
+            throw new IllegalArgumentException("Person " + p.getId() + " is already in the repository");
+        insert(p, null);
+        published.set(version().with(p, keys::get));
+        fire(new Change(Kind.ADDED, p, List.of()));
+    }
+
+    /** Announces that {@code p}'s fields or parents were changed in place. */
+    public void update(Person p) {
+        if (slots.containsKey(p)) {
+            published.set(version().with(p, keys::get));
+            fire(new Change(Kind.UPDATED, p, List.of()));
+        }
+    }
+
+    /** Removes {@code p} and detaches it from its parents, children and spouses. */
+    public void remove(Person p) {
+
+        var slot = slots.remove(p);
+        if (slot == null)
+            return;
+
+        var unions = List.copyOf(p.getMarriages());
+        var children = List.copyOf(p.getDescendants());
+        var next = version().without(p, unions, keys::get);
+        detach(p, slot);
+
+        // the children lost a parent, they are published together with the removal
+        for (var child : children)
+            next = next.with(child, keys::get);
+        published.set(next);
+
+        fire(new Change(Kind.REMOVED, p, unions));
+    }
+
+    private void detach(Person p, int slot) {
+
+        order[slot] = null;
+        byKey.remove(keys.remove(p));
+        synchronized (byId) {
+            var id = p.getId();
+            var waiting = sameId.get(id);
+            if (byId.get(id) == p) {
+                if (waiting == null)
+                    byId.remove(id);
+                else
+                    byId.put(id, waiting.remove(0));
+            } else if (waiting != null) {
+                waiting.removeIf(q -> q == p);
+            }
+            if (waiting != null && waiting.isEmpty())
+                sameId.remove(id);
+        }
+        p.unlink();
+
+        if (used - slots.size() > slots.size())
+            compact();
+    }
+
+    /** The version after the last complete change; safe to call from any thread. */
+    public TreeVersion version() {
+        return published.get();
+    }
+
+    /**
+     * Changes the persons to match {@code target}, which usually is a version this repository had
+     * before, and fires one event per person that was added, removed or changed.
+     */
+    public void restore(TreeVersion target) {
+
+        var version = version();
+        if (target == version)
+            return;
+
+        Map<Person, List<Marriage>> detached = new IdentityHashMap<>();
+        var newUnions = new ArrayList<UnionRecord>();
+
+        PersistentMap.diff(version.unions(), target.unions(), (key, old, now) -> {
+            var spouse = old != null ? byKey.get(old.spouse1()) : null;
+            var m = spouse != null ? spouse.getMarriage(old.id()) : null;
+            if (m != null) {
+                m.getSpouse1().getMarriages().remove(m);
+                m.getSpouse2().getMarriages().remove(m);
+                m.getPlaces().forget(m);
+                detached.computeIfAbsent(m.getSpouse1(), x -> new ArrayList<>()).add(m);
+                detached.computeIfAbsent(m.getSpouse2(), x -> new ArrayList<>()).add(m);
+            }
+            if (now != null)
+                newUnions.add(now);
+        });
+
+        var removed = new ArrayList<Person>();
+        var added = new ArrayList<PersonRecord>();
+        var linked = new ArrayList<PersonRecord>();
+        // by identity, persons with the same id are equal
+        Set<Person> updated = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        PersistentMap.diff(version.persons(), target.persons(), (key, old, now) -> {
+            var p = byKey.get(key);
+            if (now == null) {
+                if (p != null)
+                    removed.add(p);
+            } else if (p == null) {
+                added.add(now);
+                linked.add(now);
+            } else {
+                now.copyFieldsTo(p);
+                linked.add(now);
+                updated.add(p);
+            }
+        });
+
+        var removedUnions = new IdentityHashMap<Person, List<Marriage>>();
+        for (var p : removed) {
+            var unions = new ArrayList<>(detached.getOrDefault(p, List.of()));
+            unions.addAll(p.getMarriages());
+            removedUnions.put(p, unions);
+            detach(p, slots.remove(p));
+        }
+
+        added.sort(Comparator.comparingLong(PersonRecord::order));
+        var created = new ArrayList<Person>(added.size());
+        for (var record : added) {
+            var p = record.toPerson();
+            insert(p, record.key());
+            created.add(p);
+        }
+
+        // parents are cleared first so that no link outside the target, and no cycle, shows up midway
+        for (var record : linked) {
+            var p = byKey.get(record.key());
+            p.setParent1(null);
+            p.setParent2(null);
+        }
+        for (var record : linked) {
+            var p = byKey.get(record.key());
+            p.setParent1(record.parent1() != null ? byKey.get(record.parent1()) : null);
+            p.setParent2(record.parent2() != null ? byKey.get(record.parent2()) : null);
+        }
+
+        for (var union : newUnions) {
+            var spouse1 = byKey.get(union.spouse1());
+            var spouse2 = byKey.get(union.spouse2());
+            spouse1.addMarriage(union.toMarriage(spouse1, spouse2, target.places(), places));
+            updated.add(spouse1);
+            updated.add(spouse2);
+        }
+        updated.addAll(detached.keySet());
+        updated.removeIf(p -> !slots.containsKey(p));
+        created.forEach(updated::remove);
+
+        published.set(target);
+
+        for (var p : removed)
+            fire(new Change(Kind.REMOVED, p, removedUnions.get(p)));
+        for (var p : created)
+            fire(new Change(Kind.ADDED, p, List.of()));
+        for (var p : updated)
+            fire(new Change(Kind.UPDATED, p, detached.getOrDefault(p, List.of())));
+    }
+
+    /** The place dictionary of the tree; new unions of its persons should use it. */
+    public PlaceDictionary places() {
+        return places;
+    }
+
+    public Person get(String id) {
+        synchronized (byId) {
+            return byId.get(id);
+        }
+    }
+
+    /** The person stored under {@link PersonRecord#key() key} in the current version, or null. */
+    Person byKey(String key) {
+        return byKey.get(key);
+    }
+
+    /** The {@link PersonRecord#key() key} of {@code p} in the current version, or null. */
+    String keyOf(Person p) {
+        return keys.get(p);
+    }
+
+    public boolean contains(Person p) {
+        return slots.containsKey(p);
+    }
+
+    public int size() {
+        return slots.size();
+    }
+
+    /** The persons in order of addition, as a new list. */
+    public List<Person> snapshot() {
+        var result = new ArrayList<Person>(slots.size());
+        for (int i = 0; i < used; i++)
+            if (order[i] != null)
+                result.add(order[i]);
+        return result;
+    }
+
+    /**
+     * A fresh numeric id, unused by any person in the repository. Safe to call from any thread.
+     */
+    public String nextId() {
+        while (true) {
+            var id = String.valueOf(nextId.getAndIncrement());
+            synchronized (byId) {
+                if (!byId.containsKey(id))
+                    return id;
+            }
+        }
+    }
+
+    /** Adds {@code p} under {@code key}, or under a new one if it is null. */
+    private void insert(Person p, String key) {
+
+        if (used == order.length)
+            order = Arrays.copyOf(order, used * 2);
+
+        slots.put(p, used);
+        order[used++] = p;
+        boolean first;
+        synchronized (byId) {
+            first = byId.putIfAbsent(p.getId(), p) == null;
+            if (!first)
+                sameId.computeIfAbsent(p.getId(), id -> new ArrayList<>(1)).add(p);
+        }
+
+        if (key == null)
+            key = first && !byKey.containsKey(p.getId()) ? p.getId() : TreeVersion.key(p.getId(), ++duplicates);
+        keys.put(p, key);
+        byKey.put(key, p);
+
+        long numeric = numericId(p.getId());
+        if (numeric >= 0)
+            nextId.accumulateAndGet(numeric + 1, Math::max);
+    }
+
+    private void compact() {
+
+        int live = 0;
+        for (int i = 0; i < used; i++) {
+            var p = order[i];
+            if (p == null)
+                continue;
+            order[live] = p;
+            slots.put(p, live);
+            live++;
+        }
+        Arrays.fill(order, live, used, null);
+        used = live;
+    }
+
+    /** The id as a number if it is one, otherwise -1; no exceptions for the common non-numeric ids. */
+    private static long numericId(String id) {
+
+        if (id == null || id.isEmpty() || id.length() > 18)
+            return -1;
+
+        long value = 0;
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private void fire(Change change) {
+        for (var listener : listeners)
+            listener.accept(change);
+    }
+}
@@ -0,0 +1,250 @@
+package com.archy.geneus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip streams whose (de)compression runs on a separate thread, handing chunks over a bounded queue,
+ * so that inflating overlaps with parsing and deflating with serializing.
+ */
+final class PipelinedStreams {
+
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final int QUEUE_CHUNKS = 8;
+    private static final byte[] END = new byte[0];
+
+    private PipelinedStreams() { }
+
+    static boolean isCompressed(String filePath) {
+        return filePath.endsWith(".gz");
+    }
+
+    /**
+     * Inflates {@code compressed} on a background thread; closing the returned stream closes {@code compressed}.
+     */
+    static InputStream inflating(InputStream compressed) {
+
+        var stream = new InflatingStream(compressed);
+        var thread = new Thread(stream::pump, "geneus-inflate");
+        thread.setDaemon(true);
+        stream.thread = thread;
+        thread.start();
+        return stream;
+    }
+
+    /**
+     * Deflates into {@code target} on a background thread. Closing the returned stream waits for the
+     * compressor and finishes the gzip trailer but leaves {@code target} open.
+     */
+    static OutputStream deflating(OutputStream target) {
+
+        var stream = new DeflatingStream(target);
+        var thread = new Thread(stream::pump, "geneus-deflate");
+        thread.setDaemon(true);
+        stream.thread = thread;
+        thread.start();
+        return stream;
+    }
+
+    private static final class InflatingStream extends InputStream {
+
+        private final InputStream compressed;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+        private volatile IOException failure;
+        private volatile boolean closed;
+        private Thread thread;
+
+        private byte[] chunk = new byte[0];
+        private int position;
+        private boolean ended;
+
+        InflatingStream(InputStream compressed) {
+            this.compressed = compressed;
+        }
+
+        private void pump() {
+            try (var gz = new GZIPInputStream(compressed, CHUNK_SIZE)) {
+                while (!closed) {
+                    byte[] buf = gz.readNBytes(CHUNK_SIZE);
+                    if (buf.length == 0)
+                        break;
+                    queue.put(buf);
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                queue.put(END);
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        private boolean fill() throws IOException {
+            while (position >= chunk.length) {
+                if (ended)
+                    return false;
+                try {
+                    chunk = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while inflating");
+                }
+                position = 0;
+                if (chunk == END) {
+                    ended = true;
+                    if (failure != null)
+                        throw new IOException("Failed to inflate: " + failure.getMessage(), failure);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? chunk[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int n = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            thread.interrupt();
+            queue.clear();
+            compressed.close();
+        }
+    }
+
+    private static final class DeflatingStream extends OutputStream {
+
+        private final OutputStream target;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+        private volatile IOException failure;
+        private Thread thread;
+
+        private byte[] buffer = new byte[CHUNK_SIZE];
+        private int count;
+        private boolean closed;
+
+        DeflatingStream(OutputStream target) {
+            this.target = target;
+        }
+
+        private void pump() {
+
+            GZIPOutputStream gz = null;
+            try {
+                gz = new GZIPOutputStream(target, CHUNK_SIZE);
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            // keeps draining after a failure so the writer never blocks on a full queue
+            try {
+                byte[] chunk;
+                while ((chunk = queue.take()) != END) {
+                    if (failure == null) {
+                        try {
+                            gz.write(chunk);
+                        } catch (IOException e) {
+                            failure = e;
+                        }
+                    }
+                }
+                if (failure == null)
+                    gz.finish();
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        private void handOff() throws IOException {
+            if (failure != null)
+                throw new IOException("Failed to deflate: " + failure.getMessage(), failure);
+            if (count == 0)
+                return;
+            try {
+                queue.put(count == buffer.length ? buffer : Arrays.copyOf(buffer, count));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while deflating");
+            }
+            buffer = new byte[CHUNK_SIZE];
+            count = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length)
+                handOff();
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length)
+                    handOff();
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+
+            // the thread is ended whatever happens here, or it would wait for more chunks forever
+            try {
+                if (failure == null)
+                    handOff();
+            } finally {
+                finish();
+            }
+
+            if (failure != null)
+                throw new IOException("Failed to deflate: " + failure.getMessage(), failure);
+            target.flush();
+        }
+
+        private void finish() throws InterruptedIOException {
+            try {
+                queue.put(END);
+                thread.join();
+            } catch (InterruptedException e) {
+                thread.interrupt();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while deflating");
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.archy.geneus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Interns the area and country names of marriages into small int ids and indexes the unions by
+ * place, so that "all unions in country X" is answered without a scan.
+ * <p>
+ * Every tree has a dictionary of its own: the {@link PersonRepository} owns the one of the edited tree
+ * and gets a new one with every reload, loaders intern into the one they are given, and every
+ * {@link Marriage} knows the dictionary its ids belong to.
+ * <p>
+ * Names are never removed, ids stay valid for the life of the dictionary. The union index holds
+ * its entries weakly; detached unions drop out when they are {@link #forget forgotten} or collected.
+ */
+public final class PlaceDictionary {
+
+    public static final int NONE = -1;
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private volatile String[] names = new String[64];
+    private int size;
+
+    private final Map<Integer, Set<Marriage>> byArea = new HashMap<>();
+    private final Map<Integer, Set<Marriage>> byCountry = new HashMap<>();
+
+    public synchronized int intern(String name) {
+
+        if (name == null)
+            return NONE;
+
+        var id = ids.get(name);
+        if (id != null)
+            return id;
+
+        var table = names;
+        if (size == table.length)
+            table = Arrays.copyOf(table, size * 2);
+        table[size] = name;
+        names = table;
+
+        ids.put(name, size);
+        return size++;
+    }
+
+    /**
+     * Lock-free: an id handed out by {@link #intern} is always visible in the current table.
+     */
+    public String name(int id) {
+        return id == NONE ? null : names[id];
+    }
+
+    public synchronized int idOf(String name) {
+        var id = name == null ? null : ids.get(name);
+        return id == null ? NONE : id;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized List<Marriage> unionsInArea(String area) {
+        return snapshot(byArea.get(idOf(area)));
+    }
+
+    public synchronized List<Marriage> unionsInCountry(String country) {
+        return snapshot(byCountry.get(idOf(country)));
+    }
+
+    private static List<Marriage> snapshot(Set<Marriage> unions) {
+        return unions == null ? List.of() : new ArrayList<>(unions);
+    }
+
+    synchronized void reindexAreas(Marriage m, int oldStart, int oldEnd, int newStart, int newEnd) {
+        reindex(byArea, m, oldStart, oldEnd, newStart, newEnd);
+    }
+
+    synchronized void reindexCountries(Marriage m, int oldStart, int oldEnd, int newStart, int newEnd) {
+        reindex(byCountry, m, oldStart, oldEnd, newStart, newEnd);
+    }
+
+    /**
+     * Removes {@code m} from the index, for unions that are deleted from the tree.
+     */
+    public synchronized void forget(Marriage m) {
+        reindex(byArea, m, m.getStartAreaId(), m.getEndAreaId(), NONE, NONE);
+        reindex(byCountry, m, m.getStartCountryId(), m.getEndCountryId(), NONE, NONE);
+    }
+
+    private static void reindex(Map<Integer, Set<Marriage>> index, Marriage m,
+                                int oldStart, int oldEnd, int newStart, int newEnd) {
+
+        // a union is listed once per place even if it starts and ends there
+        for (int old : new int[] { oldStart, oldEnd }) {
+            if (old == NONE || old == newStart || old == newEnd)
+                continue;
+            var unions = index.get(old);
+            if (unions != null && unions.remove(m) && unions.isEmpty())
+                index.remove(old);
+        }
+
+        for (int id : new int[] { newStart, newEnd })
+            if (id != NONE)
+                index.computeIfAbsent(id, k -> Collections.newSetFromMap(new WeakHashMap<>())).add(m);
+    }
+}
@@ -0,0 +1,182 @@
+package com.archy.geneus;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A static quadtree over rectangles, numbered from 0, for finding those in a viewport or under a
+ * point without looking at the others.
+ * <p>
+ * Cells split into quarters, or halves if they are far wider than high or the other way round,
+ * until they hold at most {@value #CAPACITY} rectangles. A rectangle that crosses the split of a
+ * cell stays in that cell, so each is stored exactly once and a long line costs no more than a
+ * small box. Every cell also knows the bounds of everything below it; cells outside the query are
+ * skipped on those bounds, and a query can ask for cells that would appear smaller than a given
+ * size to be reported whole instead of item by item, which keeps a zoomed-out view of a huge chart
+ * cheap.
+ */
+public final class QuadTree {
+
+    private static final int CAPACITY = 16;
+    private static final int MAX_DEPTH = 24;
+
+    @FunctionalInterface
+    public interface CellAction {
+        /** The bounds of the rectangles in one cell, and how many there are. */
+        void accept(double minX, double minY, double maxX, double maxY, int count);
+    }
+
+    private final double[] minX, minY, maxX, maxY;
+    private final Cell root;
+
+    private static final class Cell {
+
+        // the rectangles kept here, and the quarters if the cell was split
+        int[] items;
+        Cell[] quarters;
+        // bounds of all rectangles in and below this cell
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        int count;
+    }
+
+    /** Indexes the rectangles whose corners are given by the four arrays, which are not copied. */
+    public QuadTree(double[] minX, double[] minY, double[] maxX, double[] maxY) {
+
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+
+        var all = new int[minX.length];
+        double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+        double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+            x0 = Math.min(x0, minX[i]);
+            y0 = Math.min(y0, minY[i]);
+            x1 = Math.max(x1, maxX[i]);
+            y1 = Math.max(y1, maxY[i]);
+        }
+        root = build(all, all.length, x0, y0, x1, y1, 0);
+    }
+
+    public int size() {
+        return minX.length;
+    }
+
+    private Cell build(int[] items, int n, double x0, double y0, double x1, double y1, int depth) {
+
+        var cell = new Cell();
+        cell.count = n;
+        for (int k = 0; k < n; k++) {
+            int i = items[k];
+            cell.minX = Math.min(cell.minX, minX[i]);
+            cell.minY = Math.min(cell.minY, minY[i]);
+            cell.maxX = Math.max(cell.maxX, maxX[i]);
+            cell.maxY = Math.max(cell.maxY, maxY[i]);
+        }
+
+        if (n <= CAPACITY || depth == MAX_DEPTH) {
+            cell.items = Arrays.copyOf(items, n);
+            return cell;
+        }
+
+        // a cell much wider than high is only cut in two, or a row straddling the middle would stay whole
+        double w = x1 - x0, h = y1 - y0;
+        double cx = w * 2 >= h ? (x0 + x1) / 2 : x1;
+        double cy = h * 2 >= w ? (y0 + y1) / 2 : y1;
+        var counts = new int[5];
+        var quarter = new byte[n];
+        for (int k = 0; k < n; k++) {
+            int i = items[k];
+            int q;
+            if (maxX[i] <= cx)
+                q = maxY[i] <= cy ? 0 : minY[i] >= cy ? 2 : 4;
+            else if (minX[i] >= cx)
+                q = maxY[i] <= cy ? 1 : minY[i] >= cy ? 3 : 4;
+            else
+                q = 4;
+            quarter[k] = (byte) q;
+            counts[q]++;
+        }
+
+        if (counts[4] == n) {
+            cell.items = Arrays.copyOf(items, n);
+            return cell;
+        }
+
+        cell.items = new int[counts[4]];
+        cell.quarters = new Cell[4];
+        for (int q = 0; q < 4; q++) {
+            if (counts[q] == 0)
+                continue;
+            var sub = new int[counts[q]];
+            for (int k = 0, j = 0; k < n; k++)
+                if (quarter[k] == q)
+                    sub[j++] = items[k];
+            cell.quarters[q] = build(sub, sub.length,
+                                     q % 2 == 0 ? x0 : cx, q < 2 ? y0 : cy,
+                                     q % 2 == 0 ? cx : x1, q < 2 ? cy : y1, depth + 1);
+        }
+        for (int k = 0, j = 0; k < n; k++)
+            if (quarter[k] == 4)
+                cell.items[j++] = items[k];
+        return cell;
+    }
+
+    /** Calls {@code action} for every rectangle that overlaps the given one, borders included. */
+    public void query(double x0, double y0, double x1, double y1, IntConsumer action) {
+        query(x0, y0, x1, y1, 0, action, null);
+    }
+
+    /**
+     * Like {@link #query(double, double, double, double, IntConsumer)}, but a cell whose contents
+     * span less than {@code minSize} both ways goes to {@code cells} as a whole.
+     */
+    public void query(double x0, double y0, double x1, double y1, double minSize,
+                      IntConsumer action, CellAction cells) {
+        if (root.count > 0)
+            query(root, x0, y0, x1, y1, minSize, action, cells);
+    }
+
+    private void query(Cell cell, double x0, double y0, double x1, double y1, double minSize,
+                       IntConsumer action, CellAction cells) {
+
+        if (cell.maxX < x0 || cell.minX > x1 || cell.maxY < y0 || cell.minY > y1)
+            return;
+
+        if (cells != null && cell.maxX - cell.minX < minSize && cell.maxY - cell.minY < minSize) {
+            cells.accept(cell.minX, cell.minY, cell.maxX, cell.maxY, cell.count);
+            return;
+        }
+
+        for (int i : cell.items)
+            if (maxX[i] >= x0 && minX[i] <= x1 && maxY[i] >= y0 && minY[i] <= y1)
+                action.accept(i);
+
+        if (cell.quarters != null)
+            for (var q : cell.quarters)
+                if (q != null)
+                    query(q, x0, y0, x1, y1, minSize, action, cells);
+    }
+
+    /** A rectangle that contains the point, or -1 if there is none. */
+    public int find(double x, double y) {
+        return root.count > 0 ? find(root, x, y) : -1;
+    }
+
+    private int find(Cell cell, double x, double y) {
+        for (int i : cell.items)
+            if (minX[i] <= x && x <= maxX[i] && minY[i] <= y && y <= maxY[i])
+                return i;
+        if (cell.quarters != null)
+            for (var q : cell.quarters)
+                if (q != null && q.minX <= x && x <= q.maxX && q.minY <= y && y <= q.maxY) {
+                    int found = find(q, x, y);
+                    if (found >= 0)
+                        return found;
+                }
+        return -1;
+    }
+}
@@ -0,0 +1,252 @@
+package com.archy.geneus;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Answers "is X an ancestor of Y" mostly in constant time, from labels computed once over the
+ * {@link RelationGraph} of a {@link TreeVersion}, so it can be built on any thread.
+ * <ul>
+ *   <li>generation levels: an ancestor is always on an earlier level</li>
+ *   <li>a depth-first spanning forest: descendants in the forest fall inside their ancestor's
+ *       pre/post interval, a positive answer</li>
+ *   <li>{@value #LABELS} GRAIL style intervals from differently ordered traversals: if any of them does
+ *       not contain the other's, there is no path, a negative answer</li>
+ * </ul>
+ * Anything left over is settled by a depth-first search pruned by the same labels. The labels need
+ * the graph to be acyclic; if it is not, every query falls back to the search.
+ * <p>
+ * The index describes the links of its version and knows persons by record key. Once a later version
+ * of the repository has other {@link TreeVersion#links() links} it is no longer
+ * {@link #isCurrent current}, and queries walk the live links instead until it is rebuilt.
+ */
+public final class ReachabilityIndex {
+
+    static final int LABELS = 2;
+
+    private final RelationGraph graph;
+    private final long links;
+    private final boolean acyclic;
+
+    private final int[] level;
+    private final int[] treePre, treePost;
+    private final int[][] low, post;
+
+    private ReachabilityIndex(RelationGraph graph, long links) {
+
+        this.graph = graph;
+        this.links = links;
+
+        int n = graph.size();
+        level = new int[n];
+        acyclic = levels(graph, level);
+
+        treePre = new int[n];
+        treePost = new int[n];
+        low = new int[LABELS][n];
+        post = new int[LABELS][n];
+
+        if (acyclic)
+            for (int k = 0; k < LABELS; k++)
+                label(k, k == 0 ? treePre : null);
+
+        System.arraycopy(post[0], 0, treePost, 0, n);
+    }
+
+    /** Builds the index over the links of {@code version}. */
+    public static ReachabilityIndex of(TreeVersion version) {
+        return new ReachabilityIndex(RelationGraph.of(version), version.links());
+    }
+
+    /** True if {@code now} has the persons and links this index was built from. */
+    public boolean isCurrent(TreeVersion now) {
+        return links == now.links();
+    }
+
+    /**
+     * True if {@code ancestor} is a parent, grandparent and so on of {@code descendant}, two persons
+     * of {@code repository}. Falls back to {@link #isAncestorByWalk} when the index is outdated or
+     * does not know either person.
+     */
+    public boolean isAncestor(Person ancestor, Person descendant, PersonRepository repository) {
+
+        if (!isCurrent(repository.version()))
+            return isAncestorByWalk(ancestor, descendant);
+
+        var a = repository.keyOf(ancestor);
+        var d = repository.keyOf(descendant);
+        int u = a == null ? RelationGraph.NONE : graph.ordinalOf(a);
+        int v = d == null ? RelationGraph.NONE : graph.ordinalOf(d);
+        if (u == RelationGraph.NONE || v == RelationGraph.NONE)
+            return isAncestorByWalk(ancestor, descendant);
+
+        return reaches(u, v);
+    }
+
+    boolean reaches(int u, int v) {
+
+        if (u == v)
+            return false;
+        if (!acyclic)
+            return search(u, v);
+        if (level[u] >= level[v])
+            return false;
+        if (inTree(u, v))
+            return true;
+        if (!contains(u, v))
+            return false;
+        return search(u, v);
+    }
+
+    private boolean inTree(int u, int v) {
+        return treePre[u] <= treePre[v] && treePost[v] <= treePost[u];
+    }
+
+    private boolean contains(int u, int v) {
+        for (int k = 0; k < LABELS; k++)
+            if (low[k][v] < low[k][u] || post[k][v] > post[k][u])
+                return false;
+        return true;
+    }
+
+    private boolean search(int u, int v) {
+
+        var visited = new BitSet(graph.size());
+        var stack = new ArrayDeque<Integer>();
+        visited.set(u);
+        stack.push(u);
+
+        while (!stack.isEmpty()) {
+            int x = stack.pop();
+            for (int e = graph.childStart(x); e < graph.childEnd(x); e++) {
+                int c = graph.child(e);
+                if (c == v)
+                    return true;
+                if (visited.get(c))
+                    continue;
+                visited.set(c);
+
+                if (acyclic) {
+                    if (level[c] >= level[v] || !contains(c, v))
+                        continue;
+                    if (inTree(c, v))
+                        return true;
+                }
+                stack.push(c);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Generation levels by Kahn's algorithm; returns false if some persons are left over, i.e. the
+     * parent links contain a cycle.
+     */
+    private static boolean levels(RelationGraph graph, int[] level) {
+
+        int n = graph.size();
+        var pending = new int[n];
+        var queue = new int[n];
+        int head = 0, tail = 0;
+
+        for (int i = 0; i < n; i++) {
+            pending[i] = graph.parentCount(i);
+            if (pending[i] == 0)
+                queue[tail++] = i;
+        }
+
+        while (head < tail) {
+            int p = queue[head++];
+            for (int e = graph.childStart(p); e < graph.childEnd(p); e++) {
+                int c = graph.child(e);
+                level[c] = Math.max(level[c], level[p] + 1);
+                if (--pending[c] == 0)
+                    queue[tail++] = c;
+            }
+        }
+        return tail == n;
+    }
+
+    /**
+     * One post-order traversal from every root, children in forward order for the first labeling and
+     * backward for the others. Fills {@code low[k]}/{@code post[k]} and, when asked, the pre-order
+     * numbers of the spanning forest. Iterative, so long lines of descent cannot overflow the stack.
+     */
+    private void label(int k, int[] pre) {
+
+        int n = graph.size();
+        boolean forward = k % 2 == 0;
+        var lowK = low[k];
+        var postK = post[k];
+
+        var done = new boolean[n];
+        var edge = new int[n];
+        var stack = new int[n];
+        int preCounter = 0, postCounter = 0;
+
+        for (int r = 0; r < n; r++) {
+            int root = forward ? r : n - 1 - r;
+            if (done[root] || graph.parentCount(root) != 0)
+                continue;
+
+            int top = 0;
+            stack[top++] = root;
+            done[root] = true;
+            edge[root] = 0;
+            lowK[root] = Integer.MAX_VALUE;
+            if (pre != null) pre[root] = preCounter++;
+
+            while (top > 0) {
+                int x = stack[top - 1];
+                int count = graph.childCount(x);
+
+                if (edge[x] < count) {
+                    int i = edge[x]++;
+                    int c = graph.child(forward ? graph.childStart(x) + i : graph.childEnd(x) - 1 - i);
+                    if (!done[c]) {
+                        done[c] = true;
+                        edge[c] = 0;
+                        lowK[c] = Integer.MAX_VALUE;
+                        if (pre != null) pre[c] = preCounter++;
+                        stack[top++] = c;
+                    } else {
+                        lowK[x] = Math.min(lowK[x], lowK[c]);
+                    }
+                    continue;
+                }
+
+                postK[x] = postCounter++;
+                lowK[x] = Math.min(lowK[x], postK[x]);
+                top--;
+                if (top > 0)
+                    lowK[stack[top - 1]] = Math.min(lowK[stack[top - 1]], lowK[x]);
+            }
+        }
+    }
+
+    /**
+     * Breadth-first walk up from {@code descendant} over the live parent links.
+     */
+    public static boolean isAncestorByWalk(Person ancestor, Person descendant) {
+
+        Set<Person> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        var queue = new ArrayDeque<Person>();
+        queue.add(descendant);
+        seen.add(descendant);
+
+        while (!queue.isEmpty()) {
+            var p = queue.poll();
+            for (var parent : new Person[] { p.getParent1(), p.getParent2() }) {
+                if (parent == null || !seen.add(parent))
+                    continue;
+                if (parent == ancestor)
+                    return true;
+                queue.add(parent);
+            }
+        }
+        return false;
+    }
+}
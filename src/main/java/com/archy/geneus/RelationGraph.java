@@ -0,0 +1,268 @@
+package com.archy.geneus;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * Immutable int-indexed view of the links between a list of persons, for bulk analytics.
+ * <p>
+ * Every person gets a dense ordinal (its position in the list) and each kind of edge is kept in
+ * compressed sparse row form: the edges of ordinal {@code o} are the entries {@code [start(o), end(o))}
+ * of one shared int array. Links to persons outside the list are left out. The graph is a copy and
+ * does not follow later edits.
+ * <p>
+ * A graph can also be built from the records of a {@link TreeVersion}, on any thread; its ordinals
+ * then stand for record keys instead of persons.
+ */
+public final class RelationGraph {
+
+    public static final int NONE = -1;
+
+    // one of the two is null, depending on what the graph was built from
+    private final Person[] persons;
+    private final String[] keys;
+    private final Map<Person, Integer> ordinals;
+    private final Map<String, Integer> keyOrdinals;
+
+    private final int[] childOffsets, children;
+    private final int[] parentOffsets, parents;
+    private final int[] spouseOffsets, spouses;
+
+    private RelationGraph(Person[] persons, Map<Person, Integer> ordinals,
+                          String[] keys, Map<String, Integer> keyOrdinals,
+                          int[] childOffsets, int[] children,
+                          int[] parentOffsets, int[] parents,
+                          int[] spouseOffsets, int[] spouses) {
+        this.persons = persons;
+        this.ordinals = ordinals;
+        this.keys = keys;
+        this.keyOrdinals = keyOrdinals;
+        this.childOffsets = childOffsets;
+        this.children = children;
+        this.parentOffsets = parentOffsets;
+        this.parents = parents;
+        this.spouseOffsets = spouseOffsets;
+        this.spouses = spouses;
+    }
+
+    public static RelationGraph of(List<Person> people) {
+
+        int n = people.size();
+        var persons = people.toArray(new Person[0]);
+
+        Map<Person, Integer> ordinals = new IdentityHashMap<>(n * 2);
+        for (int i = 0; i < n; i++)
+            ordinals.putIfAbsent(persons[i], i);
+
+        var childOffsets = new int[n + 1];
+        var parentOffsets = new int[n + 1];
+        var spouseOffsets = new int[n + 1];
+
+        // first pass counts the edges of each person, second pass fills them in
+        for (int i = 0; i < n; i++) {
+            var p = persons[i];
+            childOffsets[i + 1] = childOffsets[i] + countKnown(ordinals, p.getDescendants());
+            parentOffsets[i + 1] = parentOffsets[i] + parentCount(ordinals, p);
+
+            int s = 0;
+            for (var m : p.getMarriages())
+                if (ordinals.containsKey(m.getSpouseOf(p))) s++;
+            spouseOffsets[i + 1] = spouseOffsets[i] + s;
+        }
+
+        var children = new int[childOffsets[n]];
+        var parents = new int[parentOffsets[n]];
+        var spouses = new int[spouseOffsets[n]];
+
+        for (int i = 0; i < n; i++) {
+            var p = persons[i];
+
+            int at = childOffsets[i];
+            for (var child : p.getDescendants()) {
+                var o = ordinals.get(child);
+                if (o != null) children[at++] = o;
+            }
+
+            at = parentOffsets[i];
+            var p1 = p.getParent1() == null ? null : ordinals.get(p.getParent1());
+            var p2 = p.getParent2() == null ? null : ordinals.get(p.getParent2());
+            if (p1 != null) parents[at++] = p1;
+            if (p2 != null && !p2.equals(p1)) parents[at] = p2;
+
+            at = spouseOffsets[i];
+            for (var m : p.getMarriages()) {
+                var o = ordinals.get(m.getSpouseOf(p));
+                if (o != null) spouses[at++] = o;
+            }
+        }
+
+        return new RelationGraph(persons, ordinals, null, Map.of(), childOffsets, children,
+                                 parentOffsets, parents, spouseOffsets, spouses);
+    }
+
+    /**
+     * The graph of the records of {@code version}, ordinals in the order the persons were added.
+     * Spouse edges follow no particular order.
+     */
+    public static RelationGraph of(TreeVersion version) {
+
+        var records = version.personRecords();
+        int n = records.size();
+        var keys = new String[n];
+        Map<String, Integer> ordinals = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            keys[i] = records.get(i).key();
+            ordinals.put(keys[i], i);
+        }
+
+        var parentOffsets = new int[n + 1];
+        var parentOf = new int[n * 2];
+        var childCounts = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            var record = records.get(i);
+            var p1 = record.parent1() == null ? null : ordinals.get(record.parent1());
+            var p2 = record.parent2() == null ? null : ordinals.get(record.parent2());
+            int at = parentOffsets[i];
+            if (p1 != null) parentOf[at++] = p1;
+            if (p2 != null && !p2.equals(p1)) parentOf[at++] = p2;
+            parentOffsets[i + 1] = at;
+            for (int e = parentOffsets[i]; e < at; e++)
+                childCounts[parentOf[e] + 1]++;
+        }
+        var parents = Arrays.copyOf(parentOf, parentOffsets[n]);
+
+        // children by counting sort over the parent edges, each parent's in order of the child
+        var childOffsets = new int[n + 1];
+        for (int i = 0; i < n; i++)
+            childOffsets[i + 1] = childOffsets[i] + childCounts[i + 1];
+        var children = new int[childOffsets[n]];
+        var filled = new int[n];
+        for (int c = 0; c < n; c++)
+            for (int e = parentOffsets[c]; e < parentOffsets[c + 1]; e++) {
+                int p = parents[e];
+                children[childOffsets[p] + filled[p]++] = c;
+            }
+
+        var spouseCounts = new int[n + 1];
+        var couples = new int[version.unionCount() * 2];
+        int[] coupleCount = { 0 };
+        version.unions().forEach((key, union) -> {
+            var a = ordinals.get(union.spouse1());
+            var b = ordinals.get(union.spouse2());
+            if (a == null || b == null)
+                return;
+            couples[coupleCount[0]++] = a;
+            couples[coupleCount[0]++] = b;
+            spouseCounts[a + 1]++;
+            spouseCounts[b + 1]++;
+        });
+        var spouseOffsets = new int[n + 1];
+        for (int i = 0; i < n; i++)
+            spouseOffsets[i + 1] = spouseOffsets[i] + spouseCounts[i + 1];
+        var spouses = new int[spouseOffsets[n]];
+        Arrays.fill(filled, 0);
+        for (int k = 0; k < coupleCount[0]; k += 2) {
+            int a = couples[k], b = couples[k + 1];
+            spouses[spouseOffsets[a] + filled[a]++] = b;
+            spouses[spouseOffsets[b] + filled[b]++] = a;
+        }
+
+        return new RelationGraph(null, Map.of(), keys, ordinals, childOffsets, children,
+                                 parentOffsets, parents, spouseOffsets, spouses);
+    }
+
+    private static int countKnown(Map<Person, Integer> ordinals, Iterable<Person> people) {
+        int count = 0;
+        for (var p : people)
+            if (ordinals.containsKey(p)) count++;
+        return count;
+    }
+
+    private static int parentCount(Map<Person, Integer> ordinals, Person p) {
+        var p1 = p.getParent1() == null ? null : ordinals.get(p.getParent1());
+        var p2 = p.getParent2() == null ? null : ordinals.get(p.getParent2());
+        return (p1 != null ? 1 : 0) + (p2 != null && !p2.equals(p1) ? 1 : 0);
+    }
+
+    public int size() {
+        return childOffsets.length - 1;
+    }
+
+    /** The person of {@code ordinal}, or null in a graph built from a version. */
+    public Person person(int ordinal) {
+        return persons != null ? persons[ordinal] : null;
+    }
+
+    /** The record key of {@code ordinal}, or null in a graph built from persons. */
+    public String key(int ordinal) {
+        return keys != null ? keys[ordinal] : null;
+    }
+
+    public int ordinalOf(Person person) {
+        var o = ordinals.get(person);
+        return o == null ? NONE : o;
+    }
+
+    public int ordinalOf(String key) {
+        var o = keyOrdinals.get(key);
+        return o == null ? NONE : o;
+    }
+
+    public int childStart(int ordinal) { return childOffsets[ordinal];     }
+    public int childEnd(int ordinal)   { return childOffsets[ordinal + 1]; }
+    public int child(int edge)         { return children[edge];            }
+
+    public int parentStart(int ordinal) { return parentOffsets[ordinal];     }
+    public int parentEnd(int ordinal)   { return parentOffsets[ordinal + 1]; }
+    public int parent(int edge)         { return parents[edge];              }
+
+    /**
+     * Spouse edges follow the order of the person's marriages, one per marriage.
+     */
+    public int spouseStart(int ordinal) { return spouseOffsets[ordinal];     }
+    public int spouseEnd(int ordinal)   { return spouseOffsets[ordinal + 1]; }
+    public int spouse(int edge)         { return spouses[edge];              }
+
+    public int childCount(int ordinal)  { return childEnd(ordinal) - childStart(ordinal);   }
+    public int parentCount(int ordinal) { return parentEnd(ordinal) - parentStart(ordinal); }
+    public int spouseCount(int ordinal) { return spouseEnd(ordinal) - spouseStart(ordinal); }
+
+    public int edgeCount() {
+        return children.length + parents.length + spouses.length;
+    }
+
+    public void forEachChild(int ordinal, IntConsumer action) {
+        for (int e = childOffsets[ordinal], end = childOffsets[ordinal + 1]; e < end; e++)
+            action.accept(children[e]);
+    }
+
+    public void forEachParent(int ordinal, IntConsumer action) {
+        for (int e = parentOffsets[ordinal], end = parentOffsets[ordinal + 1]; e < end; e++)
+            action.accept(parents[e]);
+    }
+
+    public void forEachSpouse(int ordinal, IntConsumer action) {
+        for (int e = spouseOffsets[ordinal], end = spouseOffsets[ordinal + 1]; e < end; e++)
+            action.accept(spouses[e]);
+    }
+
+    /**
+     * Children of {@code a} that also have {@code b} as a parent; at most two parent edges are
+     * checked per child.
+     */
+    public void forEachSharedChild(int a, int b, IntConsumer action) {
+        for (int e = childOffsets[a], end = childOffsets[a + 1]; e < end; e++) {
+            int c = children[e];
+            for (int f = parentOffsets[c], fend = parentOffsets[c + 1]; f < fend; f++) {
+                if (parents[f] == b) {
+                    action.accept(c);
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.archy.geneus;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Answers "how is A related to B" from the parent links.
+ * <p>
+ * Every person carries an index of its ancestors, each mapped to the fewest generations between
+ * them, so an ancestor reached along several lines (pedigree collapse) is counted once at its
+ * nearest distance. The index is built on first use from those of the parents: the child's map is
+ * the larger parent's map shifted down one generation, which is shared rather than copied, with
+ * the smaller parent's ancestors merged in. A query then costs one pass over the smaller ancestry
+ * with a lookup in the larger per ancestor.
+ * <p>
+ * Ancestors are told apart by identity, so two persons who happen to share an id are never taken
+ * for one common ancestor.
+ * <p>
+ * When a parent link changes, {@link Person} drops the indexes of that person and of its
+ * descendants only; the rest of the tree keeps its indexes. Like the links themselves, the indexes
+ * are meant to be used on the FX thread.
+ */
+public final class RelationshipCalculator {
+
+    private RelationshipCalculator() { }
+
+    /** A person as a map key, told apart by identity: persons with the same id are equal. */
+    private record Key(Person person) {
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k && k.person == person;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(person);
+        }
+    }
+
+    /**
+     * The ancestors of one person, itself included at distance 0.
+     */
+    static final class Ancestors {
+
+        // distances less offset, so that a child can take a parent's map as it is with offset + 1
+        private PersistentMap<Key, Integer> stored;
+        private final int offset;
+
+        private Ancestors(PersistentMap<Key, Integer> stored, int offset) {
+            this.stored = stored;
+            this.offset = offset;
+        }
+
+        static Ancestors of(Person person, Ancestors parent1, Ancestors parent2) {
+
+            if (parent1 == parent2)
+                parent2 = null;
+            if (parent1 == null) {
+                parent1 = parent2;
+                parent2 = null;
+            }
+            if (parent1 == null)
+                return new Ancestors(PersistentMap.<Key, Integer>empty().with(new Key(person), 0), 0);
+
+            if (parent2 != null && parent2.size() > parent1.size()) {
+                var t = parent1;
+                parent1 = parent2;
+                parent2 = t;
+            }
+
+            var ancestors = new Ancestors(parent1.stored, parent1.offset + 1);
+            if (parent2 != null)
+                parent2.forEach((a, d) -> ancestors.lower(a, d + 1));
+            ancestors.stored = ancestors.stored.with(new Key(person), -ancestors.offset);
+            return ancestors;
+        }
+
+        private void lower(Person ancestor, int distance) {
+            int known = distance(ancestor);
+            if (known < 0 || distance < known)
+                stored = stored.with(new Key(ancestor), distance - offset);
+        }
+
+        int size() {
+            return stored.size();
+        }
+
+        /** Generations between the person and {@code ancestor}, or -1 if it is not an ancestor. */
+        int distance(Person ancestor) {
+            var d = stored.get(new Key(ancestor));
+            return d == null ? -1 : d + offset;
+        }
+
+        void forEach(ObjIntConsumer<Person> action) {
+            stored.forEach((a, d) -> action.accept(a.person(), d + offset));
+        }
+    }
+
+    /**
+     * How {@code from} relates to {@code to}, read as "from is to's ...".
+     *
+     * @param stepsUp          generations from {@code from} up to the nearest common ancestors
+     * @param stepsDown        generations from those ancestors down to {@code to}
+     * @param commonAncestors  every common ancestor at that distance; empty if unrelated
+     * @param half             true if the two descend from only one of an ancestral couple
+     */
+    public record Relationship(Person from, Person to, int stepsUp, int stepsDown,
+                               List<Person> commonAncestors, boolean half) {
+
+        public boolean isRelated() {
+            return !commonAncestors.isEmpty();
+        }
+
+        public String label() {
+
+            if (!isRelated())
+                return "not related";
+            if (stepsUp == 0 && stepsDown == 0)
+                return "self";
+            if (stepsUp == 0)
+                return lineal(stepsDown, "parent", "grandparent");
+            if (stepsDown == 0)
+                return lineal(stepsUp, "child", "grandchild");
+
+            var prefix = half ? "half-" : "";
+
+            if (stepsUp == 1 && stepsDown == 1)
+                return prefix + "sibling";
+            if (stepsUp == 1)
+                return prefix + greats(stepsDown - 2) + "aunt/uncle";
+            if (stepsDown == 1)
+                return prefix + (stepsUp == 2 ? "niece/nephew" : greats(stepsUp - 3) + "grandniece/nephew");
+
+            int degree = Math.min(stepsUp, stepsDown) - 1;
+            int removed = Math.abs(stepsUp - stepsDown);
+
+            var label = prefix + ordinal(degree) + " cousin";
+            return removed == 0 ? label : label + " " + times(removed) + " removed";
+        }
+
+        private static String lineal(int steps, String first, String grand) {
+            return steps == 1 ? first : greats(steps - 2) + grand;
+        }
+
+        private static String greats(int count) {
+            if (count <= 0) return "";
+            if (count <= 3) return "great-".repeat(count);
+            return count + "x great-";
+        }
+
+        private static final String[] ORDINALS =
+            { "first", "second", "third", "fourth", "fifth", "sixth", "seventh", "eighth", "ninth", "tenth" };
+
+        private static String ordinal(int n) {
+            if (n <= ORDINALS.length)
+                return ORDINALS[n - 1];
+            int mod100 = n % 100;
+            var suffix = mod100 >= 11 && mod100 <= 13 ? "th"
+                       : switch (n % 10) { case 1 -> "st"; case 2 -> "nd"; case 3 -> "rd"; default -> "th"; };
+            return n + suffix;
+        }
+
+        private static String times(int n) {
+            return switch (n) {
+                case 1 -> "once";
+                case 2 -> "twice";
+                default -> n + " times";
+            };
+        }
+    }
+
+    public static Relationship relate(Person from, Person to) {
+
+        var up = ancestors(from);
+        var down = ancestors(to);
+
+        // walk the smaller ancestry and probe the larger
+        var nearest = new Nearest(up.size() > down.size() ? up : down, up.size() > down.size());
+        (nearest.swapped ? down : up).forEach(nearest);
+
+        var common = List.copyOf(nearest.common);
+        boolean half = nearest.bestUp > 0 && nearest.bestDown > 0
+                       && !meetInACouple(common, up, nearest.bestUp - 1, down, nearest.bestDown - 1);
+        return new Relationship(from, to, nearest.bestUp, nearest.bestDown, common, half);
+    }
+
+    public static List<Person> nearestCommonAncestors(Person a, Person b) {
+        return relate(a, b).commonAncestors();
+    }
+
+    /**
+     * Generations between {@code person} and {@code ancestor} along the shortest line, 0 for the
+     * person itself, or -1 if {@code ancestor} is not one.
+     */
+    public static int distance(Person ancestor, Person person) {
+        return ancestors(person).distance(ancestor);
+    }
+
+    /** Finds the common ancestors with the fewest generations in between, probing {@code large}. */
+    private static final class Nearest implements ObjIntConsumer<Person> {
+
+        final Ancestors large;
+        final boolean swapped;
+        int best = Integer.MAX_VALUE, bestUp, bestDown;
+        final List<Person> common = new ArrayList<>(2);
+
+        Nearest(Ancestors large, boolean swapped) {
+            this.large = large;
+            this.swapped = swapped;
+        }
+
+        @Override
+        public void accept(Person ancestor, int distance) {
+
+            int other = large.distance(ancestor);
+            if (other < 0)
+                return;
+
+            int u = swapped ? other : distance;
+            int d = swapped ? distance : other;
+
+            if (u + d < best) {
+                best = u + d;
+                bestUp = u;
+                bestDown = d;
+                common.clear();
+            }
+            if (u + d == best && u == bestUp)
+                common.add(ancestor);
+        }
+    }
+
+    /**
+     * True if the two lines come down from the common ancestors through two children of the same
+     * couple, i.e. full siblings; otherwise they share only one parent and the relationship is half.
+     */
+    private static boolean meetInACouple(List<Person> common, Ancestors up, int upSteps,
+                                         Ancestors down, int downSteps) {
+
+        var fromLine = linkingChildren(common, up, upSteps);
+        var toLine = linkingChildren(common, down, downSteps);
+
+        for (var a : fromLine) {
+            var p1 = a.getParent1();
+            var p2 = a.getParent2();
+            if (p1 == null || p2 == null || p1 == p2)
+                continue;
+            for (var b : toLine)
+                if (a != b && b.hasParent(p1) && b.hasParent(p2))
+                    return true;
+        }
+        return false;
+    }
+
+    /** The children of the common ancestors that lie on a line, {@code steps} generations up it. */
+    private static Set<Person> linkingChildren(List<Person> common, Ancestors line, int steps) {
+        Set<Person> found = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (var ancestor : common)
+            for (var child : ancestor.getDescendants())
+                if (line.distance(child) == steps)
+                    found.add(child);
+        return found;
+    }
+
+    /**
+     * The ancestor index of {@code person}, building the missing ones up the ancestry first with an
+     * explicit stack, so deep pedigrees cannot overflow. A parent still being built (a cycle) counts
+     * as unknown.
+     */
+    static Ancestors ancestors(Person person) {
+
+        if (person.ancestors != null)
+            return person.ancestors;
+
+        Set<Person> building = Collections.newSetFromMap(new IdentityHashMap<>());
+        var stack = new ArrayDeque<Person>();
+        building.add(person);
+        stack.push(person);
+
+        while (!stack.isEmpty()) {
+            var p = stack.peek();
+            var pending = unindexed(p.getParent1(), building);
+            if (pending == null)
+                pending = unindexed(p.getParent2(), building);
+
+            if (pending != null) {
+                building.add(pending);
+                stack.push(pending);
+                continue;
+            }
+
+            stack.pop();
+            p.ancestors = Ancestors.of(p, indexOf(p.getParent1()), indexOf(p.getParent2()));
+        }
+        return person.ancestors;
+    }
+
+    private static Person unindexed(Person p, Set<Person> building) {
+        return p != null && p.ancestors == null && !building.contains(p) ? p : null;
+    }
+
+    private static Ancestors indexOf(Person p) {
+        return p != null ? p.ancestors : null;
+    }
+}
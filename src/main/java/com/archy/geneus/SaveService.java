@@ -0,0 +1,163 @@
+package com.archy.geneus;
+
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Writes tree snapshots on a background thread.
+ * <p>
+ * Requests for the same file coalesce: while a write is running, only the latest request per file
+ * is kept, and earlier ones are dropped unwritten. Status changes and callbacks are delivered on the FX thread.
+ */
+public final class SaveService {
+
+    @FunctionalInterface
+    public interface TreeWriter {
+        void write(List<Person> people, String filePath) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface AfterWrite {
+        void run() throws Exception;
+    }
+
+    private record Request(Supplier<List<Person>> snapshot, String filePath, TreeWriter writer,
+                           AfterWrite afterWrite, Consumer<Exception> onFailure) { }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        var thread = new Thread(r, "geneus-save");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, Request> pending = new LinkedHashMap<>();
+    private boolean running;
+
+    private final ReadOnlyBooleanWrapper saving = new ReadOnlyBooleanWrapper(false);
+    private final ReadOnlyStringWrapper status = new ReadOnlyStringWrapper("");
+
+    public ReadOnlyBooleanProperty savingProperty() { return saving.getReadOnlyProperty(); }
+    public ReadOnlyStringProperty statusProperty()  { return status.getReadOnlyProperty(); }
+
+    /**
+     * Queues {@code people} to be written to {@code filePath}. The list must not be modified afterwards;
+     * pass a {@link Person#copyOf} snapshot. {@code afterWrite} runs on the save thread once the file is written.
+     */
+    public void submit(List<Person> snapshot, String filePath, TreeWriter writer,
+                       AfterWrite afterWrite, Consumer<Exception> onFailure) {
+        submit(() -> snapshot, filePath, writer, afterWrite, onFailure);
+    }
+
+    /**
+     * Like {@link #submit(List, String, TreeWriter, AfterWrite, Consumer)}, but the persons are made
+     * on the save thread, for example from an immutable {@link TreeVersion}. Requests dropped by a
+     * later one are never made.
+     */
+    public void submit(Supplier<List<Person>> snapshot, String filePath, TreeWriter writer,
+                       AfterWrite afterWrite, Consumer<Exception> onFailure) {
+
+        synchronized (pending) {
+            pending.remove(filePath);
+            pending.put(filePath, new Request(snapshot, filePath, writer, afterWrite, onFailure));
+
+            if (running)
+                return;
+
+            running = true;
+        }
+
+        updateUi(true, "Saving...");
+        executor.execute(this::drain);
+    }
+
+    /**
+     * Waits until every queued write has finished. Returns false on timeout.
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        synchronized (pending) {
+            while (running) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(pending, left);
+            }
+        }
+        return true;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void drain() {
+
+        try {
+            while (true) {
+
+                Request request;
+                synchronized (pending) {
+                    var it = pending.values().iterator();
+                    if (!it.hasNext())
+                        break;
+                    request = it.next();
+                    it.remove();
+                }
+
+                write(request);
+            }
+        } finally {
+            // whatever happened, flush() must not wait for a drain that is gone
+            synchronized (pending) {
+                running = false;
+                pending.notifyAll();
+            }
+            updateUi(false, null);
+        }
+    }
+
+    private void write(Request request) {
+
+        try {
+            long start = System.nanoTime();
+            var snapshot = request.snapshot().get();
+            request.writer().write(snapshot, request.filePath());
+            if (request.afterWrite() != null)
+                request.afterWrite().run();
+
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            GenealogyApp.log("Saved " + snapshot.size() + " persons to '" + request.filePath() + "' in " + millis + " ms");
+            updateUi(null, "Saved " + request.filePath());
+
+        } catch (Throwable t) {
+            t.printStackTrace();
+            GenealogyApp.log("Failed to save '" + request.filePath() + "': " + t.getMessage());
+            updateUi(null, "Save failed: " + t.getMessage());
+            if (request.onFailure() != null) {
+                var e = t instanceof Exception ex ? ex : new Exception(t);
+                Platform.runLater(() -> request.onFailure().accept(e));
+            }
+        }
+    }
+
+    private void updateUi(Boolean isSaving, String message) {
+        Platform.runLater(() -> {
+            if (isSaving != null) saving.set(isSaving);
+            if (message != null) status.set(message);
+        });
+    }
+}
@@ -49,6 +49,47 @@ public class TreeBuilder {
         return pane;
     }
 
+    /**
+     * A chart placed by {@link TreeLayout}, with a node per box and line; persons shown more than
+     * once are faded after their first box. For large charts {@link ChartCanvas} draws the same
+     * layout much more cheaply.
+     */
+    public Pane buildChart(ChartLayout layout) {
+
+        var pane = new Pane();
+
+        for (var link : layout.links()) {
+            var line = new Line(link.x1(), link.y1(), link.x2(), link.y2());
+            line.getStyleClass().add("relation-line");
+            pane.getChildren().add(line);
+
+            if (link.marriage() != null) {
+                var marriageLabel = createMarriageLabel(link.marriage());
+                if (marriageLabel != null) {
+                    pane.getChildren().add(marriageLabel);
+                    labelPlacements.add(new LabelPlacement(marriageLabel, line, true));
+                }
+                var divorceLabel = createDivorceLabel(link.marriage());
+                if (divorceLabel != null) {
+                    pane.getChildren().add(divorceLabel);
+                    labelPlacements.add(new LabelPlacement(divorceLabel, line, false));
+                }
+            }
+        }
+
+        for (var box : layout.boxes()) {
+            var node = new PersonNode(box.person());
+            node.setLayoutX(box.x());
+            node.setLayoutY(box.y());
+            if (box.repeated())
+                node.setOpacity(0.6);
+            pane.getChildren().add(node);
+        }
+
+        adjustPaneLayout(pane);
+        return pane;
+    }
+
     private void buildParentalTree(Pane pane, PersonNode childNode, List<Person> parents) {
 
         if (parents.size() == 1) {
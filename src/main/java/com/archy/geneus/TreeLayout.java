@@ -0,0 +1,402 @@
+package com.archy.geneus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lays out a root person's ancestors above it and its descendants below it, any number of
+ * generations deep, as a {@link ChartLayout}.
+ * <p>
+ * Both halves are tidy trees placed by Walker's algorithm with Buchheim's changes for linear time:
+ * each subtree is laid out once and then pushed right against its left neighbours along their
+ * contours, which are threaded so that no level is walked twice. Parents are centred over their
+ * children, no two boxes overlap, and the whole chart costs O(n) for n boxes.
+ * <p>
+ * Below the root every person stands with its partners beside it, the first to the right, the
+ * second to the left and so on, and the children of each couple hang from their union line. A
+ * person reached again, through pedigree collapse or a marriage between relatives, is drawn again
+ * but not expanded again. The layout only reads the persons, so it can run on any thread over a
+ * copy from {@link TreeVersion#toPersons}.
+ */
+public final class TreeLayout {
+
+    private static final double SIBLING_GAP = 20;
+    private static final double SUBTREE_GAP = 40;
+    private static final double PARTNER_GAP = 60;
+    private static final double LEVEL_GAP = 90;
+    private static final double FORK_HEIGHT = 30;
+    // forks of one family and lines to partners further away are spread by these steps
+    private static final double FORK_STEP = 6;
+    private static final double ROUTE_STEP = 10;
+
+    private static final Comparator<Person> BY_BIRTH =
+        Comparator.comparing(Person::getBirthDate, Comparator.nullsLast(Comparator.naturalOrder()));
+
+    private final double boxWidth, boxHeight;
+
+    public TreeLayout(double boxWidth, double boxHeight) {
+        this.boxWidth = boxWidth;
+        this.boxHeight = boxHeight;
+    }
+
+    /** One block of the tree: a person alone, or a person with its partners in a row. */
+    private static final class Node {
+
+        final Node parent;
+        final int number;
+        final Person[] row;
+        final int self;
+        final List<Node> children = new ArrayList<>(0);
+        // for each child, the index in row of the parent it descends from together with row[self]
+        int[] origins;
+        double width;
+
+        double prelim, mod, shift, change, x;
+        Node thread, ancestor = this;
+
+        Node(Node parent, int number, Person[] row, int self) {
+            this.parent = parent;
+            this.number = number;
+            this.row = row;
+            this.self = self;
+        }
+    }
+
+    public ChartLayout layout(Person root, int ancestorGenerations, int descendantGenerations) {
+
+        var below = descendants(root, null, 0, 0, descendantGenerations,
+                                Collections.newSetFromMap(new IdentityHashMap<>()));
+        var above = ancestors(root, null, 0, 0, ancestorGenerations,
+                              Collections.newSetFromMap(new IdentityHashMap<>()));
+        place(below);
+        place(above);
+
+        // the root's box is at (0, 0)
+        double rootX = below.x - below.width / 2 + below.self * (boxWidth + PARTNER_GAP);
+        var boxes = new ArrayList<ChartLayout.Box>();
+        var links = new ArrayList<ChartLayout.Link>();
+        Set<Person> shown = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        emitDescendants(below, -rootX, 0, boxes, links, shown);
+        emitAncestors(above, boxWidth / 2 - above.x, 0, boxes, links, shown);
+        return new ChartLayout(boxes, links, boxes.get(0));
+    }
+
+    private Node descendants(Person p, Node parent, int number, int generation, int limit, Set<Person> expanded) {
+
+        if (!expanded.add(p)) {
+            var node = new Node(parent, number, new Person[] { p }, 0);
+            node.origins = new int[0];
+            node.width = boxWidth;
+            return node;
+        }
+
+        var partners = new ArrayList<Person>(p.getMarriages().size());
+        p.forEachPartner(partner -> addIfAbsent(partners, partner));
+        var children = generation < limit ? new ArrayList<>(p.getDescendants()) : new ArrayList<Person>(0);
+        for (var child : children) {
+            var other = otherParent(child, p);
+            if (other != null)
+                addIfAbsent(partners, other);
+        }
+
+        // partners alternate right and left, so that the first two stand next to p
+        var row = new Person[partners.size() + 1];
+        int self = partners.size() / 2;
+        row[self] = p;
+        for (int i = 0; i < partners.size(); i++)
+            row[column(self, i)] = partners.get(i);
+
+        var node = new Node(parent, number, row, self);
+        node.width = row.length * boxWidth + (row.length - 1) * PARTNER_GAP;
+
+        // children in the order of the row, each couple's by birth
+        var origins = new int[children.size()];
+        for (int i = 0; i < children.size(); i++) {
+            var other = otherParent(children.get(i), p);
+            origins[i] = other != null ? column(self, indexOf(partners, other)) : self;
+        }
+        var sorted = new Integer[children.size()];
+        for (int i = 0; i < sorted.length; i++)
+            sorted[i] = i;
+        Arrays.sort(sorted, Comparator.<Integer>comparingInt(i -> origins[i])
+                                      .thenComparing(i -> children.get(i), BY_BIRTH));
+
+        node.origins = new int[children.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            node.origins[i] = origins[sorted[i]];
+            node.children.add(descendants(children.get(sorted[i]), node, i, generation + 1, limit, expanded));
+        }
+        return node;
+    }
+
+    private Node ancestors(Person p, Node parent, int number, int generation, int limit, Set<Person> expanded) {
+
+        var node = new Node(parent, number, new Person[] { p }, 0);
+        node.width = boxWidth;
+        if (generation < limit && expanded.add(p))
+            p.forEachParent(parentOfP -> node.children.add(
+                ancestors(parentOfP, node, node.children.size(), generation + 1, limit, expanded)));
+        return node;
+    }
+
+    /** The column of the {@code i}th partner in a row where the person stands at {@code self}. */
+    private static int column(int self, int i) {
+        return i % 2 == 0 ? self + 1 + i / 2 : self - 1 - i / 2;
+    }
+
+    /** The child's parent besides {@code parent}, or null if it has no other. */
+    private static Person otherParent(Person child, Person parent) {
+        var other = child.getParent1() == parent ? child.getParent2() : child.getParent1();
+        return other != parent ? other : null;
+    }
+
+    private static void addIfAbsent(List<Person> persons, Person p) {
+        if (indexOf(persons, p) < 0)
+            persons.add(p);
+    }
+
+    /** By identity, persons with the same id are equal. */
+    private static int indexOf(List<Person> persons, Person p) {
+        for (int i = 0, n = persons.size(); i < n; i++)
+            if (persons.get(i) == p)
+                return i;
+        return -1;
+    }
+
+    // ---- Walker's algorithm, as improved by Buchheim, Jünger and Leipert ----
+
+    private void place(Node root) {
+        firstWalk(root);
+        secondWalk(root, -root.prelim);
+    }
+
+    private void firstWalk(Node v) {
+
+        var left = leftSibling(v);
+        if (v.children.isEmpty()) {
+            v.prelim = left != null ? left.prelim + distance(left, v) : 0;
+            return;
+        }
+
+        var defaultAncestor = v.children.get(0);
+        for (var w : v.children) {
+            firstWalk(w);
+            defaultAncestor = apportion(w, defaultAncestor);
+        }
+        executeShifts(v);
+
+        double midpoint = (v.children.get(0).prelim + v.children.get(v.children.size() - 1).prelim) / 2;
+        if (left != null) {
+            v.prelim = left.prelim + distance(left, v);
+            v.mod = v.prelim - midpoint;
+        } else {
+            v.prelim = midpoint;
+        }
+    }
+
+    /** Pushes the subtree of {@code v} clear of the subtrees of its left siblings. */
+    private Node apportion(Node v, Node defaultAncestor) {
+
+        var left = leftSibling(v);
+        if (left == null)
+            return defaultAncestor;
+
+        // inner and outer contours on the right (p) and the left (m) side
+        Node vip = v, vop = v, vim = left, vom = v.parent.children.get(0);
+        double sip = vip.mod, sop = vop.mod, sim = vim.mod, som = vom.mod;
+
+        while (nextRight(vim) != null && nextLeft(vip) != null) {
+            vim = nextRight(vim);
+            vip = nextLeft(vip);
+            vom = nextLeft(vom);
+            vop = nextRight(vop);
+            vop.ancestor = v;
+
+            double shift = (vim.prelim + sim) - (vip.prelim + sip) + distance(vim, vip);
+            if (shift > 0) {
+                moveSubtree(vim.ancestor.parent == v.parent ? vim.ancestor : defaultAncestor, v, shift);
+                sip += shift;
+                sop += shift;
+            }
+            sim += vim.mod;
+            sip += vip.mod;
+            som += vom.mod;
+            sop += vop.mod;
+        }
+
+        if (nextRight(vim) != null && nextRight(vop) == null) {
+            vop.thread = nextRight(vim);
+            vop.mod += sim - sop;
+        }
+        if (nextLeft(vip) != null && nextLeft(vom) == null) {
+            vom.thread = nextLeft(vip);
+            vom.mod += sip - som;
+            defaultAncestor = v;
+        }
+        return defaultAncestor;
+    }
+
+    /** Moves {@code right} by {@code shift} and spreads it over the siblings between it and {@code left}. */
+    private static void moveSubtree(Node left, Node right, double shift) {
+        double share = shift / (right.number - left.number);
+        right.change -= share;
+        right.shift += shift;
+        left.change += share;
+        right.prelim += shift;
+        right.mod += shift;
+    }
+
+    private static void executeShifts(Node v) {
+        double shift = 0, change = 0;
+        for (int i = v.children.size() - 1; i >= 0; i--) {
+            var w = v.children.get(i);
+            w.prelim += shift;
+            w.mod += shift;
+            change += w.change;
+            shift += w.shift + change;
+        }
+    }
+
+    private static void secondWalk(Node v, double m) {
+        v.x = v.prelim + m;
+        for (var w : v.children)
+            secondWalk(w, m + v.mod);
+    }
+
+    private static Node leftSibling(Node v) {
+        return v.parent != null && v.number > 0 ? v.parent.children.get(v.number - 1) : null;
+    }
+
+    private static Node nextLeft(Node v) {
+        return v.children.isEmpty() ? v.thread : v.children.get(0);
+    }
+
+    private static Node nextRight(Node v) {
+        return v.children.isEmpty() ? v.thread : v.children.get(v.children.size() - 1);
+    }
+
+    private static double distance(Node a, Node b) {
+        return (a.width + b.width) / 2 + (a.parent == b.parent ? SIBLING_GAP : SUBTREE_GAP);
+    }
+
+    // ---- geometry ----
+
+    private double columnX(Node n, int column, double dx) {
+        return n.x + dx - n.width / 2 + column * (boxWidth + PARTNER_GAP);
+    }
+
+    private double level(int generation) {
+        return generation * (boxHeight + LEVEL_GAP);
+    }
+
+    private void emitDescendants(Node n, double dx, int generation, List<ChartLayout.Box> boxes,
+                                 List<ChartLayout.Link> links, Set<Person> shown) {
+
+        double y = level(generation);
+        double middle = y + boxHeight / 2;
+        var p = n.row[n.self];
+
+        // the person first, so that the root's box is the first of all
+        boxes.add(box(p, columnX(n, n.self, dx), y, generation, shown));
+        for (int c = 0; c < n.row.length; c++)
+            if (c != n.self)
+                boxes.add(box(n.row[c], columnX(n, c, dx), y, generation, shown));
+
+        // union lines, and where each couple's children hang from
+        var originX = new double[n.row.length];
+        var originY = new double[n.row.length];
+        double selfX = columnX(n, n.self, dx);
+        originX[n.self] = selfX + boxWidth / 2;
+        originY[n.self] = y + boxHeight;
+
+        for (int c = 0; c < n.row.length; c++) {
+            if (c == n.self)
+                continue;
+            var marriage = p.getMarriageWith(n.row[c]);
+            double partnerX = columnX(n, c, dx);
+            int away = Math.abs(c - n.self);
+
+            if (away == 1) {
+                double from = Math.min(selfX, partnerX) + boxWidth, to = Math.max(selfX, partnerX);
+                links.add(new ChartLayout.Link(ChartLayout.LinkKind.UNION, from, middle, to, middle, marriage));
+                originX[c] = (from + to) / 2;
+                originY[c] = middle;
+            } else {
+                // over the partners in between, from the tops of both boxes
+                double side = Math.signum(c - n.self);
+                double top = y - away * ROUTE_STEP;
+                double x1 = selfX + boxWidth / 2 + side * away * ROUTE_STEP;
+                double x2 = partnerX + boxWidth / 2;
+                links.add(new ChartLayout.Link(ChartLayout.LinkKind.UNION, x1, y, x1, top, null));
+                links.add(new ChartLayout.Link(ChartLayout.LinkKind.UNION, x1, top, x2, top, marriage));
+                links.add(new ChartLayout.Link(ChartLayout.LinkKind.UNION, x2, top, x2, y, null));
+                originX[c] = x2;
+                originY[c] = y + boxHeight;
+            }
+        }
+
+        // one fork per couple, each a little higher than the one before
+        double childTop = level(generation + 1);
+        int fork = 0;
+        for (int i = 0; i < n.children.size(); ) {
+            int origin = n.origins[i];
+            double forkY = childTop - FORK_HEIGHT - fork++ * FORK_STEP;
+            double ox = originX[origin];
+            double minX = ox, maxX = ox;
+
+            int j = i;
+            for (; j < n.children.size() && n.origins[j] == origin; j++) {
+                var child = n.children.get(j);
+                double cx = columnX(child, child.self, dx) + boxWidth / 2;
+                links.add(new ChartLayout.Link(ChartLayout.LinkKind.DESCENT, cx, forkY, cx, childTop, null));
+                minX = Math.min(minX, cx);
+                maxX = Math.max(maxX, cx);
+            }
+            links.add(new ChartLayout.Link(ChartLayout.LinkKind.DESCENT, ox, originY[origin], ox, forkY, null));
+            if (maxX > minX)
+                links.add(new ChartLayout.Link(ChartLayout.LinkKind.DESCENT, minX, forkY, maxX, forkY, null));
+            i = j;
+        }
+
+        for (var child : n.children)
+            emitDescendants(child, dx, generation + 1, boxes, links, shown);
+    }
+
+    private void emitAncestors(Node n, double dx, int generation, List<ChartLayout.Box> boxes,
+                               List<ChartLayout.Link> links, Set<Person> shown) {
+
+        double y = level(-generation);
+        double cx = n.x + dx;
+        // the root is drawn with the descendants
+        if (generation > 0)
+            boxes.add(box(n.row[0], cx - boxWidth / 2, y, -generation, shown));
+        if (n.children.isEmpty())
+            return;
+
+        double forkY = y - LEVEL_GAP + FORK_HEIGHT;
+        double parentBottom = level(-generation - 1) + boxHeight;
+        double minX = cx, maxX = cx;
+        links.add(new ChartLayout.Link(ChartLayout.LinkKind.DESCENT, cx, y, cx, forkY, null));
+        for (var parent : n.children) {
+            double px = parent.x + dx;
+            links.add(new ChartLayout.Link(ChartLayout.LinkKind.DESCENT, px, parentBottom, px, forkY, null));
+            minX = Math.min(minX, px);
+            maxX = Math.max(maxX, px);
+        }
+        if (maxX > minX)
+            links.add(new ChartLayout.Link(ChartLayout.LinkKind.DESCENT, minX, forkY, maxX, forkY, null));
+
+        for (var parent : n.children)
+            emitAncestors(parent, dx, generation + 1, boxes, links, shown);
+    }
+
+    private ChartLayout.Box box(Person p, double x, double y, int generation, Set<Person> shown) {
+        return new ChartLayout.Box(p, x, y, boxWidth, boxHeight, generation, !shown.add(p));
+    }
+}
@@ -0,0 +1,297 @@
+package com.archy.geneus;
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static com.archy.geneus.Diagnostic.Severity.ERROR;
+
+/**
+ * Checks a loaded tree for problems the model does not prevent: duplicate ids, cycles of parent
+ * links, deaths before births and children born before their parents.
+ * <p>
+ * The rules read the records of a {@link TreeVersion}, which never change, so a check can run while
+ * the tree is being edited.
+ * <p>
+ * Each rule is an independent read-only pass; the passes run in parallel on the common fork/join
+ * pool, and the per-person ones split the list further. Findings are streamed to a sink as they are
+ * found, at most {@code limit} per rule, followed by one note per rule that had more.
+ */
+public final class TreeValidator {
+
+    public static final String DUPLICATE_ID = "duplicate-id";
+    public static final String DANGLING_REFERENCE = "dangling-reference";
+    public static final String EXTRA_PARENT = "extra-parent";
+    public static final String CHARACTER_SET = "character-set";
+    public static final String PARENT_CYCLE = "parent-cycle";
+    public static final String DEATH_BEFORE_BIRTH = "death-before-birth";
+    public static final String BORN_BEFORE_PARENT = "born-before-parent";
+
+    public static final int DEFAULT_LIMIT = 100;
+
+    private static final int SPLIT = 1 << 14;
+
+    private TreeValidator() { }
+
+    /**
+     * How many problems each rule found, including those past the limit.
+     */
+    public record Report(Map<String, Integer> counts) {
+
+        public int total() {
+            return counts.values().stream().mapToInt(Integer::intValue).sum();
+        }
+
+        public boolean isClean() {
+            return total() == 0;
+        }
+    }
+
+    /**
+     * Validates on the common pool, never on the calling thread.
+     */
+    public static CompletableFuture<Report> validateAsync(TreeVersion version, List<Diagnostic> known,
+                                                          Consumer<Diagnostic> sink) {
+        return CompletableFuture.supplyAsync(() -> validate(version, known, sink, DEFAULT_LIMIT), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Runs every rule over the persons of {@code version}. {@code known} are problems found earlier, typically by
+     * the loader, which go through the same per-rule limit. The sink is called from pool threads,
+     * but never from two at once.
+     */
+    public static Report validate(TreeVersion version, List<Diagnostic> known, Consumer<Diagnostic> sink, int limit) {
+
+        var all = version.personRecords().toArray(new PersonRecord[0]);
+        var out = new Findings(sink, limit);
+
+        for (var d : known)
+            out.add(d);
+
+        ForkJoinTask.invokeAll(
+            pass(PARENT_CYCLE, out, () -> checkCycles(version, out)),
+            pass(DUPLICATE_ID, out, () -> checkDuplicateIds(all, out)),
+            pass(DEATH_BEFORE_BIRTH, out, () -> new PersonPass(all, 0, all.length, out, TreeValidator::checkLifespan).invoke()),
+            pass(BORN_BEFORE_PARENT, out, () -> new PersonPass(all, 0, all.length, out,
+                                                                (p, findings) -> checkBirthOrder(version, p, findings)).invoke()));
+
+        return out.finish();
+    }
+
+    /**
+     * Wraps a rule, run over the whole tree or split into {@link PersonPass}es, so that a failing rule
+     * is reported instead of failing the others.
+     */
+    private static ForkJoinTask<?> pass(String rule, Findings out, Runnable body) {
+        return new RecursiveAction() {
+            @Override
+            protected void compute() {
+                try {
+                    body.run();
+                } catch (RuntimeException e) {
+                    out.add(new Diagnostic(Diagnostic.Severity.WARNING, rule, null, "Check did not finish: " + e));
+                }
+            }
+        };
+    }
+
+    @FunctionalInterface
+    private interface PersonRule {
+        void check(PersonRecord p, Findings out);
+    }
+
+    // fork/join tasks are serializable by inheritance only, this one is never serialized
+    @SuppressWarnings("serial")
+    private static final class PersonPass extends RecursiveAction {
+
+        private final PersonRecord[] people;
+        private final int from, to;
+        private final Findings out;
+        private final PersonRule rule;
+
+        PersonPass(PersonRecord[] people, int from, int to, Findings out, PersonRule rule) {
+            this.people = people;
+            this.from = from;
+            this.to = to;
+            this.out = out;
+            this.rule = rule;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (to - from > SPLIT) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new PersonPass(people, from, mid, out, rule),
+                          new PersonPass(people, mid, to, out, rule));
+                return;
+            }
+
+            for (int i = from; i < to; i++)
+                rule.check(people[i], out);
+        }
+    }
+
+    private static void checkDuplicateIds(PersonRecord[] people, Findings out) {
+
+        Map<String, PersonRecord> seen = new HashMap<>(people.length * 2);
+
+        for (var p : people) {
+            if (p.id() == null)
+                continue;
+            var first = seen.putIfAbsent(p.id(), p);
+            if (first != null && first != p)
+                out.add(ERROR, DUPLICATE_ID, p,
+                        "Id " + p.id() + " is used by both " + first.displayName() + " and " + p.displayName());
+        }
+    }
+
+    /**
+     * Removes persons without parents, then persons without children, until neither is left
+     * (Kahn's algorithm from both ends). Whoever remains lies on a cycle or between two.
+     */
+    private static void checkCycles(TreeVersion version, Findings out) {
+
+        var graph = RelationGraph.of(version);
+        int n = graph.size();
+
+        var removed = new boolean[n];
+        var parentsLeft = new int[n];
+        var childrenLeft = new int[n];
+        var queue = new int[n];
+        int head = 0, tail = 0;
+
+        for (int i = 0; i < n; i++) {
+            parentsLeft[i] = graph.parentCount(i);
+            childrenLeft[i] = graph.childCount(i);
+            if (parentsLeft[i] == 0) {
+                removed[i] = true;
+                queue[tail++] = i;
+            }
+        }
+
+        while (head < tail) {
+            int p = queue[head++];
+            for (int e = graph.childStart(p); e < graph.childEnd(p); e++) {
+                int c = graph.child(e);
+                if (--parentsLeft[c] == 0 && !removed[c]) {
+                    removed[c] = true;
+                    queue[tail++] = c;
+                }
+            }
+        }
+
+        if (tail == n)
+            return;
+
+        // children of the remaining persons all remain, so their child counts are still exact
+        head = tail = 0;
+        for (int i = 0; i < n; i++) {
+            if (!removed[i] && childrenLeft[i] == 0) {
+                removed[i] = true;
+                queue[tail++] = i;
+            }
+        }
+
+        while (head < tail) {
+            int c = queue[head++];
+            for (int e = graph.parentStart(c); e < graph.parentEnd(c); e++) {
+                int p = graph.parent(e);
+                if (--childrenLeft[p] == 0 && !removed[p]) {
+                    removed[p] = true;
+                    queue[tail++] = p;
+                }
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (!removed[i]) {
+                var p = version.person(graph.key(i));
+                out.add(ERROR, PARENT_CYCLE, p, describe(p) + " is part of a cycle of parent links");
+            }
+        }
+    }
+
+    private static void checkLifespan(PersonRecord p, Findings out) {
+        if (p.birthDate() != null && p.deathDate() != null && p.deathDate().isBefore(p.birthDate()))
+            out.add(ERROR, DEATH_BEFORE_BIRTH, p,
+                    describe(p) + " died on " + p.deathDate() + ", before being born on " + p.birthDate());
+    }
+
+    private static void checkBirthOrder(TreeVersion version, PersonRecord p, Findings out) {
+
+        LocalDate born = p.birthDate();
+        if (born == null)
+            return;
+
+        for (var key : new String[] { p.parent1(), Objects.equals(p.parent2(), p.parent1()) ? null : p.parent2() }) {
+            var parent = key != null ? version.person(key) : null;
+            var parentBorn = parent != null ? parent.birthDate() : null;
+            if (parentBorn != null && !born.isAfter(parentBorn))
+                out.add(ERROR, BORN_BEFORE_PARENT, p,
+                        describe(p) + " was born on " + born + ", not after their parent "
+                        + describe(parent) + " born on " + parentBorn);
+        }
+    }
+
+    private static String describe(PersonRecord p) {
+        return p.displayName() + " (" + p.id() + ")";
+    }
+
+    /** Counts findings per rule and passes on the first {@code limit} of each. */
+    private static final class Findings {
+
+        private final Consumer<Diagnostic> sink;
+        private final int limit;
+        private final Map<String, AtomicInteger> counts = new LinkedHashMap<>();
+
+        Findings(Consumer<Diagnostic> sink, int limit) {
+            this.sink = sink;
+            this.limit = limit;
+        }
+
+        void add(Diagnostic.Severity severity, String rule, PersonRecord p, String message) {
+            if (count(rule).incrementAndGet() <= limit)
+                deliver(new Diagnostic(severity, rule, p == null ? null : p.id(), message));
+        }
+
+        void add(Diagnostic d) {
+            if (count(d.rule()).incrementAndGet() <= limit)
+                deliver(d);
+        }
+
+        private AtomicInteger count(String rule) {
+            synchronized (counts) {
+                return counts.computeIfAbsent(rule, r -> new AtomicInteger());
+            }
+        }
+
+        private synchronized void deliver(Diagnostic d) {
+            sink.accept(d);
+        }
+
+        Report finish() {
+
+            Map<String, Integer> result = new LinkedHashMap<>();
+            synchronized (counts) {
+                counts.forEach((rule, count) -> result.put(rule, count.get()));
+            }
+
+            result.forEach((rule, count) -> {
+                if (count > limit)
+                    deliver(new Diagnostic(Diagnostic.Severity.WARNING, rule, null,
+                                           (count - limit) + " more " + rule + " problems not shown"));
+            });
+            return new Report(result);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.archy.geneus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * An immutable state of a tree: every person and union as a record in a {@link PersistentMap},
+ * keyed by {@link PersonRecord#key()} and {@link UnionRecord#key()}.
+ * <p>
+ * Deriving the next version after an edit costs O(log n) per changed record, and everything else
+ * is shared with the previous version, so old versions can be kept for undo at little cost and
+ * compared by {@link #compare} in time proportional to the difference. A version can be read from
+ * any thread: indexes are built from its records directly, and {@link #toPersons} turns it back into
+ * a linked list of persons where a reader needs the usual {@link Person} methods, for example on a
+ * save thread.
+ * <p>
+ * Every version also carries {@link #links()}, the number of the version where its parent links
+ * last changed, so caches of the links can tell whether a later version still has the same ones.
+ */
+public final class TreeVersion {
+
+    private static final AtomicLong NUMBERS = new AtomicLong();
+
+    private final long number = NUMBERS.incrementAndGet();
+    private final PersistentMap<String, PersonRecord> persons;
+    private final PersistentMap<String, UnionRecord> unions;
+    private final long nextOrder;
+    private final long links;
+    private final PlaceDictionary places;
+
+    /** {@code sameLinks} is the version whose parent links this one keeps, or null if they changed. */
+    private TreeVersion(PersistentMap<String, PersonRecord> persons, PersistentMap<String, UnionRecord> unions,
+                        long nextOrder, PlaceDictionary places, TreeVersion sameLinks) {
+        this.persons = persons;
+        this.unions = unions;
+        this.nextOrder = nextOrder;
+        this.places = places;
+        this.links = sameLinks != null ? sameLinks.links : number;
+    }
+
+    /** A version without persons, whose unions will refer to places in {@code places}. */
+    public static TreeVersion empty(PlaceDictionary places) {
+        return new TreeVersion(PersistentMap.empty(), PersistentMap.empty(), 0, places, null);
+    }
+
+    public static TreeVersion of(Collection<Person> people, PlaceDictionary places) {
+
+        var keys = new IdentityHashMap<Person, String>(people.size() * 2);
+        var ids = new HashMap<String, Integer>(people.size() * 2);
+        for (var p : people)
+            keys.computeIfAbsent(p, x -> key(x.getId(), ids.merge(x.getId(), 1, Integer::sum) - 1));
+        return of(people, keys::get, places);
+    }
+
+    /**
+     * The version of {@code people}, where {@code keyOf} gives every person a key of its own and null
+     * for persons outside the tree, whose links are left out. Union places are stored as ids in
+     * {@code places}.
+     */
+    public static TreeVersion of(Collection<Person> people, Function<Person, String> keyOf, PlaceDictionary places) {
+
+        PersistentMap<String, PersonRecord> persons = PersistentMap.empty();
+        PersistentMap<String, UnionRecord> unions = PersistentMap.empty();
+        long order = 0;
+
+        for (var p : people) {
+            var key = keyOf.apply(p);
+            if (persons.containsKey(key))
+                continue;
+            persons = persons.with(key, record(p, key, order++, keyOf));
+            for (var m : p.getMarriages()) {
+                var union = union(m, keyOf, places);
+                if (union != null && !unions.containsKey(union.key()))
+                    unions = unions.with(union.key(), union);
+            }
+        }
+        return new TreeVersion(persons, unions, order, places, null);
+    }
+
+    /** The key of the {@code duplicate}th person with {@code id}, counting from 0. */
+    static String key(String id, int duplicate) {
+        return duplicate == 0 ? id : id + '\u0000' + duplicate;
+    }
+
+    private static PersonRecord record(Person p, String key, long order, Function<Person, String> keyOf) {
+        return new PersonRecord(key, p.getId(), order, p.getDisplayName(), p.getBirthDate(), p.getDeathDate(),
+                                keyOfNullable(p.getParent1(), keyOf), keyOfNullable(p.getParent2(), keyOf));
+    }
+
+    private static UnionRecord union(Marriage m, Function<Person, String> keyOf, PlaceDictionary places) {
+        var spouse1 = keyOf.apply(m.getSpouse1());
+        var spouse2 = keyOf.apply(m.getSpouse2());
+        return spouse1 != null && spouse2 != null ? UnionRecord.of(m, spouse1, spouse2, places) : null;
+    }
+
+    private static String keyOfNullable(Person p, Function<Person, String> keyOf) {
+        return p != null ? keyOf.apply(p) : null;
+    }
+
+    /** Unique among all versions, and larger for versions made later. */
+    public long number() {
+        return number;
+    }
+
+    /**
+     * The {@link #number()} of the version where the persons or their parent links last changed.
+     * Two versions with the same value have the same persons linked the same way; versions of
+     * different trees never share one.
+     */
+    public long links() {
+        return links;
+    }
+
+    public int size() {
+        return persons.size();
+    }
+
+    /** The dictionary the place ids of the unions refer to. */
+    public PlaceDictionary places() {
+        return places;
+    }
+
+    public int unionCount() {
+        return unions.size();
+    }
+
+    public PersonRecord person(String key) {
+        return persons.get(key);
+    }
+
+    public UnionRecord union(String key) {
+        return unions.get(key);
+    }
+
+    /** The person records in the order the persons were added. */
+    public List<PersonRecord> personRecords() {
+        var records = new ArrayList<PersonRecord>(persons.size());
+        persons.forEach((key, record) -> records.add(record));
+        records.sort(Comparator.comparingLong(PersonRecord::order));
+        return records;
+    }
+
+    PersistentMap<String, PersonRecord> persons() {
+        return persons;
+    }
+
+    PersistentMap<String, UnionRecord> unions() {
+        return unions;
+    }
+
+    /**
+     * This version with the current fields and unions of {@code p}, which is added if it is new; see
+     * {@link #of(Collection, Function, PlaceDictionary)} for {@code keyOf}.
+     */
+    public TreeVersion with(Person p, Function<Person, String> keyOf) {
+
+        var key = keyOf.apply(p);
+        var old = persons.get(key);
+        var record = record(p, key, old != null ? old.order() : nextOrder, keyOf);
+
+        var newPersons = record.equals(old) ? persons : persons.with(key, record);
+        var newUnions = unions;
+        for (var m : p.getMarriages()) {
+            var union = union(m, keyOf, places);
+            if (union != null && !union.equals(newUnions.get(union.key())))
+                newUnions = newUnions.with(union.key(), union);
+        }
+
+        if (newPersons == persons && newUnions == unions)
+            return this;
+        boolean relinked = old == null || !Objects.equals(old.parent1(), record.parent1())
+                           || !Objects.equals(old.parent2(), record.parent2());
+        return new TreeVersion(newPersons, newUnions, old != null ? nextOrder : nextOrder + 1, places,
+                               relinked ? null : this);
+    }
+
+    /** This version without {@code p} and {@code formerUnions}, the unions it had before it was removed. */
+    public TreeVersion without(Person p, Collection<Marriage> formerUnions, Function<Person, String> keyOf) {
+
+        var newPersons = persons.without(keyOf.apply(p));
+        var newUnions = unions;
+        for (var m : formerUnions) {
+            var spouse1 = keyOf.apply(m.getSpouse1());
+            if (spouse1 != null)
+                newUnions = newUnions.without(UnionRecord.key(spouse1, m.getId()));
+        }
+
+        if (newPersons == persons && newUnions == unions)
+            return this;
+        return new TreeVersion(newPersons, newUnions, nextOrder, places, newPersons == persons ? this : null);
+    }
+
+    /**
+     * Reports every person and union that differs from {@code older}; an argument is null where the
+     * record is missing on that side.
+     */
+    public void compare(TreeVersion older,
+                        PersistentMap.DiffAction<String, PersonRecord> personChanges,
+                        PersistentMap.DiffAction<String, UnionRecord> unionChanges) {
+        PersistentMap.diff(older.persons, persons, personChanges);
+        PersistentMap.diff(older.unions, unions, unionChanges);
+    }
+
+    /**
+     * New persons and unions for this version, linked to each other and to nothing else, in the order
+     * the persons were added. The unions use the dictionary of this version but are not listed in its
+     * place index.
+     */
+    public List<Person> toPersons() {
+
+        var records = personRecords();
+
+        var byKey = new HashMap<String, Person>(records.size() * 2);
+        var result = new ArrayList<Person>(records.size());
+        for (var record : records) {
+            var p = record.toPerson();
+            byKey.put(record.key(), p);
+            result.add(p);
+        }
+
+        for (var record : records) {
+            var p = byKey.get(record.key());
+            p.linkCopy(record.parent1() != null ? byKey.get(record.parent1()) : null,
+                       record.parent2() != null ? byKey.get(record.parent2()) : null);
+        }
+
+        unions.forEach((key, union) -> {
+            var spouse1 = byKey.get(union.spouse1());
+            var spouse2 = byKey.get(union.spouse2());
+            if (spouse1 != null && spouse2 != null)
+                spouse1.addMarriage(union.toDetachedMarriage(spouse1, spouse2, places));
+        });
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "TreeVersion{number=" + number + ", persons=" + persons.size() + ", unions=" + unions.size() + '}';
+    }
+}
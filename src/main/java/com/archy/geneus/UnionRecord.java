@@ -0,0 +1,57 @@
+package com.archy.geneus;
+
+import java.time.LocalDate;
+
+/**
+ * The fields of a {@link Marriage} at one {@link TreeVersion}, with spouses referred to by their
+ * {@link PersonRecord#key() keys} and places by their ids in the {@link TreeVersion#places()
+ * dictionary} of the version.
+ */
+public record UnionRecord(String id, String spouse1, String spouse2,
+                          LocalDate startDate, int startArea, int startCountry,
+                          LocalDate endDate, int endArea, int endCountry) {
+
+    /** The record of {@code m} with place ids in {@code places}, translated if {@code m} uses another dictionary. */
+    static UnionRecord of(Marriage m, String spouse1, String spouse2, PlaceDictionary places) {
+        if (m.getPlaces() == places)
+            return new UnionRecord(m.getId(), spouse1, spouse2,
+                                   m.getStartDate(), m.getStartAreaId(), m.getStartCountryId(),
+                                   m.getEndDate(), m.getEndAreaId(), m.getEndCountryId());
+        return new UnionRecord(m.getId(), spouse1, spouse2,
+                               m.getStartDate(), places.intern(m.getStartArea()), places.intern(m.getStartCountry()),
+                               m.getEndDate(), places.intern(m.getEndArea()), places.intern(m.getEndCountry()));
+    }
+
+    /** Union ids are only unique among the unions of the first spouse. */
+    String key() {
+        return key(spouse1, id);
+    }
+
+    static String key(String spouse1, String unionId) {
+        return spouse1 + '\u0000' + unionId;
+    }
+
+    /**
+     * A new union between {@code spouse1} and {@code spouse2}, not yet added to them, whose places are
+     * looked up in {@code from} and listed in {@code into}.
+     */
+    Marriage toMarriage(Person spouse1, Person spouse2, PlaceDictionary from, PlaceDictionary into) {
+        var m = new Marriage(into, id, spouse1, spouse2);
+        m.setStartDate(startDate);
+        m.setStartArea(from.name(startArea));
+        m.setStartCountry(from.name(startCountry));
+        m.setEndDate(endDate);
+        m.setEndArea(from.name(endArea));
+        m.setEndCountry(from.name(endCountry));
+        return m;
+    }
+
+    /** Like {@link #toMarriage}, but the union keeps the ids of {@code places} and is not listed in its index. */
+    Marriage toDetachedMarriage(Person spouse1, Person spouse2, PlaceDictionary places) {
+        var m = new Marriage(places, id, spouse1, spouse2);
+        m.setStartDate(startDate);
+        m.setEndDate(endDate);
+        m.setPlaceIds(startArea, startCountry, endArea, endCountry);
+        return m;
+    }
+}
@@ -0,0 +1,129 @@
+package com.archy.geneus;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GedcomRWTest {
+
+    @TempDir
+    Path dir;
+
+    private List<Person> load(String content, Charset charset, List<Diagnostic> problems) throws Exception {
+        var file = dir.resolve("tree.ged");
+        Files.write(file, content.getBytes(charset));
+        return GedcomRW.loadGedcom(file.toString(), new PlaceDictionary(), problems::add);
+    }
+
+    private static String gedcom(String charset, String... body) {
+        var lines = new ArrayList<>(List.of("0 HEAD", "1 GEDC", "2 VERS 5.5.1"));
+        if (charset != null)
+            lines.add("1 CHAR " + charset);
+        lines.addAll(List.of(body));
+        lines.add("0 TRLR");
+        return String.join("\r\n", lines) + "\r\n";
+    }
+
+    @Test
+    void savedTreeLoadsBackTheSame() throws Exception {
+
+        var places = new PlaceDictionary();
+        var anna = new Person("a1", "Anna Nováková");
+        anna.setBirthDate(LocalDate.of(1900, 3, 4));
+        var boris = new Person("b2", "Boris " + "Dlouhé-Jméno ".repeat(30).strip());
+        boris.setDeathDate(LocalDate.of(1970, 12, 31));
+        var carl = new Person("c3", "Carl Novák");
+        carl.setParent1(anna);
+        carl.setParent2(boris);
+        var m = new Marriage(places, "u1", anna, boris);
+        m.setStartDate(LocalDate.of(1922, 5, 1));
+        m.setStartArea("Praha " + "Vinohrady ".repeat(30).strip());
+        m.setStartCountry("Čechy");
+        anna.addMarriage(m);
+
+        var file = dir.resolve("saved.ged").toString();
+        GedcomRW.saveGedcom(List.of(anna, boris, carl), file);
+        assertTrue(Files.readAllLines(Path.of(file)).stream().allMatch(l -> l.length() <= 255));
+
+        var problems = new ArrayList<Diagnostic>();
+        var loaded = GedcomRW.loadGedcom(file, new PlaceDictionary(), problems::add);
+
+        assertEquals(List.of(), problems);
+        assertEquals(3, loaded.size());
+        var a = loaded.get(0);
+        var b = loaded.get(1);
+        var c = loaded.get(2);
+        assertEquals("Anna Nováková", a.getDisplayName());
+        assertEquals(LocalDate.of(1900, 3, 4), a.getBirthDate());
+        assertEquals(boris.getDisplayName(), b.getDisplayName());
+        assertEquals(LocalDate.of(1970, 12, 31), b.getDeathDate());
+        assertEquals("c3", c.getId());
+        assertSame(a, c.getParent1());
+        assertSame(b, c.getParent2());
+
+        var union = a.getMarriage("u1");
+        assertSame(b, union.getSpouseOf(a));
+        assertEquals(LocalDate.of(1922, 5, 1), union.getStartDate());
+        assertEquals(m.getStartArea(), union.getStartArea());
+        assertEquals("Čechy", union.getStartCountry());
+    }
+
+    @Test
+    void continuationLinesAreJoined() throws Exception {
+
+        var loaded = load(gedcom("UTF-8",
+                                 "0 @I1@ INDI",
+                                 "1 NAME Johann Wolf",
+                                 "2 CONC gang /von Go",
+                                 "2 CONC ethe/",
+                                 "1 BIRT",
+                                 "2 DATE 28",
+                                 "3 CONC  AUG 1749"),
+                          StandardCharsets.UTF_8, new ArrayList<>());
+
+        var p = loaded.get(0);
+        assertEquals("Johann Wolfgang von Goethe", p.getDisplayName());
+        assertEquals(LocalDate.of(1749, 8, 28), p.getBirthDate());
+    }
+
+    @Test
+    void headerCharacterSetsAreHonoured() throws Exception {
+
+        var body = new String[] { "0 @I1@ INDI", "1 NAME Šimon /Müller/" };
+
+        for (var charset : List.of(Charset.forName("windows-1252"), StandardCharsets.UTF_8)) {
+            var problems = new ArrayList<Diagnostic>();
+            var name = charset == StandardCharsets.UTF_8 ? "UTF-8" : "ANSI";
+            assertEquals("Šimon Müller", load(gedcom(name, body), charset, problems).get(0).getDisplayName(), name);
+            assertEquals(List.of(), problems);
+        }
+
+        // UTF-16 is recognized with and without a byte order mark
+        assertEquals("Šimon Müller", load(gedcom("UNICODE", body), StandardCharsets.UTF_16, new ArrayList<>())
+            .get(0).getDisplayName());
+        assertEquals("Šimon Müller", load(gedcom("UNICODE", body), StandardCharsets.UTF_16LE, new ArrayList<>())
+            .get(0).getDisplayName());
+        assertEquals("Šimon Müller", load("\uFEFF" + gedcom(null, body), StandardCharsets.UTF_8, new ArrayList<>())
+            .get(0).getDisplayName());
+    }
+
+    @Test
+    void anselIsReported() throws Exception {
+
+        var problems = new ArrayList<Diagnostic>();
+        var loaded = load(gedcom("ANSEL", "0 @I1@ INDI", "1 NAME Jan /Novak/"), StandardCharsets.US_ASCII, problems);
+
+        assertEquals("Jan Novak", loaded.get(0).getDisplayName());
+        assertEquals(1, problems.size());
+        assertEquals(TreeValidator.CHARACTER_SET, problems.get(0).rule());
+    }
+}
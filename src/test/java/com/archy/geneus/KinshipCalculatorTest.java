@@ -0,0 +1,80 @@
+package com.archy.geneus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KinshipCalculatorTest {
+
+    private static final double EPSILON = 1e-12;
+
+    private static Person child(String id, Person parent1, Person parent2) {
+        var p = new Person(id, "Person " + id);
+        p.setParent1(parent1);
+        p.setParent2(parent2);
+        return p;
+    }
+
+    @Test
+    void coefficientsOfAFirstCousinMarriage() {
+
+        var grandma = new Person("1", "Grandma");
+        var grandpa = new Person("2", "Grandpa");
+        var mother = child("3", grandma, grandpa);
+        var uncle = child("4", grandma, grandpa);
+        var father = new Person("5", "Father");
+        var aunt = new Person("6", "Aunt");
+        var me = child("7", mother, father);
+        var cousin = child("8", uncle, aunt);
+        var kid = child("9", me, cousin);
+        var stranger = new Person("10", "Stranger");
+
+        var people = List.of(grandma, grandpa, mother, uncle, father, aunt, me, cousin, kid, stranger);
+        var calculator = KinshipCalculator.of(people);
+
+        assertEquals(0.25, calculator.kinship(mother, uncle), EPSILON);
+        assertEquals(0.25, calculator.kinship(grandma, mother), EPSILON);
+        assertEquals(0.0625, calculator.kinship(me, cousin), EPSILON);
+        assertEquals(0, calculator.kinship(grandma, grandpa), EPSILON);
+        assertEquals(0, calculator.kinship(kid, stranger), EPSILON);
+
+        assertEquals(0, calculator.inbreeding(me), EPSILON);
+        assertEquals(0.0625, calculator.inbreeding(kid), EPSILON);
+        assertEquals(0.5 * (1 + 0.0625), calculator.kinship(kid, kid), EPSILON);
+
+        assertEquals(0.5, calculator.relationship(mother, uncle), EPSILON);
+        assertEquals(0.125, calculator.relationship(me, cousin), EPSILON);
+
+        var all = calculator.inbreedingAll();
+        for (int i = 0; i < people.size(); i++)
+            assertEquals(calculator.inbreeding(people.get(i)), all[i], EPSILON, people.get(i).getId());
+
+        var pedigree = KinshipCalculator.ofPedigree(me, cousin);
+        assertEquals(0.0625, pedigree.kinship(me, cousin), EPSILON);
+        assertEquals(0.25, pedigree.kinship(mother, uncle), EPSILON);
+    }
+
+    @Test
+    void repeatedCollapseAddsUp() {
+
+        // double first cousins: two brothers married two sisters
+        var a1 = new Person("1", "A1");
+        var a2 = new Person("2", "A2");
+        var b1 = new Person("3", "B1");
+        var b2 = new Person("4", "B2");
+        var brother1 = child("5", a1, a2);
+        var brother2 = child("6", a1, a2);
+        var sister1 = child("7", b1, b2);
+        var sister2 = child("8", b1, b2);
+        var x = child("9", brother1, sister1);
+        var y = child("10", brother2, sister2);
+        var kid = child("11", x, y);
+
+        var calculator = KinshipCalculator.ofPedigree(kid);
+        assertEquals(0.125, calculator.kinship(x, y), EPSILON);
+        assertEquals(0.125, calculator.inbreeding(kid), EPSILON);
+        assertEquals(0.25, calculator.relationship(x, y), EPSILON);
+    }
+}
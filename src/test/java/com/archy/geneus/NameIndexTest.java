@@ -0,0 +1,80 @@
+package com.archy.geneus;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NameIndexTest {
+
+    private NameIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = new NameIndex();
+        index.add("k1", "Jan Novák");
+        index.add("k2", "Jana Nováková");
+        index.add("k3", "Honza Janáček");
+        index.add("k4", "Petr Dvořák");
+    }
+
+    private List<String> search(String query) {
+        return index.search(query, NameIndex.DEFAULT_LIMIT);
+    }
+
+    @Test
+    void wholeWordsRankBeforePrefixesBeforeInnerMatches() {
+
+        // "jan" whole, then the prefixes in the order of their words: "jana" before "janacek"
+        assertEquals(List.of("k1", "k2", "k3"), search("jan"));
+        assertEquals(List.of("k1", "k2"), search("Jan Nov"));
+        assertEquals(List.of("k4"), search("DVOR"));
+        assertEquals(List.of("k4"), search("vořá"));
+
+        // words shorter than three letters only match at the start of a word
+        assertEquals(List.of(), search("an"));
+        assertEquals(List.of("k4"), search("pe"));
+
+        assertEquals(List.of(), search("jan dvorak"));
+        assertEquals(List.of(), search("  "));
+        assertEquals(1, index.search("nov", 1).size());
+    }
+
+    @Test
+    void updatesAndRemovalsAreSeenBySearches() {
+
+        index.update("k1", "Karel Novák");
+        assertEquals(List.of("k2", "k3"), search("jan"));
+        assertEquals(List.of("k1"), search("karel"));
+
+        index.remove("k2");
+        assertEquals(List.of("k3"), search("jan"));
+        assertEquals(List.of("k1"), search("novak"));
+        assertEquals(3, index.size());
+
+        // a new person and an unknown key updated into the index; "janacek" sorts before "janek"
+        index.add("k5", "Jan Svoboda");
+        index.update("k6", "Janek Svoboda");
+        assertEquals(List.of("k5", "k3", "k6"), search("jan"));
+        assertEquals(5, index.size());
+    }
+
+    @Test
+    void searchesStayRightAfterTheIndexIsCompacted() {
+
+        for (int i = 0; i < 3000; i++)
+            index.add("x" + i, "Filler " + i + " Horák");
+        for (int i = 0; i < 2500; i++)
+            index.remove("x" + i);
+        index.remove("k4");
+
+        assertEquals(503, index.size());
+        assertEquals(List.of("k1", "k2", "k3"), search("jan"));
+        assertEquals(List.of(), search("dvorak"));
+        assertEquals(List.of("x2999"), search("filler 2999"));
+        assertEquals(List.of(), search("filler 1"));
+        assertEquals(500, index.search("horak", 1000).size());
+    }
+}
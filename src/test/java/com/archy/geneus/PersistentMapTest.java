@@ -0,0 +1,196 @@
+package com.archy.geneus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PersistentMapTest {
+
+    /** A key with a chosen hash, so that collisions can be made on purpose. */
+    private record Key(String name, int hash) {
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k && k.name.equals(name);
+        }
+    }
+
+    private record Change(Object key, Object oldValue, Object newValue) { }
+
+    private static <K, V> Set<Change> diff(PersistentMap<K, V> from, PersistentMap<K, V> to) {
+        var changes = new HashSet<Change>();
+        PersistentMap.diff(from, to, (key, a, b) -> assertTrue(changes.add(new Change(key, a, b)), "reported twice: " + key));
+        return changes;
+    }
+
+    private static <K, V> Set<Change> expectedDiff(Map<K, V> from, Map<K, V> to) {
+        var changes = new HashSet<Change>();
+        for (var e : from.entrySet())
+            if (!Objects.equals(e.getValue(), to.get(e.getKey())))
+                changes.add(new Change(e.getKey(), e.getValue(), to.get(e.getKey())));
+        for (var e : to.entrySet())
+            if (!from.containsKey(e.getKey()))
+                changes.add(new Change(e.getKey(), null, e.getValue()));
+        return changes;
+    }
+
+    private static <K, V> void assertContents(Map<K, V> expected, PersistentMap<K, V> map) {
+        assertEquals(expected.size(), map.size());
+        for (var e : expected.entrySet())
+            assertEquals(e.getValue(), map.get(e.getKey()), "value of " + e.getKey());
+        var seen = new HashMap<K, V>();
+        map.forEach((k, v) -> assertNull(seen.put(k, v), "visited twice: " + k));
+        assertEquals(expected, seen);
+    }
+
+    @Test
+    void withAndWithoutLeaveEarlierVersionsAlone() {
+
+        PersistentMap<String, Integer> empty = PersistentMap.empty();
+        var one = empty.with("a", 1);
+        var two = one.with("b", 2);
+        var replaced = two.with("a", 10);
+        var removed = replaced.without("b");
+
+        assertTrue(empty.isEmpty());
+        assertContents(Map.of("a", 1), one);
+        assertContents(Map.of("a", 1, "b", 2), two);
+        assertContents(Map.of("a", 10, "b", 2), replaced);
+        assertContents(Map.of("a", 10), removed);
+        assertTrue(removed.without("a").isEmpty());
+    }
+
+    @Test
+    void unchangedMapsAreReturnedAsTheyAre() {
+
+        var map = PersistentMap.<String, Integer>empty().with("a", 1).with("b", 2);
+
+        assertSame(map, map.with("a", 1));
+        assertSame(map, map.without("missing"));
+        assertTrue(diff(map, map).isEmpty());
+    }
+
+    @Test
+    void keysWithEqualHashesShareACollisionNode() {
+
+        var keys = new ArrayList<Key>();
+        for (int i = 0; i < 6; i++)
+            keys.add(new Key("k" + i, 42));
+
+        PersistentMap<Key, Integer> map = PersistentMap.empty();
+        var expected = new HashMap<Key, Integer>();
+        for (int i = 0; i < keys.size(); i++) {
+            map = map.with(keys.get(i), i);
+            expected.put(keys.get(i), i);
+        }
+        assertContents(expected, map);
+        assertNull(map.get(new Key("other", 42)));
+
+        var replaced = map.with(keys.get(3), 30);
+        assertEquals(30, replaced.get(keys.get(3)));
+        assertEquals(3, map.get(keys.get(3)));
+        assertEquals(map.size(), replaced.size());
+
+        var shrunk = map;
+        for (int i = 0; i < keys.size(); i++) {
+            shrunk = shrunk.without(keys.get(i));
+            expected.remove(keys.get(i));
+            assertContents(expected, shrunk);
+        }
+        assertTrue(shrunk.isEmpty());
+    }
+
+    @Test
+    void collidingAndNearlyCollidingKeysLiveTogether() {
+
+        // the same hash, and hashes that agree in the low levels of the trie only
+        var keys = List.of(new Key("a", 7), new Key("b", 7), new Key("c", 7 | 1 << 10),
+                           new Key("d", 7 | 1 << 20), new Key("e", 7 | 1 << 20), new Key("f", 8));
+
+        PersistentMap<Key, String> map = PersistentMap.empty();
+        for (var k : keys)
+            map = map.with(k, k.name());
+
+        for (var k : keys)
+            assertEquals(k.name(), map.get(k));
+
+        var without = map.without(keys.get(3));
+        assertNull(without.get(keys.get(3)));
+        assertEquals("e", without.get(keys.get(4)));
+        assertEquals(keys.size() - 1, without.size());
+    }
+
+    @Test
+    void diffReportsAddedChangedAndRemovedKeysIncludingCollisions() {
+
+        var a = new Key("a", 1);
+        var b = new Key("b", 1);
+        var c = new Key("c", 1);
+        var d = new Key("d", 2);
+
+        var from = PersistentMap.<Key, Integer>empty().with(a, 1).with(b, 2).with(d, 4);
+        var to = from.with(b, 20).without(a).with(c, 3);
+
+        assertEquals(Set.of(new Change(a, 1, null), new Change(b, 2, 20), new Change(c, null, 3)), diff(from, to));
+        assertEquals(Set.of(new Change(a, null, 1), new Change(b, 20, 2), new Change(c, 3, null)), diff(to, from));
+        assertEquals(Set.of(new Change(d, null, 4)), diff(from.without(d), from));
+    }
+
+    @Test
+    void diffOfEqualValuesInDifferentVersionsIsEmpty() {
+
+        var map = PersistentMap.<String, String>empty().with("x", "1").with("y", "2");
+        var rebuilt = PersistentMap.<String, String>empty().with("y", "2").with("x", new String("1"));
+
+        assertTrue(diff(map, rebuilt).isEmpty());
+        assertTrue(diff(map, map.with("x", "2").with("x", "1")).isEmpty());
+    }
+
+    @Test
+    void randomEditsMatchAHashMap() {
+
+        var random = new Random(20240611);
+        // few distinct hashes, so that many keys collide and collision nodes grow and shrink
+        var keys = new ArrayList<Key>();
+        for (int i = 0; i < 400; i++)
+            keys.add(new Key("k" + i, random.nextInt(64) * 0x01010101));
+
+        PersistentMap<Key, Integer> map = PersistentMap.empty();
+        var expected = new HashMap<Key, Integer>();
+
+        for (int round = 0; round < 50; round++) {
+            var before = map;
+            var expectedBefore = new HashMap<>(expected);
+
+            for (int step = 0; step < 80; step++) {
+                var k = keys.get(random.nextInt(keys.size()));
+                if (random.nextInt(3) == 0) {
+                    map = map.without(k);
+                    expected.remove(k);
+                } else {
+                    int v = random.nextInt(5);
+                    map = map.with(k, v);
+                    expected.put(k, v);
+                }
+            }
+
+            assertContents(expected, map);
+            assertContents(expectedBefore, before);
+            assertEquals(expectedDiff(expectedBefore, expected), diff(before, map));
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.archy.geneus;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PersonRepositoryTest {
+
+    private PersonRepository repository;
+    private Person anna, boris, carl, dora;
+    private TreeVersion initial;
+
+    /** Anna and Boris, married in Prague, with their children Carl and Dora. */
+    @BeforeEach
+    void setUp() {
+
+        var places = new PlaceDictionary();
+        anna = person("1", "Anna Novak", 1900);
+        boris = person("2", "Boris Novak", 1898);
+        carl = person("3", "Carl Novak", 1925);
+        dora = person("4", "Dora Novak", 1927);
+
+        var m = new Marriage(places, "u1", anna, boris);
+        m.setStartDate(LocalDate.of(1922, 5, 1));
+        m.setStartArea("Prague");
+        m.setStartCountry("Bohemia");
+        anna.addMarriage(m);
+
+        for (var child : List.of(carl, dora)) {
+            child.setParent1(anna);
+            child.setParent2(boris);
+        }
+
+        repository = new PersonRepository(new ArrayList<>(List.of(anna, boris, carl, dora)), places);
+        initial = repository.version();
+    }
+
+    private static Person person(String id, String name, int born) {
+        var p = new Person(id, name);
+        p.setBirthDate(LocalDate.of(born, 1, 1));
+        return p;
+    }
+
+    /**
+     * The whole graph as text, after checking that every link is mirrored on the other side and
+     * stays inside the repository. Order is left out: a restored person goes to the end of the
+     * table and children come back in the order their records are visited.
+     */
+    private String describe() {
+
+        var lines = new ArrayList<String>();
+        for (var p : repository.snapshot()) {
+
+            for (var parent : p.getParents()) {
+                assertTrue(repository.contains(parent), p.getId() + " has a parent outside the tree");
+                assertTrue(parent.getDescendants().stream().anyMatch(c -> c == p), p.getId() + " is missing from its parent's children");
+            }
+            for (var child : p.getDescendants()) {
+                assertTrue(repository.contains(child), p.getId() + " has a child outside the tree");
+                assertTrue(child.getParent1() == p || child.getParent2() == p, child.getId() + " does not point back to " + p.getId());
+            }
+            for (var m : p.getMarriages()) {
+                assertTrue(repository.contains(m.getSpouseOf(p)), p.getId() + " is married outside the tree");
+                assertTrue(m.getSpouseOf(p).getMarriages().stream().anyMatch(x -> x == m), "union " + m.getId() + " is not shared");
+            }
+            assertSame(p, repository.get(p.getId()));
+
+            lines.add(p.getId() + " " + p.getDisplayName() + " " + p.getBirthDate()
+                      + " parents=" + p.getParents().stream().map(Person::getId).toList()
+                      + " children=" + p.getDescendants().stream().map(Person::getId).sorted().toList()
+                      + " unions=" + p.getMarriages().stream()
+                          .map(m -> m.getId() + ":" + m.getSpouse1().getId() + "+" + m.getSpouse2().getId()
+                                    + "@" + m.getStartDate() + "," + m.getStartArea() + "," + m.getStartCountry())
+                          .sorted()
+                          .collect(Collectors.joining(";")));
+        }
+        lines.sort(null);
+        return String.join("\n", lines);
+    }
+
+    @Test
+    void undoAndRedoAddingAChild() {
+
+        var before = describe();
+        var emil = person("5", "Emil Novak", 1950);
+        emil.setParent1(carl);
+        repository.add(emil);
+        var added = repository.version();
+        var after = describe();
+
+        repository.restore(initial);
+        assertEquals(before, describe());
+        assertNull(repository.get("5"));
+        assertTrue(carl.getDescendants().isEmpty());
+
+        repository.restore(added);
+        assertEquals(after, describe());
+        var restored = repository.get("5");
+        assertSame(carl, restored.getParent1());
+    }
+
+    @Test
+    void undoAndRedoAnEditOfFieldsParentsAndUnions() {
+
+        var before = describe();
+        var eva = person("5", "Eva Svoboda", 1926);
+        repository.add(eva);
+        var withEva = repository.version();
+        var beforeEdit = describe();
+
+        carl.setDisplayName("Karel Novak");
+        carl.setBirthDate(LocalDate.of(1924, 12, 31));
+        carl.setParent2(null);
+        var m = new Marriage(repository.places(), "u2", carl, eva);
+        m.setStartArea("Brno");
+        carl.addMarriage(m);
+        repository.update(carl);
+        repository.update(boris);
+        var edited = repository.version();
+        var afterEdit = describe();
+
+        repository.restore(withEva);
+        assertEquals(beforeEdit, describe());
+        assertEquals("Carl Novak", carl.getDisplayName());
+        assertSame(boris, carl.getParent2());
+        assertTrue(eva.getMarriages().isEmpty());
+        assertTrue(repository.places().unionsInArea("Brno").isEmpty());
+
+        repository.restore(edited);
+        assertEquals(afterEdit, describe());
+        assertEquals(1, repository.places().unionsInArea("Brno").size());
+
+        repository.restore(initial);
+        assertEquals(before, describe());
+    }
+
+    @Test
+    void undoAndRedoDeletingAParentWithChildrenAndAUnion() {
+
+        var before = describe();
+        repository.remove(anna);
+        var removed = repository.version();
+        var after = describe();
+
+        assertNull(carl.getParent1());
+        assertTrue(boris.getMarriages().isEmpty());
+        assertTrue(repository.places().unionsInArea("Prague").isEmpty());
+
+        repository.restore(initial);
+        assertEquals(before, describe());
+        var restored = repository.get("1");
+        assertNotSame(anna, restored);
+        assertSame(restored, carl.getParent1());
+        assertSame(restored, dora.getParent1());
+        var union = restored.getMarriage("u1");
+        assertSame(boris, union.getSpouseOf(restored));
+        assertEquals("Prague", union.getStartArea());
+        assertEquals(List.of(union), repository.places().unionsInArea("Prague"));
+
+        repository.restore(removed);
+        assertEquals(after, describe());
+        assertNull(repository.get("1"));
+        assertNull(carl.getParent1());
+        assertSame(boris, carl.getParent2());
+    }
+
+    @Test
+    void onlyParentChangesGiveAVersionNewLinks() {
+
+        carl.setDisplayName("Karel Novak");
+        repository.update(carl);
+        var renamed = repository.version();
+        assertEquals(initial.links(), renamed.links());
+        var index = ReachabilityIndex.of(renamed);
+        assertTrue(index.isCurrent(repository.version()));
+        assertTrue(index.isAncestor(anna, carl, repository));
+
+        carl.setParent1(null);
+        repository.update(carl);
+        assertNotEquals(initial.links(), repository.version().links());
+        assertFalse(index.isCurrent(repository.version()));
+        assertFalse(index.isAncestor(anna, carl, repository));
+
+        repository.restore(renamed);
+        assertTrue(index.isCurrent(repository.version()));
+        assertTrue(index.isAncestor(anna, carl, repository));
+        assertFalse(index.isCurrent(new PersonRepository(new ArrayList<>(), new PlaceDictionary()).version()));
+    }
+
+    @Test
+    void undoRestoresTheSecondOfTwoPersonsWithTheSameId() {
+
+        var twin = person("3", "Carl Novak", 1925);
+        twin.setParent1(boris);
+        repository.add(twin);
+        var both = repository.version();
+
+        repository.remove(carl);
+        assertSame(twin, repository.get("3"));
+
+        repository.restore(both);
+        assertEquals(5, repository.size());
+        assertTrue(repository.contains(twin));
+        var keys = new ArrayList<String>();
+        both.persons().forEach((key, record) -> keys.add(key));
+        assertEquals(5, keys.size());
+    }
+
+    @Test
+    void turningAVersionIntoPersonsLeavesLiveLinkCachesValid() {
+
+        var ancestors = RelationshipCalculator.ancestors(carl);
+        var copies = initial.toPersons();
+
+        assertSame(ancestors, carl.ancestors);
+        assertEquals(4, copies.size());
+        var copyOfCarl = copies.get(2);
+        assertEquals("Anna Novak", copyOfCarl.getParent1().getDisplayName());
+        assertNotSame(anna, copyOfCarl.getParent1());
+        assertTrue(copies.get(0).getDescendants().contains(copyOfCarl));
+        assertEquals("Prague", copies.get(0).getMarriages().get(0).getStartArea());
+    }
+}
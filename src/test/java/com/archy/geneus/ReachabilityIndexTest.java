@@ -0,0 +1,74 @@
+package com.archy.geneus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReachabilityIndexTest {
+
+    /**
+     * {@code n} persons whose parents are drawn from the persons made before them, so the links
+     * form a DAG, with cousins marrying often enough in a small pool. The list is shuffled so that
+     * the repository order has nothing to do with the generations.
+     */
+    private static List<Person> randomPedigree(Random random, int n, double parentChance) {
+
+        var made = new ArrayList<Person>(n);
+        for (int i = 0; i < n; i++) {
+            var p = new Person("p" + i, "Person " + i);
+            if (i > 0 && random.nextDouble() < parentChance)
+                p.setParent1(made.get(random.nextInt(i)));
+            if (i > 1 && random.nextDouble() < parentChance)
+                p.setParent2(made.get(random.nextInt(i)));
+            made.add(p);
+        }
+        Collections.shuffle(made, random);
+        return made;
+    }
+
+    private static void assertAgreesWithWalk(List<Person> people, boolean withSelf) {
+
+        var repository = new PersonRepository(new ArrayList<>(people), new PlaceDictionary());
+        var index = ReachabilityIndex.of(repository.version());
+        assertTrue(index.isCurrent(repository.version()));
+
+        for (var a : people)
+            for (var d : people)
+                if (withSelf || a != d)
+                    assertEquals(ReachabilityIndex.isAncestorByWalk(a, d), index.isAncestor(a, d, repository),
+                                 a.getId() + " -> " + d.getId());
+    }
+
+    @Test
+    void randomPedigreesAgreeWithAWalk() {
+
+        var random = new Random(42);
+        for (int round = 0; round < 20; round++)
+            assertAgreesWithWalk(randomPedigree(random, 40 + random.nextInt(120), 0.3 + random.nextDouble() * 0.7),
+                                 true);
+    }
+
+    @Test
+    void parentCyclesFallBackToTheSearch() {
+
+        var random = new Random(7);
+        var people = randomPedigree(random, 60, 0.8);
+
+        // an impossible loop, as a bad import can leave it: x is its own great-grandparent
+        var x = people.get(0);
+        var y = new Person("y", "Y");
+        var z = new Person("z", "Z");
+        y.setParent1(x);
+        z.setParent1(y);
+        x.setParent2(z);
+        people.add(y);
+        people.add(z);
+
+        assertAgreesWithWalk(people, false);
+    }
+}
@@ -0,0 +1,70 @@
+package com.archy.geneus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RelationshipCalculatorTest {
+
+    private static Person child(String id, Person parent1, Person parent2) {
+        var p = new Person(id, "Person " + id);
+        p.setParent1(parent1);
+        p.setParent2(parent2);
+        return p;
+    }
+
+    @Test
+    void fullHalfAndCousins() {
+
+        var grandma = new Person("1", "Grandma");
+        var grandpa = new Person("2", "Grandpa");
+        var other = new Person("3", "Other");
+        var mother = child("4", grandma, grandpa);
+        var uncle = child("5", grandma, grandpa);
+        var halfAunt = child("6", grandma, other);
+        var me = child("7", mother, null);
+        var cousin = child("8", uncle, null);
+
+        assertEquals("sibling", RelationshipCalculator.relate(mother, uncle).label());
+        assertEquals("half-sibling", RelationshipCalculator.relate(mother, halfAunt).label());
+        assertEquals("first cousin", RelationshipCalculator.relate(me, cousin).label());
+        assertEquals("niece/nephew", RelationshipCalculator.relate(me, uncle).label());
+        assertEquals("grandparent", RelationshipCalculator.relate(grandma, me).label());
+        assertEquals(2, RelationshipCalculator.distance(grandpa, cousin));
+        assertEquals(-1, RelationshipCalculator.distance(other, me));
+    }
+
+    @Test
+    void personsWithTheSameIdAreDifferentAncestors() {
+
+        // two unrelated families whose parents were numbered alike, as in merged archives
+        var father = new Person("1", "Jan Novak");
+        var namesake = new Person("1", "Jan Svoboda");
+        var a = child("2", father, null);
+        var b = child("3", namesake, null);
+
+        var relationship = RelationshipCalculator.relate(a, b);
+        assertFalse(relationship.isRelated(), relationship.label());
+        assertEquals("not related", relationship.label());
+        assertEquals(-1, RelationshipCalculator.distance(namesake, a));
+        assertEquals(List.of(), RelationshipCalculator.nearestCommonAncestors(a, b));
+    }
+
+    @Test
+    void changingAParentDropsTheIndexesBelowOnly() {
+
+        var root = new Person("1", "Root");
+        var parent = child("2", root, null);
+        var kid = child("3", parent, null);
+        var elsewhere = child("4", root, null);
+
+        assertEquals(2, RelationshipCalculator.distance(root, kid));
+        var kept = RelationshipCalculator.ancestors(elsewhere);
+
+        parent.setParent1(null);
+        assertEquals(-1, RelationshipCalculator.distance(root, kid));
+        assertSame(kept, RelationshipCalculator.ancestors(elsewhere));
+    }
+}
@@ -0,0 +1,111 @@
+package com.archy.geneus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TreeLayoutTest {
+
+    private static final double WIDTH = 120, HEIGHT = 40;
+
+    private final PlaceDictionary places = new PlaceDictionary();
+    private int unions;
+
+    private static Person child(String id, Person parent1, Person parent2) {
+        var p = new Person(id, "Person " + id);
+        p.setParent1(parent1);
+        p.setParent2(parent2);
+        return p;
+    }
+
+    private void marry(Person a, Person b) {
+        a.addMarriage(new Marriage(places, "u" + ++unions, a, b));
+    }
+
+    private static void assertNoOverlaps(ChartLayout chart) {
+
+        var boxes = chart.boxes();
+        for (int i = 0; i < boxes.size(); i++)
+            for (int j = i + 1; j < boxes.size(); j++) {
+                var a = boxes.get(i);
+                var b = boxes.get(j);
+                boolean apart = a.maxX() <= b.x() + 1e-6 || b.maxX() <= a.x() + 1e-6
+                             || a.maxY() <= b.y() + 1e-6 || b.maxY() <= a.y() + 1e-6;
+                assertTrue(apart, a + " overlaps " + b);
+            }
+    }
+
+    @Test
+    void boxesOfAFamilyWithCollapseDoNotOverlap() {
+
+        // two couples whose grandchildren, first cousins, marry and have children of their own
+        var g1 = new Person("g1", "G1");
+        var g2 = new Person("g2", "G2");
+        marry(g1, g2);
+        var a = child("a", g1, g2);
+        var b = child("b", g1, g2);
+        var sa = new Person("sa", "Spouse of A");
+        var sb = new Person("sb", "Spouse of B");
+        marry(a, sa);
+        marry(b, sb);
+        var ca = child("ca", a, sa);
+        var cb = child("cb", b, sb);
+        marry(ca, cb);
+        var kids = new ArrayList<Person>();
+        for (int i = 0; i < 4; i++)
+            kids.add(child("k" + i, ca, cb));
+
+        // a second partner of a with a child, and one without a marriage
+        var second = new Person("s2", "Second");
+        marry(a, second);
+        child("h1", a, second);
+        child("h2", a, new Person("s3", "Unmarried"));
+
+        var layout = new TreeLayout(WIDTH, HEIGHT);
+
+        var down = layout.layout(g1, 0, 4);
+        assertNoOverlaps(down);
+        assertEquals(0, down.root().x(), 1e-6);
+        assertEquals(0, down.root().y(), 1e-6);
+        assertTrue(down.boxes().stream().anyMatch(ChartLayout.Box::repeated));
+
+        var up = layout.layout(kids.get(0), 4, 0);
+        assertNoOverlaps(up);
+        // g1 and g2 appear on both the mother's and the father's side
+        assertEquals(2, up.boxes().stream().filter(box -> box.person() == g1).count());
+        assertTrue(up.boxes().stream().allMatch(box -> box.generation() <= 0));
+
+        assertNoOverlaps(layout.layout(ca, 3, 3));
+    }
+
+    @Test
+    void randomPedigreesDoNotOverlap() {
+
+        var random = new Random(24);
+        for (int round = 0; round < 10; round++) {
+
+            var people = new ArrayList<Person>();
+            for (int i = 0; i < 150; i++) {
+                Person p1 = null, p2 = null;
+                if (i >= 10) {
+                    // parents from the last few dozen, so that generations run deep and overlap
+                    p1 = people.get(i - 1 - random.nextInt(Math.min(i, 30)));
+                    p2 = people.get(i - 1 - random.nextInt(Math.min(i, 30)));
+                    if (p2 == p1 || random.nextInt(5) == 0)
+                        p2 = null;
+                    else if (random.nextBoolean())
+                        marry(p1, p2);
+                }
+                people.add(child("r" + round + "-" + i, p1, p2));
+            }
+
+            var layout = new TreeLayout(WIDTH, HEIGHT);
+            for (var root : List.of(people.get(0), people.get(75), people.get(149)))
+                assertNoOverlaps(layout.layout(root, 6, 6));
+        }
+    }
+}